@@ -0,0 +1,311 @@
+package com.sentienz.sas.xpt;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.utils.ByteKeyHashMap;
+import com.sentienz.sas.xpt.utils.HyperLogLog;
+import com.sentienz.sas.xpt.utils.IO;
+import com.sentienz.sas.xpt.utils.PrimitiveUtils;
+
+/**
+ * Streaming group-by over the raw row bytes of an XPT file. Groups are keyed on
+ * the concatenated bytes of the group columns, which have a fixed width, so no
+ * per row Strings are created; keys are decoded once per group for the result.
+ * Rows are aggregated in parallel per chunk and the partial results merged.
+ *
+ * <pre>
+ * SASXportAggregator agg = new SASXportAggregator(reader);
+ * agg.setGroupBy("PARAMCD", "VISIT");
+ * agg.addAggregate(Function.COUNT, null);
+ * agg.addAggregate(Function.MEAN, "AVAL");
+ * List&lt;Group&gt; groups = agg.run(4);
+ * </pre>
+ */
+public class SASXportAggregator {
+
+	public static enum Function {
+		/** rows, or non missing values when a column is given */
+		COUNT,
+		SUM,
+		MEAN,
+		MIN,
+		MAX,
+		/** HyperLogLog estimate of the distinct non missing values */
+		DISTINCT
+	}
+
+	/**
+	 * Precision of the per group distinct sketches, about 3% error in 1 KB.
+	 */
+	public static final int DISTINCT_PRECISION = 10;
+
+	public static class Group {
+		public List<String> key;
+		public long rows;
+		/** one value per aggregate, NaN when no value was seen */
+		public double[] values;
+	}
+
+	private final SASXportPositionalReader reader;
+	private final ReadStatVariable[] variables;
+
+	private int[] groupColumns = new int[0];
+	private int keyLength = 0;
+	private final List<Function> functions = new ArrayList<Function>();
+	private final List<Integer> columns = new ArrayList<Integer>();
+
+	public SASXportAggregator(SASXportPositionalReader reader) {
+		this.reader = reader;
+		this.variables = reader.getMetaData().variables;
+	}
+
+	public void setGroupBy(String... names) {
+		groupColumns = new int[names.length];
+		keyLength = 0;
+		for (int i = 0; i < names.length; i++) {
+			groupColumns[i] = columnIndex(names[i]);
+			keyLength += variables[groupColumns[i]].storage_width;
+		}
+	}
+
+	/**
+	 * @param column the aggregated column, may only be null for
+	 *               {@link Function#COUNT}
+	 */
+	public void addAggregate(Function function, String column) {
+		int col = -1;
+		if (column != null) {
+			col = columnIndex(column);
+			if (variables[col].type == ReadstatType.READSTAT_TYPE_STRING && function != Function.COUNT
+					&& function != Function.DISTINCT)
+				throw new IllegalArgumentException(function + " needs a numeric column: " + column);
+		} else if (function != Function.COUNT) {
+			throw new IllegalArgumentException(function + " needs a column");
+		}
+		functions.add(function);
+		columns.add(col);
+	}
+
+	private int columnIndex(String name) {
+		int col = reader.getVariableIndex(name);
+		if (col < 0)
+			throw new IllegalArgumentException("Unknown variable: " + name);
+		return col;
+	}
+
+	/**
+	 * Aggregates the whole file and returns the groups in order of first
+	 * appearance.
+	 */
+	public List<Group> run(int threads) throws Exception {
+
+		List<Partial> partials = SASXportChunkRunner.run(reader, threads, (firstRow, rowCount) -> {
+			Partial partial = new Partial();
+			partial.aggregate(firstRow, rowCount);
+			return partial;
+		});
+
+		Partial total = partials.isEmpty() ? new Partial() : partials.get(0);
+		for (int i = 1; i < partials.size(); i++) {
+			total.merge(partials.get(i));
+		}
+		return total.toGroups();
+	}
+
+	/**
+	 * Aggregation state of one chunk, in flat arrays indexed by group id.
+	 */
+	private class Partial {
+
+		final int aggregates = functions.size();
+		final ByteKeyHashMap groups = new ByteKeyHashMap(Math.max(1, keyLength));
+		long[] rows = new long[16];
+		long[][] counts = new long[aggregates][16];
+		double[][] values = new double[aggregates][16];
+		HyperLogLog[][] sketches = new HyperLogLog[aggregates][16];
+
+		void aggregate(long firstRow, long rowCount) throws Exception {
+
+			int rowLength = reader.getRowLength();
+			byte[] buffer = new byte[Math.max(rowLength, 64 * 1024 / rowLength * rowLength)];
+			byte[] key = new byte[Math.max(1, keyLength)];
+			ByteBuffer bb = ByteBuffer.wrap(buffer);
+
+			for (long row = firstRow; row < firstRow + rowCount;) {
+				bb.clear();
+				bb.limit((int) Math.min(buffer.length / rowLength, firstRow + rowCount - row) * rowLength);
+				int n = reader.readRows(row, bb);
+				if (n == 0)
+					break;
+				for (int r = 0; r < n; r++) {
+					int off = r * rowLength;
+					if (reader.isBlankRow(buffer, off))
+						continue;
+					int k = 0;
+					for (int col : groupColumns) {
+						ReadStatVariable variable = variables[col];
+						System.arraycopy(buffer, off + variable.offset, key, k, variable.storage_width);
+						k += variable.storage_width;
+					}
+					int g = groups.getOrAdd(key, 0);
+					if (g == rows.length)
+						grow();
+					rows[g]++;
+					for (int a = 0; a < aggregates; a++) {
+						int col = columns.get(a);
+						if (col >= 0)
+							accumulate(a, g, variables[col], buffer, off + variables[col].offset);
+					}
+				}
+				row += n;
+			}
+		}
+
+		private void accumulate(int a, int g, ReadStatVariable variable, byte[] buffer, int pos) {
+
+			int width = variable.storage_width;
+			if (variable.type == ReadstatType.READSTAT_TYPE_STRING) {
+				while (width > 0 && buffer[pos + width - 1] == ' ') {
+					width--;
+				}
+				if (width == 0)
+					return;
+			} else if (SASXportConverter.isMissingValue(buffer, pos, width)) {
+				return;
+			}
+
+			long n = ++counts[a][g];
+			switch (functions.get(a)) {
+			case COUNT:
+				break;
+			case SUM:
+			case MEAN:
+				values[a][g] += PrimitiveUtils.xpt2ieee(buffer, pos, width);
+				break;
+			case MIN: {
+				double d = PrimitiveUtils.xpt2ieee(buffer, pos, width);
+				if (n == 1 || d < values[a][g])
+					values[a][g] = d;
+				break;
+			}
+			case MAX: {
+				double d = PrimitiveUtils.xpt2ieee(buffer, pos, width);
+				if (n == 1 || d > values[a][g])
+					values[a][g] = d;
+				break;
+			}
+			case DISTINCT:
+				if (sketches[a][g] == null)
+					sketches[a][g] = new HyperLogLog(DISTINCT_PRECISION);
+				sketches[a][g].addBytes(buffer, pos, width);
+				break;
+			}
+		}
+
+		private void grow() {
+			int capacity = rows.length * 2;
+			rows = Arrays.copyOf(rows, capacity);
+			for (int a = 0; a < aggregates; a++) {
+				counts[a] = Arrays.copyOf(counts[a], capacity);
+				values[a] = Arrays.copyOf(values[a], capacity);
+				sketches[a] = Arrays.copyOf(sketches[a], capacity);
+			}
+		}
+
+		void merge(Partial other) {
+			byte[] keys = other.groups.getKeys();
+			for (int o = 0; o < other.groups.size(); o++) {
+				int g = groups.getOrAdd(keys, other.groups.keyOffset(o));
+				if (g == rows.length)
+					grow();
+				rows[g] += other.rows[o];
+				for (int a = 0; a < aggregates; a++) {
+					long n = other.counts[a][o];
+					if (n == 0)
+						continue;
+					double v = other.values[a][o];
+					switch (functions.get(a)) {
+					case SUM:
+					case MEAN:
+						values[a][g] += v;
+						break;
+					case MIN:
+						if (counts[a][g] == 0 || v < values[a][g])
+							values[a][g] = v;
+						break;
+					case MAX:
+						if (counts[a][g] == 0 || v > values[a][g])
+							values[a][g] = v;
+						break;
+					case DISTINCT:
+						if (sketches[a][g] == null)
+							sketches[a][g] = new HyperLogLog(DISTINCT_PRECISION);
+						sketches[a][g].merge(other.sketches[a][o]);
+						break;
+					default:
+						break;
+					}
+					counts[a][g] += n;
+				}
+			}
+		}
+
+		List<Group> toGroups() {
+			List<Group> result = new ArrayList<Group>(groups.size());
+			byte[] keys = groups.getKeys();
+			for (int g = 0; g < groups.size(); g++) {
+				Group group = new Group();
+				group.key = decodeKey(keys, groups.keyOffset(g));
+				group.rows = rows[g];
+				group.values = new double[aggregates];
+				for (int a = 0; a < aggregates; a++) {
+					group.values[a] = value(a, g);
+				}
+				result.add(group);
+			}
+			return result;
+		}
+
+		private double value(int a, int g) {
+			long n = counts[a][g];
+			switch (functions.get(a)) {
+			case COUNT:
+				return columns.get(a) < 0 ? rows[g] : n;
+			case DISTINCT:
+				return sketches[a][g] == null ? 0 : sketches[a][g].estimate();
+			case MEAN:
+				return n == 0 ? Double.NaN : values[a][g] / n;
+			default:
+				return n == 0 ? Double.NaN : values[a][g];
+			}
+		}
+	}
+
+	private List<String> decodeKey(byte[] keys, int off) {
+		List<String> key = new ArrayList<String>(groupColumns.length);
+		for (int col : groupColumns) {
+			key.add(decodeValue(variables[col], keys, off));
+			off += variables[col].storage_width;
+		}
+		return key;
+	}
+
+	/**
+	 * Renders a single cell, with missing numerics as ".", "._" or ".A" to ".Z".
+	 */
+	static String decodeValue(ReadStatVariable variable, byte[] buffer, int pos) {
+		int width = variable.storage_width;
+		if (variable.type == ReadstatType.READSTAT_TYPE_STRING)
+			return IO.readString(buffer, pos, width);
+		if (width > XPTTypes.XPORT_MAX_DOUBLE_SIZE || width < XPTTypes.XPORT_MIN_DOUBLE_SIZE)
+			return "" + 0.0d;
+		if (SASXportConverter.isMissingValue(buffer, pos, width))
+			return buffer[pos] == '.' ? "." : "." + (char) buffer[pos];
+		return "" + PrimitiveUtils.xpt2ieee(buffer, pos, width);
+	}
+}
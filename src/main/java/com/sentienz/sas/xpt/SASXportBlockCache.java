@@ -0,0 +1,161 @@
+package com.sentienz.sas.xpt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage that reads another one in aligned blocks and keeps the most recently
+ * used blocks in memory, up to a fixed number of bytes. A read that misses
+ * several adjacent blocks fetches them with a single read from the source, so
+ * a scan over a remote file costs one request per read rather than one per
+ * block, while the header and hot rows are fetched only once.
+ *
+ * The last block of the file may be partial; once the file has grown, reads
+ * past its cached end fetch it again.
+ */
+public class SASXportBlockCache implements SASXportStorage {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	private final SASXportStorage source;
+	private final int blockSize;
+	private final long capacity;
+
+	/** block number to bytes, in access order */
+	private final LinkedHashMap<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+	private long cachedBytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param capacity bytes of blocks kept, at least one block
+	 */
+	public SASXportBlockCache(SASXportStorage source, int blockSize, long capacity) {
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+		if (capacity < blockSize)
+			throw new IllegalArgumentException("Capacity smaller than a block: " + capacity);
+		this.source = source;
+		this.blockSize = blockSize;
+		this.capacity = capacity;
+	}
+
+	public long size() throws IOException {
+		return source.size();
+	}
+
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (!dst.hasRemaining())
+			return 0;
+		long size = source.size();
+		if (position >= size)
+			return -1;
+		int len = (int) Math.min(dst.remaining(), size - position);
+
+		long first = position / blockSize;
+		long last = (position + len - 1) / blockSize;
+		byte[][] found = new byte[(int) (last - first + 1)][];
+		synchronized (blocks) {
+			for (int i = 0; i < found.length; i++) {
+				found[i] = blocks.get(first + i);
+				long needed = Math.min(blockSize, position + len - (first + i) * blockSize);
+				if (found[i] != null && found[i].length < needed)
+					found[i] = null;
+			}
+		}
+
+		for (int i = 0; i < found.length;) {
+			if (found[i] != null) {
+				hits.incrementAndGet();
+				i++;
+				continue;
+			}
+			int run = 1;
+			while (i + run < found.length && found[i + run] == null)
+				run++;
+			fetch(first + i, run, size, found, i);
+			misses.addAndGet(run);
+			i += run;
+		}
+
+		int n = 0;
+		for (int i = 0; i < found.length && n < len; i++) {
+			int from = i == 0 ? (int) (position - first * blockSize) : 0;
+			int count = Math.min(found[i].length - from, len - n);
+			if (count <= 0)
+				break;
+			dst.put(found[i], from, count);
+			n += count;
+		}
+		return n;
+	}
+
+	/**
+	 * Reads <code>count</code> adjacent blocks at once and caches them.
+	 */
+	private void fetch(long block, int count, long size, byte[][] found, int index) throws IOException {
+		long start = block * blockSize;
+		int len = (int) Math.min((long) count * blockSize, size - start);
+		ByteBuffer buffer = ByteBuffer.allocate(len);
+		source.readFully(buffer, start);
+		byte[] bytes = buffer.array();
+		for (int i = 0; i < count; i++) {
+			int from = i * blockSize;
+			int to = Math.min(len, from + blockSize);
+			byte[] data = new byte[to - from];
+			System.arraycopy(bytes, from, data, 0, data.length);
+			found[index + i] = data;
+			put(block + i, data);
+		}
+	}
+
+	private void put(long block, byte[] data) {
+		synchronized (blocks) {
+			byte[] previous = blocks.put(block, data);
+			cachedBytes += data.length - (previous == null ? 0 : previous.length);
+			Iterator<Map.Entry<Long, byte[]>> eldest = blocks.entrySet().iterator();
+			while (cachedBytes > capacity && eldest.hasNext()) {
+				cachedBytes -= eldest.next().getValue().length;
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Number of blocks served from memory.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Number of blocks read from the source.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Drops every cached block.
+	 */
+	public void clear() {
+		synchronized (blocks) {
+			blocks.clear();
+			cachedBytes = 0;
+		}
+	}
+
+	public void close() throws IOException {
+		clear();
+		source.close();
+	}
+}
@@ -0,0 +1,94 @@
+package com.sentienz.sas.xpt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits the rows of a {@link SASXportPositionalReader} into row aligned chunks
+ * and runs one task per chunk on a pool. Results come back in chunk order, which
+ * makes it the building block for partial aggregation followed by a merge.
+ */
+public class SASXportChunkRunner {
+
+	public static final long DEFAULT_CHUNK_BYTES = 8 * 1024 * 1024;
+
+	public interface ChunkTask<T> {
+		T run(long firstRow, long rowCount) throws Exception;
+	}
+
+	private SASXportChunkRunner() {
+		// prevent instantiation
+	}
+
+	/**
+	 * Runs the task over chunks of about {@link #DEFAULT_CHUNK_BYTES} on a
+	 * temporary pool of the given size.
+	 */
+	public static <T> List<T> run(SASXportPositionalReader reader, int threads, ChunkTask<T> task) throws Exception {
+		long chunkRows = Math.max(1, DEFAULT_CHUNK_BYTES / Math.max(1, reader.getRowLength()));
+		if (threads <= 1 || reader.getRowCount() <= chunkRows) {
+			List<T> results = new ArrayList<T>();
+			for (long first = 0; first < reader.getRowCount(); first += chunkRows) {
+				results.add(task.run(first, Math.min(chunkRows, reader.getRowCount() - first)));
+			}
+			return results;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			return run(reader, chunkRows, pool, task);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Runs the task over chunks of <code>chunkRows</code> rows of the reader's
+	 * member on the given pool. Chunks run before the chunk holding the next
+	 * member's header has been read may see rows of that member; their results
+	 * are left out, so as long as every task reads its rows through to the end
+	 * of its chunk, the results cover the member exactly and its row count is
+	 * exact afterwards.
+	 */
+	public static <T> List<T> run(SASXportPositionalReader reader, long chunkRows, ExecutorService pool,
+			ChunkTask<T> task) throws Exception {
+		List<T> results = run(reader.getRowCount(), chunkRows, pool, task);
+		long chunks = (reader.getRowCount() + chunkRows - 1) / chunkRows;
+		if (chunks < results.size())
+			results.subList((int) chunks, results.size()).clear();
+		return results;
+	}
+
+	/**
+	 * Runs the task over chunks of <code>chunkRows</code> rows out of
+	 * <code>rowCount</code> on the given pool.
+	 */
+	public static <T> List<T> run(long rowCount, long chunkRows, ExecutorService pool, final ChunkTask<T> task)
+			throws Exception {
+
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		for (long first = 0; first < rowCount; first += chunkRows) {
+			final long firstRow = first;
+			final long count = Math.min(chunkRows, rowCount - first);
+			futures.add(pool.submit(() -> task.run(firstRow, count)));
+		}
+
+		List<T> results = new ArrayList<T>(futures.size());
+		try {
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (ExecutionException e) {
+			for (Future<T> future : futures) {
+				future.cancel(false);
+			}
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+		return results;
+	}
+}
@@ -0,0 +1,440 @@
+package com.sentienz.sas.xpt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+
+/**
+ * Command line entry point. It needs neither reflection nor resources, so the
+ * build compiles it ahead of time with the <code>native</code> profile, which
+ * leaves process start up, not the JVM, as the cost of converting a small
+ * file.
+ *
+ * <pre>
+ * sas-xpt meta ae.xpt
+ * sas-xpt csv ae.xpt --columns USUBJID,AETERM --where "AESEV = 'SEVERE'" --limit 100
+ * sas-xpt ndjson ae.xpt
+ * sas-xpt count ae.xpt --where "AESER = 'Y'"
+ * sas-xpt subset ae.xpt ae_serious.xpt --where "AESER = 'Y'"
+ * sas-xpt query "SELECT USUBJID, AETERM FROM ae.xpt WHERE AESER = 'Y'"
+ * </pre>
+ *
+ * Rows are written to standard output; csv and ndjson stream them, so memory
+ * use does not grow with the file.
+ */
+public class SASXportCli {
+
+	private static final String USAGE = "usage: sas-xpt <command> [options]\n"
+			+ "  meta <file>                 members and variables as JSON\n"
+			+ "  csv <file>                  rows as CSV with a header line\n"
+			+ "  ndjson <file>               rows as one JSON object per line\n"
+			+ "  count <file>                number of rows\n"
+			+ "  subset <in> <out>           copy rows and columns to a new XPT file\n"
+			+ "  query <sql>                 run a query, see SASXportQuery, rows as CSV\n" + "options:\n"
+			+ "  -c, --columns <a,b,...>     columns to keep, in this order\n"
+			+ "  -w, --where <condition>     rows to keep, as in a WHERE clause\n"
+			+ "  -n, --limit <rows>          stop after this many rows\n"
+			+ "  -t, --threads <n>           worker threads for count and query";
+
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+	private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+	private SASXportCli() {
+		// prevent instantiation
+	}
+
+	public static void main(String[] args) {
+		System.exit(run(args, System.out, System.err));
+	}
+
+	/**
+	 * Runs one command.
+	 *
+	 * @return the exit status: 0 on success, 1 if the command failed and 2 for
+	 *         invalid arguments
+	 */
+	public static int run(String[] args, PrintStream out, PrintStream err) {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE);
+		try {
+			Options options = Options.parse(args);
+			switch (options.command) {
+			case "meta":
+				meta(options.file(0, 1), writer);
+				break;
+			case "csv":
+				export(options, writer, false);
+				break;
+			case "ndjson":
+				export(options, writer, true);
+				break;
+			case "count":
+				count(options, writer);
+				break;
+			case "subset":
+				subset(options, writer);
+				break;
+			case "query":
+				query(options, writer);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown command: " + options.command);
+			}
+			writer.flush();
+			return 0;
+		} catch (IllegalArgumentException e) {
+			err.println("error: " + e.getMessage());
+			err.println(USAGE);
+			return 2;
+		} catch (Exception e) {
+			try {
+				writer.flush();
+			} catch (IOException ignored) {
+				// the output is gone, report the original failure
+			}
+			err.println("error: " + e);
+			return 1;
+		}
+	}
+
+	/**
+	 * Parsed command line.
+	 */
+	private static class Options {
+		String command;
+		final List<String> arguments = new ArrayList<String>();
+		String[] columns;
+		String where;
+		long limit = -1;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		static Options parse(String[] args) {
+			if (args.length == 0)
+				throw new IllegalArgumentException("No command given");
+			Options options = new Options();
+			options.command = args[0].toLowerCase(Locale.ROOT);
+			for (int i = 1; i < args.length; i++) {
+				String arg = args[i];
+				if (!arg.startsWith("-") || arg.length() == 1) {
+					options.arguments.add(arg);
+					continue;
+				}
+				if (i + 1 >= args.length)
+					throw new IllegalArgumentException("Missing value of " + arg);
+				String value = args[++i];
+				switch (arg) {
+				case "-c":
+				case "--columns":
+					options.columns = value.split("\\s*,\\s*");
+					break;
+				case "-w":
+				case "--where":
+					options.where = value;
+					break;
+				case "-n":
+				case "--limit":
+					options.limit = number(arg, value);
+					break;
+				case "-t":
+				case "--threads":
+					options.threads = (int) Math.max(1, number(arg, value));
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option: " + arg);
+				}
+			}
+			return options;
+		}
+
+		private static long number(String option, String value) {
+			try {
+				long n = Long.parseLong(value);
+				if (n < 0)
+					throw new NumberFormatException();
+				return n;
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(option + " needs a non negative number: " + value);
+			}
+		}
+
+		/**
+		 * The argument at <code>index</code>, checking that there are exactly
+		 * <code>expected</code> of them.
+		 */
+		String file(int index, int expected) {
+			if (arguments.size() != expected)
+				throw new IllegalArgumentException(command + " needs " + expected + " argument"
+						+ (expected == 1 ? "" : "s") + ", got " + arguments.size());
+			return arguments.get(index);
+		}
+	}
+
+	private static void meta(String fileName, Writer out) throws Exception {
+		out.write("{\"file\":");
+		json(out, fileName);
+		out.write(",\"members\":[");
+		long memberOffset = -1;
+		do {
+			try (SASXportPositionalReader reader = memberOffset < 0 ? new SASXportPositionalReader(fileName)
+					: new SASXportPositionalReader(fileName, memberOffset)) {
+				XPTContext meta = reader.getMetaData();
+				reader.settleRowCount();
+				if (memberOffset >= 0)
+					out.write(',');
+				member(meta, reader.dataRowCount(), out);
+				memberOffset = reader.getNextMemberOffset();
+			}
+		} while (memberOffset >= 0);
+		out.write("]}\n");
+	}
+
+	private static void member(XPTContext meta, long rows, Writer out) throws IOException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.ROOT);
+		out.write("{\"name\":");
+		json(out, meta.table_name);
+		out.write(",\"label\":");
+		json(out, meta.file_label);
+		out.write(",\"version\":" + meta.version);
+		out.write(",\"created\":");
+		json(out, format.format(new Date(meta.timestamp)));
+		out.write(",\"rows\":" + rows);
+		out.write(",\"row_length\":" + meta.row_length);
+		out.write(",\"variables\":[");
+		for (int i = 0; i < meta.var_count; i++) {
+			ReadStatVariable v = meta.variables[i];
+			out.write(i == 0 ? "{\"name\":" : ",{\"name\":");
+			json(out, v.name);
+			out.write(",\"type\":");
+			json(out, v.type == ReadstatType.READSTAT_TYPE_STRING ? "string" : "numeric");
+			out.write(",\"length\":" + v.storage_width);
+			out.write(",\"label\":");
+			json(out, v.label);
+			out.write(",\"format\":");
+			json(out, v.format);
+			out.write(",\"position\":" + v.offset);
+			out.write('}');
+		}
+		out.write("]}");
+	}
+
+	/**
+	 * Streams the selected columns of the matching rows as CSV or NDJSON.
+	 */
+	private static void export(Options options, Writer out, boolean ndjson) throws Exception {
+		String fileName = options.file(0, 1);
+		try (SASXportPositionalReader reader = new SASXportPositionalReader(fileName)) {
+			XPTContext meta = reader.getMetaData();
+			int[] columns = columns(reader, options.columns);
+			SASXportRowFilter filter = options.where == null ? null
+					: SASXportQuery.of(fileName, null, false, options.where, -1).filter(meta);
+
+			// numerics are JSON numbers, unless rendered as dates
+			boolean[] quoted = new boolean[columns.length];
+			for (int c = 0; c < columns.length; c++) {
+				ReadStatVariable v = meta.variables[columns[c]];
+				quoted[c] = v.type == ReadstatType.READSTAT_TYPE_STRING
+						|| (v.format != null && v.format.toLowerCase(Locale.ROOT).contains("date"));
+			}
+			if (!ndjson) {
+				for (int c = 0; c < columns.length; c++) {
+					if (c > 0)
+						out.write(',');
+					csv(out, meta.variables[columns[c]].name);
+				}
+				out.write('\n');
+			}
+
+			int rowLength = meta.row_length;
+			byte[] buffer = new byte[Math.max(rowLength, READ_BUFFER_SIZE / rowLength * rowLength)];
+			ByteBuffer bb = ByteBuffer.wrap(buffer);
+			long limit = options.limit < 0 ? Long.MAX_VALUE : options.limit;
+			long written = 0;
+			for (long row = 0; row < reader.getRowCount() && written < limit;) {
+				bb.clear();
+				int n = reader.readRows(row, bb);
+				if (n == 0)
+					break;
+				for (int r = 0; r < n && written < limit; r++) {
+					int off = r * rowLength;
+					if (reader.isBlankRow(buffer, off) || (filter != null && !filter.accept(row + r, buffer, off)))
+						continue;
+					if (ndjson)
+						ndjsonRow(reader, columns, quoted, buffer, off, out);
+					else
+						csvRow(reader, columns, buffer, off, out);
+					written++;
+				}
+				row += n;
+			}
+		}
+	}
+
+	/**
+	 * Writes a CSV line, missing numerics as empty fields.
+	 */
+	private static void csvRow(SASXportPositionalReader reader, int[] columns, byte[] buffer, int off, Writer out)
+			throws IOException {
+		XPTContext meta = reader.getMetaData();
+		for (int c = 0; c < columns.length; c++) {
+			ReadStatVariable v = meta.variables[columns[c]];
+			if (c > 0)
+				out.write(',');
+			if (v.type == ReadstatType.READSTAT_TYPE_STRING
+					|| !SASXportConverter.isMissingValue(buffer, off + v.offset, v.storage_width))
+				csv(out, reader.decodeCell(buffer, off, columns[c]));
+		}
+		out.write('\n');
+	}
+
+	private static void ndjsonRow(SASXportPositionalReader reader, int[] columns, boolean[] quoted, byte[] buffer,
+			int off, Writer out) throws IOException {
+		XPTContext meta = reader.getMetaData();
+		out.write('{');
+		for (int c = 0; c < columns.length; c++) {
+			ReadStatVariable v = meta.variables[columns[c]];
+			if (c > 0)
+				out.write(',');
+			json(out, v.name);
+			out.write(':');
+			if (v.type != ReadstatType.READSTAT_TYPE_STRING
+					&& SASXportConverter.isMissingValue(buffer, off + v.offset, v.storage_width))
+				out.write("null");
+			else if (quoted[c])
+				json(out, reader.decodeCell(buffer, off, columns[c]));
+			else
+				out.write(reader.decodeCell(buffer, off, columns[c]));
+		}
+		out.write("}\n");
+	}
+
+	private static void count(Options options, Writer out) throws Exception {
+		String fileName = options.file(0, 1);
+		SASXportQuery query = SASXportQuery.of(fileName, null, true, options.where, -1);
+		out.write(query.execute(options.threads).rows.get(0).get(0));
+		out.write('\n');
+	}
+
+	private static void subset(Options options, Writer out) throws Exception {
+		String in = options.file(0, 2);
+		String target = options.file(1, 2);
+		SASXportRowFilter filter = null;
+		if (options.where != null || options.limit >= 0) {
+			XPTContext meta;
+			try (SASXportPositionalReader reader = new SASXportPositionalReader(in)) {
+				meta = reader.getMetaData();
+			}
+			final SASXportRowFilter where = options.where == null ? null
+					: SASXportQuery.of(in, null, false, options.where, -1).filter(meta);
+			final long limit = options.limit < 0 ? Long.MAX_VALUE : options.limit;
+			final long[] kept = new long[1];
+			filter = (row, buffer, off) -> {
+				if (kept[0] >= limit || (where != null && !where.accept(row, buffer, off)))
+					return false;
+				kept[0]++;
+				return true;
+			};
+		}
+		long rows = SASXportTransform.subset(in, target, options.columns, filter);
+		out.write(rows + "\n");
+	}
+
+	private static void query(Options options, Writer out) throws Exception {
+		SASXportQuery.Result result = SASXportQuery.parse(options.file(0, 1)).execute(options.threads);
+		for (int c = 0; c < result.columns.length; c++) {
+			if (c > 0)
+				out.write(',');
+			csv(out, result.columns[c]);
+		}
+		out.write('\n');
+		for (List<String> row : result.rows) {
+			for (int c = 0; c < row.size(); c++) {
+				if (c > 0)
+					out.write(',');
+				csv(out, row.get(c));
+			}
+			out.write('\n');
+		}
+	}
+
+	private static int[] columns(SASXportPositionalReader reader, String[] names) {
+		int count = names == null ? reader.getMetaData().var_count : names.length;
+		int[] columns = new int[count];
+		for (int i = 0; i < count; i++) {
+			columns[i] = names == null ? i : reader.getVariableIndex(names[i]);
+			if (columns[i] < 0)
+				throw new IllegalArgumentException("Unknown variable: " + names[i]);
+		}
+		return columns;
+	}
+
+	/**
+	 * Writes a CSV field, quoted only when it has to be.
+	 */
+	private static void csv(Writer out, String value) throws IOException {
+		if (value == null)
+			return;
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			out.write(value);
+			return;
+		}
+		out.write('"');
+		out.write(value.replace("\"", "\"\""));
+		out.write('"');
+	}
+
+	/**
+	 * Writes a JSON string, or null.
+	 */
+	private static void json(Writer out, String value) throws IOException {
+		if (value == null) {
+			out.write("null");
+			return;
+		}
+		out.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					out.write(String.format("\\u%04x", (int) c));
+				} else {
+					out.write(c);
+				}
+			}
+		}
+		out.write('"');
+	}
+}
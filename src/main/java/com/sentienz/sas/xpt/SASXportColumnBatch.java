@@ -0,0 +1,139 @@
+package com.sentienz.sas.xpt;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.ColumnKernels;
+import com.sentienz.sas.xpt.utils.MissingValues;
+
+/**
+ * Column oriented block of rows, filled by
+ * {@link SASXportPositionalReader#readColumns}. Vectors are indexed by the
+ * position of the column in {@link #columns}, not by variable index, and are
+ * reused from one read to the next.
+ *
+ * Numeric columns are decoded to {@link #values} unless a narrower type is
+ * requested, usually from {@link SASXportPositionalReader#sampleTypes}: the INT
+ * types fill {@link #ints} and FLOAT fills {@link #floats}. A block holding a
+ * value the narrow vector can not represent falls back to doubles, so check
+ * {@link #types} after every read.
+ *
+ * Missing values in {@link #values} and {@link #floats} are the
+ * {@link MissingValues} NaNs of their tags, so those vectors carry the kind of
+ * missing value themselves; {@link #missing} and {@link #tags} are still filled
+ * and are what {@link #ints} needs.
+ */
+public class SASXportColumnBatch {
+
+	/** variable indexes of the selected columns */
+	public final int[] columns;
+	public final int capacity;
+
+	public long firstRow;
+	public int rowCount;
+
+	/** requested type of each column */
+	public final ReadstatType[] declaredTypes;
+	/**
+	 * vector filled by the last read: INT32 for {@link #ints}, FLOAT for
+	 * {@link #floats}, DOUBLE for {@link #values} and STRING for
+	 * {@link #strings}
+	 */
+	public final ReadstatType[] types;
+
+	/** numeric columns, {@link MissingValues} NaN for missing values */
+	public final double[][] values;
+	/** integral columns, 0 for missing values */
+	public final int[][] ints;
+	/** float columns, {@link MissingValues} NaN for missing values */
+	public final float[][] floats;
+	/** numeric columns, bit r set if row r is missing */
+	public final long[][] missing;
+	/** numeric columns, missing tag of row r or 0 */
+	public final byte[][] tags;
+	/** string columns, trimmed */
+	public final String[][] strings;
+
+	public SASXportColumnBatch(XPTContext meta, int[] columns, int capacity) {
+		this(meta, columns, null, capacity);
+	}
+
+	/**
+	 * @param declaredTypes one type per column, or null to decode all numerics
+	 *                      as doubles
+	 */
+	public SASXportColumnBatch(XPTContext meta, int[] columns, ReadstatType[] declaredTypes, int capacity) {
+		this.columns = columns;
+		this.capacity = capacity;
+		this.declaredTypes = new ReadstatType[columns.length];
+		types = new ReadstatType[columns.length];
+		values = new double[columns.length][];
+		ints = new int[columns.length][];
+		floats = new float[columns.length][];
+		missing = new long[columns.length][];
+		tags = new byte[columns.length][];
+		strings = new String[columns.length][];
+		for (int c = 0; c < columns.length; c++) {
+			ReadStatVariable variable = meta.variables[columns[c]];
+			if (variable.type == ReadstatType.READSTAT_TYPE_STRING) {
+				this.declaredTypes[c] = ReadstatType.READSTAT_TYPE_STRING;
+				strings[c] = new String[capacity];
+			} else {
+				ReadstatType type = declaredTypes == null || declaredTypes[c] == null
+						? ReadstatType.READSTAT_TYPE_DOUBLE
+						: declaredTypes[c];
+				this.declaredTypes[c] = type;
+				if (isInt(type))
+					ints[c] = new int[capacity];
+				else if (type == ReadstatType.READSTAT_TYPE_FLOAT)
+					floats[c] = new float[capacity];
+				else
+					values[c] = new double[capacity];
+				missing[c] = new long[(capacity + 63) >>> 6];
+				tags[c] = new byte[capacity];
+			}
+			types[c] = this.declaredTypes[c];
+		}
+	}
+
+	static boolean isInt(ReadstatType type) {
+		return type == ReadstatType.READSTAT_TYPE_INT8 || type == ReadstatType.READSTAT_TYPE_INT16
+				|| type == ReadstatType.READSTAT_TYPE_INT32;
+	}
+
+	/**
+	 * Double vector of a narrowed column, allocated on the first fallback.
+	 */
+	double[] fallbackValues(int c) {
+		if (values[c] == null)
+			values[c] = new double[capacity];
+		return values[c];
+	}
+
+	/**
+	 * Value of a numeric cell, whichever vector the last read filled, missing
+	 * values as their {@link MissingValues} NaN.
+	 */
+	public double getDouble(int c, int row) {
+		switch (types[c]) {
+		case READSTAT_TYPE_INT32:
+			return isMissing(c, row) ? MissingValues.missing(tags[c][row]) : ints[c][row];
+		case READSTAT_TYPE_FLOAT:
+			return MissingValues.toDouble(floats[c][row]);
+		default:
+			return values[c][row];
+		}
+	}
+
+	public boolean isMissing(int c, int row) {
+		return missing[c] != null && ColumnKernels.isMissing(missing[c], row);
+	}
+
+	/**
+	 * Tag of a missing numeric cell, '.', '_' or 'A' to 'Z', or 0 if the cell
+	 * holds a value.
+	 */
+	public byte getMissingTag(int c, int row) {
+		return isMissing(c, row) ? tags[c][row] : 0;
+	}
+}
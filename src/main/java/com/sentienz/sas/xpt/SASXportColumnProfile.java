@@ -0,0 +1,62 @@
+package com.sentienz.sas.xpt;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.utils.HyperLogLog;
+
+/**
+ * Single pass summary of one column, see {@link SASXportProfiler}.
+ */
+public class SASXportColumnProfile {
+
+	public String name;
+	public ReadstatType type;
+
+	/** rows seen, blank rows excluded */
+	public long rows;
+	/** missing numerics, or blank strings */
+	public long missing;
+
+	/** numeric columns only */
+	public double min = Double.NaN;
+	public double max = Double.NaN;
+	public double sum;
+
+	/** string columns only, trailing blanks excluded */
+	public int minLength = Integer.MAX_VALUE;
+	public int maxLength;
+
+	public HyperLogLog distinct = new HyperLogLog();
+
+	public long getNonMissing() {
+		return rows - missing;
+	}
+
+	public double getMean() {
+		long n = getNonMissing();
+		return n == 0 || type == ReadstatType.READSTAT_TYPE_STRING ? Double.NaN : sum / n;
+	}
+
+	public long getDistinctEstimate() {
+		return distinct.estimate();
+	}
+
+	void merge(SASXportColumnProfile other) {
+		rows += other.rows;
+		missing += other.missing;
+		sum += other.sum;
+		if (Double.isNaN(min) || other.min < min)
+			min = other.min;
+		if (Double.isNaN(max) || other.max > max)
+			max = other.max;
+		minLength = Math.min(minLength, other.minLength);
+		maxLength = Math.max(maxLength, other.maxLength);
+		distinct.merge(other.distinct);
+	}
+
+	@Override
+	public String toString() {
+		return name + ": rows " + rows + ", missing " + missing + ", distinct ~" + getDistinctEstimate()
+				+ (type == ReadstatType.READSTAT_TYPE_STRING ? ", length " + minLength + ".." + maxLength
+						: ", min " + min + ", max " + max + ", mean " + getMean());
+	}
+}
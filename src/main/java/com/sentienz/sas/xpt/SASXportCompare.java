@@ -0,0 +1,557 @@
+package com.sentienz.sas.xpt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.IO;
+import com.sentienz.sas.xpt.utils.KeyEncoder;
+import com.sentienz.sas.xpt.utils.PrimitiveUtils;
+
+/**
+ * Compares two XPT files the way double programmed datasets are checked:
+ * first the variables and their attributes, then the rows, either pairwise by
+ * position or matched on key columns.
+ *
+ * Rows are compared as raw bytes, a whole chunk at a time while the layouts
+ * agree, and only cells of rows that differ are decoded. Chunks are compared
+ * in parallel. Numerics may differ by a tolerance; strings compare without
+ * trailing blanks, so a change of length alone is only a metadata difference.
+ * The report keeps the first differences up to a bound and counts the rest.
+ *
+ * <pre>
+ * Result result = SASXportCompare.compare("adsl.xpt", "adsl_qc.xpt",
+ * 		new SASXportCompare.Options().keys("USUBJID").tolerance(1e-9));
+ * if (!result.isEqual())
+ * 	result.differences.forEach(System.out::println);
+ * </pre>
+ */
+public class SASXportCompare {
+
+	private static final int PAIR_BATCH_SIZE = 8192;
+	private static final int MAX_RUN_BYTES = 1024 * 1024;
+
+	public static class Options {
+		/** key columns to match rows on, or null to match them by position */
+		public String[] keys = null;
+		/** largest absolute difference of numerics still considered equal */
+		public double tolerance = 0.0d;
+		/** differences kept in the report, the rest are only counted */
+		public int maxDifferences = 1000;
+		public int threads = Runtime.getRuntime().availableProcessors();
+
+		public Options keys(String... keys) {
+			this.keys = keys;
+			return this;
+		}
+
+		public Options tolerance(double tolerance) {
+			this.tolerance = tolerance;
+			return this;
+		}
+
+		public Options maxDifferences(int maxDifferences) {
+			this.maxDifferences = maxDifferences;
+			return this;
+		}
+
+		public Options threads(int threads) {
+			this.threads = threads;
+			return this;
+		}
+	}
+
+	public static enum Kind {
+		/** a cell differs */
+		VALUE,
+		/** a row has no counterpart in the compare file */
+		ONLY_IN_BASE,
+		/** a row has no counterpart in the base file */
+		ONLY_IN_COMPARE
+	}
+
+	public static class Difference {
+		public Kind kind;
+		/** row in the base file, -1 if none */
+		public long baseRow = -1;
+		/** row in the compare file, -1 if none */
+		public long compareRow = -1;
+		/** variable of a {@link Kind#VALUE} difference */
+		public String column;
+		/** cell values, or for unmatched rows the key values */
+		public String baseValue;
+		public String compareValue;
+
+		@Override
+		public String toString() {
+			return kind + " base row " + baseRow + ", compare row " + compareRow
+					+ (column == null ? "" : ", " + column) + ": " + baseValue + " | " + compareValue;
+		}
+	}
+
+	public static class Result {
+		/** one line per variable attribute that differs */
+		public List<String> metadataDifferences = new ArrayList<String>();
+		/**
+		 * the first differences, in row order; matched by key, unmatched rows come
+		 * first in key order
+		 */
+		public List<Difference> differences = new ArrayList<Difference>();
+		/** all differences, including the ones not kept */
+		public long differenceCount;
+		public long rowsCompared;
+		public long rowsWithDifferences;
+		public long rowsOnlyInBase;
+		public long rowsOnlyInCompare;
+
+		public boolean isEqual() {
+			return metadataDifferences.isEmpty() && differenceCount == 0;
+		}
+
+		/**
+		 * Whether differences were left out of {@link #differences}.
+		 */
+		public boolean isTruncated() {
+			return differenceCount > differences.size();
+		}
+	}
+
+	private SASXportCompare() {
+		// prevent instantiation
+	}
+
+	public static Result compare(String baseFile, String compareFile, Options options) throws Exception {
+		try (SASXportPositionalReader base = new SASXportPositionalReader(baseFile);
+				SASXportPositionalReader other = new SASXportPositionalReader(compareFile)) {
+
+			Result result = new Result();
+			List<ReadStatVariable[]> pairs = compareMetadata(base.getMetaData(), other.getMetaData(), result);
+
+			ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, options.threads));
+			try {
+				Report report = options.keys == null || options.keys.length == 0
+						? compareByPosition(base, other, pairs, options, pool)
+						: compareByKey(base, baseFile, other, compareFile, pairs, options, pool);
+				result.differences = report.differences;
+				result.differenceCount = report.differenceCount;
+				result.rowsCompared = report.rowsCompared;
+				result.rowsWithDifferences = report.rowsWithDifferences;
+				result.rowsOnlyInBase = report.rowsOnlyInBase;
+				result.rowsOnlyInCompare = report.rowsOnlyInCompare;
+			} finally {
+				pool.shutdown();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Matches variables by name and reports differing attributes.
+	 *
+	 * @return pairs of variables present in both files with the same type
+	 */
+	private static List<ReadStatVariable[]> compareMetadata(XPTContext base, XPTContext other, Result result) {
+		Map<String, ReadStatVariable> byName = new HashMap<String, ReadStatVariable>();
+		for (ReadStatVariable variable : other.variables) {
+			byName.put(variable.name.toUpperCase(Locale.ROOT), variable);
+		}
+
+		List<ReadStatVariable[]> pairs = new ArrayList<ReadStatVariable[]>();
+		List<String> diffs = result.metadataDifferences;
+		for (ReadStatVariable a : base.variables) {
+			ReadStatVariable b = byName.remove(a.name.toUpperCase(Locale.ROOT));
+			if (b == null) {
+				diffs.add(a.name + ": only in base");
+				continue;
+			}
+			if (a.type != b.type) {
+				diffs.add(a.name + ": type " + a.type + " | " + b.type);
+				continue;
+			}
+			if (a.storage_width != b.storage_width)
+				diffs.add(a.name + ": length " + a.storage_width + " | " + b.storage_width);
+			if (!same(a.label, b.label))
+				diffs.add(a.name + ": label " + a.label + " | " + b.label);
+			if (!same(a.format, b.format))
+				diffs.add(a.name + ": format " + a.format + " | " + b.format);
+			if (a.index != b.index)
+				diffs.add(a.name + ": position " + (a.index + 1) + " | " + (b.index + 1));
+			pairs.add(new ReadStatVariable[] { a, b });
+		}
+		for (ReadStatVariable b : other.variables) {
+			if (byName.containsKey(b.name.toUpperCase(Locale.ROOT)))
+				diffs.add(b.name + ": only in compare");
+		}
+		return pairs;
+	}
+
+	private static boolean same(String a, String b) {
+		return (a == null ? "" : a.trim()).equals(b == null ? "" : b.trim());
+	}
+
+	/**
+	 * Differences found by one task, merged in task order.
+	 */
+	private static class Report {
+		final List<Difference> differences = new ArrayList<Difference>();
+		final int max;
+		long differenceCount;
+		long rowsCompared;
+		long rowsWithDifferences;
+		long rowsOnlyInBase;
+		long rowsOnlyInCompare;
+
+		Report(int max) {
+			this.max = max;
+		}
+
+		void add(Difference difference) {
+			if (differences.size() < max)
+				differences.add(difference);
+			differenceCount++;
+		}
+
+		boolean isFull() {
+			return differences.size() >= max;
+		}
+
+		void merge(Report other) {
+			for (Difference difference : other.differences) {
+				if (differences.size() >= max)
+					break;
+				differences.add(difference);
+			}
+			differenceCount += other.differenceCount;
+			rowsCompared += other.rowsCompared;
+			rowsWithDifferences += other.rowsWithDifferences;
+			rowsOnlyInBase += other.rowsOnlyInBase;
+			rowsOnlyInCompare += other.rowsOnlyInCompare;
+		}
+	}
+
+	private static Report compareByPosition(final SASXportPositionalReader base, final SASXportPositionalReader other,
+			final List<ReadStatVariable[]> pairs, final Options options, ExecutorService pool) throws Exception {
+
+		base.settleRowCount();
+		other.settleRowCount();
+		final long baseRows = base.dataRowCount();
+		final long otherRows = other.dataRowCount();
+		final boolean sameLayout = isSameLayout(base.getMetaData(), other.getMetaData(), pairs);
+		final int baseLength = base.getRowLength();
+		final int otherLength = other.getRowLength();
+
+		long rows = Math.max(baseRows, otherRows);
+		long chunkRows = Math.max(1,
+				SASXportChunkRunner.DEFAULT_CHUNK_BYTES / Math.max(1, Math.max(baseLength, otherLength)));
+		List<Report> reports = SASXportChunkRunner.run(rows, chunkRows, pool, (firstRow, count) -> {
+			Report report = new Report(options.maxDifferences);
+			int n = (int) count;
+			int inBase = (int) Math.max(0, Math.min(n, baseRows - firstRow));
+			int inOther = (int) Math.max(0, Math.min(n, otherRows - firstRow));
+			byte[] a = read(base, firstRow, inBase);
+			byte[] b = read(other, firstRow, inOther);
+			int both = Math.min(inBase, inOther);
+
+			// the common case of equal chunks costs one vectorized comparison
+			boolean equal = sameLayout && ByteBuffer.wrap(a, 0, both * baseLength)
+					.equals(ByteBuffer.wrap(b, 0, both * otherLength));
+			for (int r = 0; !equal && r < both; r++) {
+				if (sameLayout && ByteBuffer.wrap(a, r * baseLength, baseLength)
+						.equals(ByteBuffer.wrap(b, r * otherLength, otherLength)))
+					continue;
+				compareRow(pairs, a, r * baseLength, b, r * otherLength, firstRow + r, firstRow + r, options,
+						report);
+			}
+			report.rowsCompared += both;
+			for (int r = both; r < inBase; r++) {
+				report.rowsOnlyInBase++;
+				report.add(unmatched(Kind.ONLY_IN_BASE, firstRow + r, -1, null));
+			}
+			for (int r = both; r < inOther; r++) {
+				report.rowsOnlyInCompare++;
+				report.add(unmatched(Kind.ONLY_IN_COMPARE, -1, firstRow + r, null));
+			}
+			return report;
+		});
+
+		Report total = new Report(options.maxDifferences);
+		for (Report report : reports) {
+			total.merge(report);
+		}
+		return total;
+	}
+
+	/**
+	 * Matches rows through temporary sorted indexes on the key columns, merged
+	 * in key order. Rows sharing a key are paired in row order; the surplus on
+	 * either side is unmatched.
+	 */
+	private static Report compareByKey(final SASXportPositionalReader base, String baseFile,
+			final SASXportPositionalReader other, String compareFile, final List<ReadStatVariable[]> pairs,
+			final Options options, ExecutorService pool) throws Exception {
+
+		XPTContext baseMeta = base.getMetaData(), otherMeta = other.getMetaData();
+		final ReadStatVariable[] baseKeys = new ReadStatVariable[options.keys.length];
+		final ReadStatVariable[] otherKeys = new ReadStatVariable[options.keys.length];
+		int[] keyWidths = new int[options.keys.length];
+		for (int i = 0; i < options.keys.length; i++) {
+			int a = base.getVariableIndex(options.keys[i]), b = other.getVariableIndex(options.keys[i]);
+			if (a < 0 || b < 0)
+				throw new IllegalArgumentException("Key variable missing in a file: " + options.keys[i]);
+			ReadStatVariable va = baseMeta.variables[a], vb = otherMeta.variables[b];
+			if (va.type != vb.type)
+				throw new IllegalArgumentException("Key variable differs in type: " + options.keys[i]);
+			baseKeys[i] = va;
+			otherKeys[i] = vb;
+			keyWidths[i] = Math.max(KeyEncoder.width(va), KeyEncoder.width(vb));
+		}
+
+		Path baseIndex = Files.createTempFile("xptcompare", ".sidx");
+		Path otherIndex = Files.createTempFile("xptcompare", ".sidx");
+		try {
+			SASXportIndex.build(base, baseFile, SASXportIndex.Type.SORTED, options.threads, baseIndex, options.keys);
+			SASXportIndex.build(other, compareFile, SASXportIndex.Type.SORTED, options.threads, otherIndex,
+					options.keys);
+			try (SASXportIndex a = SASXportIndex.open(baseIndex, base, baseFile);
+					SASXportIndex b = SASXportIndex.open(otherIndex, other, compareFile)) {
+				return mergeJoin(base, a, baseKeys, other, b, otherKeys, keyWidths, pairs, options, pool);
+			}
+		} finally {
+			Files.deleteIfExists(baseIndex);
+			Files.deleteIfExists(otherIndex);
+		}
+	}
+
+	private static Report mergeJoin(final SASXportPositionalReader base, SASXportIndex a, ReadStatVariable[] baseKeys,
+			final SASXportPositionalReader other, SASXportIndex b, ReadStatVariable[] otherKeys, int[] keyWidths,
+			final List<ReadStatVariable[]> pairs, final Options options, ExecutorService pool) throws Exception {
+
+		// string keys of different widths compare blank padded to the wider one
+		int keyLength = 0;
+		for (int width : keyWidths) {
+			keyLength += width;
+		}
+		byte[] ea = new byte[a.getKeyLength() + 8], eb = new byte[b.getKeyLength() + 8];
+		byte[] ka = new byte[keyLength], kb = new byte[keyLength];
+		long i = 0, j = 0;
+		long na = a.getEntryCount(), nb = b.getEntryCount();
+
+		// unmatched rows are reported in key order ahead of the value differences
+		Report unmatched = new Report(options.maxDifferences);
+		List<Future<Report>> batches = new ArrayList<Future<Report>>();
+		long[] baseRows = new long[PAIR_BATCH_SIZE], otherRows = new long[PAIR_BATCH_SIZE];
+		int n = 0;
+
+		if (i < na)
+			entry(a, i, ea, baseKeys, keyWidths, ka);
+		if (j < nb)
+			entry(b, j, eb, otherKeys, keyWidths, kb);
+		while (i < na || j < nb) {
+			int c = i >= na ? 1 : j >= nb ? -1 : KeyEncoder.compare(ka, 0, kb, 0, keyLength);
+			if (c == 0) {
+				baseRows[n] = a.rowOf(ea);
+				otherRows[n] = b.rowOf(eb);
+				if (++n == PAIR_BATCH_SIZE) {
+					batches.add(submitPairs(base, other, baseRows, otherRows, n, pairs, options, pool));
+					baseRows = new long[PAIR_BATCH_SIZE];
+					otherRows = new long[PAIR_BATCH_SIZE];
+					n = 0;
+				}
+			} else if (c < 0) {
+				unmatched.rowsOnlyInBase++;
+				unmatched.add(unmatched(Kind.ONLY_IN_BASE, a.rowOf(ea), -1,
+						unmatched.isFull() ? null : keyText(base, a.rowOf(ea), baseKeys)));
+			} else {
+				unmatched.rowsOnlyInCompare++;
+				unmatched.add(unmatched(Kind.ONLY_IN_COMPARE, -1, b.rowOf(eb),
+						unmatched.isFull() ? null : keyText(other, b.rowOf(eb), otherKeys)));
+			}
+			if (c <= 0 && ++i < na)
+				entry(a, i, ea, baseKeys, keyWidths, ka);
+			if (c >= 0 && ++j < nb)
+				entry(b, j, eb, otherKeys, keyWidths, kb);
+		}
+		if (n > 0)
+			batches.add(submitPairs(base, other, baseRows, otherRows, n, pairs, options, pool));
+
+		Report total = unmatched;
+		for (Future<Report> batch : batches) {
+			total.merge(batch.get());
+		}
+		return total;
+	}
+
+	/**
+	 * Copies index entry <code>i</code> and its key, each column widened to
+	 * <code>widths</code>.
+	 */
+	private static void entry(SASXportIndex index, long i, byte[] entry, ReadStatVariable[] keys, int[] widths,
+			byte[] key) {
+		index.entry(i, entry);
+		int from = 0, to = 0;
+		for (int k = 0; k < keys.length; k++) {
+			int width = KeyEncoder.width(keys[k]);
+			System.arraycopy(entry, from, key, to, width);
+			Arrays.fill(key, to + width, to + widths[k], (byte) ' ');
+			from += width;
+			to += widths[k];
+		}
+	}
+
+	private static Future<Report> submitPairs(final SASXportPositionalReader base,
+			final SASXportPositionalReader other, final long[] baseRows, final long[] otherRows, final int n,
+			final List<ReadStatVariable[]> pairs, final Options options, ExecutorService pool) {
+		return pool.submit(() -> {
+			Report report = new Report(options.maxDifferences);
+			int baseLength = base.getRowLength(), otherLength = other.getRowLength();
+			int maxRun = Math.max(1, MAX_RUN_BYTES / Math.max(baseLength, otherLength));
+			byte[] a = new byte[maxRun * baseLength];
+			byte[] b = new byte[maxRun * otherLength];
+			for (int k = 0; k < n;) {
+				// pairs adjacent in both files, as in files sorted by the key, share a read
+				int run = 1;
+				while (k + run < n && run < maxRun && baseRows[k + run] == baseRows[k] + run
+						&& otherRows[k + run] == otherRows[k] + run)
+					run++;
+				base.readFully(ByteBuffer.wrap(a, 0, run * baseLength), base.rowOffset(baseRows[k]));
+				other.readFully(ByteBuffer.wrap(b, 0, run * otherLength), other.rowOffset(otherRows[k]));
+				for (int r = 0; r < run; r++) {
+					compareRow(pairs, a, r * baseLength, b, r * otherLength, baseRows[k + r], otherRows[k + r],
+							options, report);
+				}
+				k += run;
+			}
+			report.rowsCompared += n;
+			return report;
+		});
+	}
+
+	/**
+	 * Compares the common variables of two rows cell by cell.
+	 */
+	private static void compareRow(List<ReadStatVariable[]> pairs, byte[] a, int aoff, byte[] b, int boff,
+			long baseRow, long otherRow, Options options, Report report) {
+		boolean differs = false;
+		for (ReadStatVariable[] pair : pairs) {
+			ReadStatVariable va = pair[0], vb = pair[1];
+			int pa = aoff + va.offset, pb = boff + vb.offset;
+			if (cellEquals(va, a, pa, vb, b, pb, options.tolerance))
+				continue;
+			differs = true;
+			Difference difference = new Difference();
+			difference.kind = Kind.VALUE;
+			difference.baseRow = baseRow;
+			difference.compareRow = otherRow;
+			difference.column = va.name;
+			if (!report.isFull()) {
+				difference.baseValue = format(va, a, pa);
+				difference.compareValue = format(vb, b, pb);
+			}
+			report.add(difference);
+		}
+		if (differs)
+			report.rowsWithDifferences++;
+	}
+
+	static boolean cellEquals(ReadStatVariable va, byte[] a, int pa, ReadStatVariable vb, byte[] b, int pb,
+			double tolerance) {
+		int wa = va.storage_width, wb = vb.storage_width;
+		if (va.type == ReadstatType.READSTAT_TYPE_STRING) {
+			int la = trimmedLength(a, pa, wa), lb = trimmedLength(b, pb, wb);
+			return la == lb && KeyEncoder.compare(a, pa, b, pb, la) == 0;
+		}
+		if (wa == wb && KeyEncoder.compare(a, pa, b, pb, wa) == 0)
+			return true;
+		boolean ma = SASXportConverter.isMissingValue(a, pa, wa), mb = SASXportConverter.isMissingValue(b, pb, wb);
+		if (ma || mb)
+			return ma && mb && a[pa] == b[pb];
+		double da = PrimitiveUtils.xpt2ieee(a, pa, wa), db = PrimitiveUtils.xpt2ieee(b, pb, wb);
+		return da == db || Math.abs(da - db) <= tolerance;
+	}
+
+	private static int trimmedLength(byte[] row, int pos, int width) {
+		int len = width;
+		while (len > 0 && (row[pos + len - 1] == ' ' || row[pos + len - 1] == 0))
+			len--;
+		return len;
+	}
+
+	/**
+	 * Cell as shown in the report: strings without trailing blanks, missing
+	 * numerics as ., ._ or .A to .Z.
+	 */
+	static String format(ReadStatVariable variable, byte[] row, int pos) {
+		int width = variable.storage_width;
+		if (variable.type == ReadstatType.READSTAT_TYPE_STRING)
+			return new String(row, pos, trimmedLength(row, pos, width), IO.CHARSET);
+		if (SASXportConverter.isMissingValue(row, pos, width))
+			return row[pos] == '.' ? "." : "." + (char) row[pos];
+		double value = PrimitiveUtils.xpt2ieee(row, pos, width);
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+
+	private static Difference unmatched(Kind kind, long baseRow, long otherRow, String key) {
+		Difference difference = new Difference();
+		difference.kind = kind;
+		difference.baseRow = baseRow;
+		difference.compareRow = otherRow;
+		if (kind == Kind.ONLY_IN_BASE)
+			difference.baseValue = key;
+		else
+			difference.compareValue = key;
+		return difference;
+	}
+
+	/**
+	 * Key values of a row, read from the file it came from.
+	 */
+	private static String keyText(SASXportPositionalReader reader, long row, ReadStatVariable[] keys)
+			throws IOException {
+		byte[] bytes = new byte[reader.getRowLength()];
+		reader.readFully(ByteBuffer.wrap(bytes), reader.rowOffset(row));
+		StringBuilder sb = new StringBuilder();
+		for (ReadStatVariable key : keys) {
+			ReadStatVariable variable = reader.getMetaData().variables[reader.getVariableIndex(key.name)];
+			if (sb.length() > 0)
+				sb.append(", ");
+			sb.append(format(variable, bytes, variable.offset));
+		}
+		return sb.toString();
+	}
+
+	private static byte[] read(SASXportPositionalReader reader, long firstRow, int count) throws IOException {
+		byte[] buffer = new byte[count * reader.getRowLength()];
+		if (count > 0)
+			reader.readFully(ByteBuffer.wrap(buffer), reader.rowOffset(firstRow));
+		return buffer;
+	}
+
+	/**
+	 * Whether rows of both files are laid out byte for byte alike, so that equal
+	 * bytes mean equal rows.
+	 */
+	private static boolean isSameLayout(XPTContext a, XPTContext b, List<ReadStatVariable[]> pairs) {
+		if (a.row_length != b.row_length || a.var_count != b.var_count || pairs.size() != a.var_count)
+			return false;
+		for (ReadStatVariable[] pair : pairs) {
+			if (pair[0].offset != pair[1].offset || pair[0].storage_width != pair[1].storage_width)
+				return false;
+		}
+		return true;
+	}
+}
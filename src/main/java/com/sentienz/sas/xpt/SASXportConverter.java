@@ -1,18 +1,20 @@
 package com.sentienz.sas.xpt;
 
 import java.io.Closeable;
-import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InvalidObjectException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
 
-import com.google.gson.Gson;
 import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
 import com.sentienz.sas.xpt.XPTTypes.ReadstatAlignment;
 import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
@@ -21,9 +23,10 @@ import com.sentienz.sas.xpt.XPTTypes.TimeStamp;
 import com.sentienz.sas.xpt.XPTTypes.XPTContext;
 import com.sentienz.sas.xpt.XPTTypes.XPTHeader;
 import com.sentienz.sas.xpt.XPTTypes.XPTNameString;
+import com.sentienz.sas.xpt.utils.ChannelBlockReader;
 import com.sentienz.sas.xpt.utils.PrimitiveUtils;
-import com.sentienz.sas.xpt.utils.XPTReaderUtils;
 import com.sentienz.sas.xpt.utils.IO;
+import com.sentienz.sas.xpt.utils.MissingValues;
 
 public class SASXportConverter implements Closeable {
 
@@ -33,20 +36,36 @@ public class SASXportConverter implements Closeable {
 
 	public static short SAS_COLUMN_TYPE_CHR = 0x02;
 
+	/**
+	 * Block size for readers that only parse the header and read rows some
+	 * other way.
+	 */
+	static final int HEADER_BUFFER_SIZE = 64 * 1024;
+
 	protected boolean debug = false;
 	protected boolean processBlankRecords = false;
 	protected boolean done = false;
 	protected boolean convertDate9ToString = true;
 	protected InputStream rawin;
+	protected ReadableByteChannel rawChannel;
 
 	protected XPTContext ctx;
-	protected DataInputStream in;
+	protected ChannelBlockReader in;
+	protected SASXportRowDecoder rowDecoder;
+	protected int bufferSize = ChannelBlockReader.DEFAULT_BLOCK_SIZE;
 
 	protected byte[] DUMMY_BUFFER = new byte[LINE_LEN];
 
 	protected long offset = 0;
-	protected int num_blank_rows = 0;
-	protected int rowCount = 0;
+	protected byte[] pushback = null;
+	protected int pushbackPos = 0;
+	protected boolean memberEnded = false;
+	protected long num_blank_rows = 0;
+	protected long rowCount = 0;
+
+	protected SASXportSampling sampling = null;
+	protected SASXportSampling.Selector selector = null;
+	protected long nextSelected = -1;
 
 	protected byte row[] = null;
 	protected byte blank_row[] = null;
@@ -54,9 +73,12 @@ public class SASXportConverter implements Closeable {
 	protected List<String> record = null;
 	protected List<ReadstatValue> primitiveRecord = null;
 
+	/**
+	 * Opens a plain, gzip or zstd compressed file, see {@link SASXportInputs}.
+	 */
 	public SASXportConverter(String fileName) throws Exception {
 
-		this(new FileInputStream(fileName));
+		this(SASXportInputs.open(fileName));
 
 	}
 
@@ -64,12 +86,55 @@ public class SASXportConverter implements Closeable {
 		this.rawin = in;
 	}
 
+	/**
+	 * @param bufferSize size of the block read from the stream at once, up to
+	 *                   {@link ChannelBlockReader#MAX_BLOCK_SIZE}
+	 */
+	public SASXportConverter(InputStream in, int bufferSize) {
+		this.rawin = in;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Reads from a channel directly. Seekable channels make
+	 * {@link #seekTo(long)} a repositioning instead of a read.
+	 */
+	public SASXportConverter(ReadableByteChannel channel, int bufferSize) {
+		this.rawChannel = channel;
+		this.bufferSize = bufferSize;
+	}
+
 	protected void init() throws Exception {
-		in = new DataInputStream(rawin);
+		initMeta();
+		readNextRecord();
+	}
+
+	protected void initMeta() throws Exception {
+		openReader();
 		ctx = new XPTContext();
-		PrimitiveUtils.memset(blank_row, (byte) ' ', ctx.row_length);
 		readMeta();
-		readNextRecord();
+	}
+
+	/**
+	 * Parses the library header and then the member whose header starts at
+	 * <code>memberOffset</code>, 0 meaning the one right after the library
+	 * header.
+	 */
+	protected void initMeta(long memberOffset) throws Exception {
+		openReader();
+		ctx = new XPTContext();
+		readLibraryHeader();
+		if (memberOffset > 0)
+			seekTo(memberOffset);
+		readMemberHeader();
+	}
+
+	protected void openReader() {
+		ReadableByteChannel channel = rawChannel;
+		if (channel == null)
+			channel = rawin instanceof FileInputStream ? ((FileInputStream) rawin).getChannel()
+					: Channels.newChannel(rawin);
+		in = new ChannelBlockReader(channel, bufferSize);
 	}
 
 	private void xport_read_record(byte[] record) throws IOException {
@@ -199,9 +264,8 @@ public class SASXportConverter implements Closeable {
 		byte[] line = createDefaultBuffer();
 		xport_read_record(line);
 
-		byte[] dst = createBuffer(129);
 		int src_len = ctx.version == 5 ? 8 : 32;
-		ctx.table_name = IO.readString(dst, 8, src_len);
+		ctx.table_name = IO.readString(line, 8, src_len);
 	}
 
 	private void xport_read_file_label_record() throws Exception {
@@ -209,9 +273,8 @@ public class SASXportConverter implements Closeable {
 		byte[] line = createDefaultBuffer();
 		xport_read_record(line);
 
-		byte[] dst = createBuffer(161);
 		int src_len = 40;
-		ctx.file_label = IO.readString(dst, 32, src_len);
+		ctx.file_label = IO.readString(line, 32, src_len);
 	}
 
 	private void xport_read_namestr_header_record() throws Exception {
@@ -274,6 +337,7 @@ public class SASXportConverter implements Closeable {
 			}
 		}
 
+		ctx.obs_start = offset;
 		ctx.row_length = 0;
 
 		int index_after_skipping = 0;
@@ -282,6 +346,7 @@ public class SASXportConverter implements Closeable {
 			ReadStatVariable variable = ctx.variables[i];
 			variable.index_after_skipping = index_after_skipping;
 			// todo deleted code for index after skipping
+			variable.offset = ctx.row_length;
 			ctx.row_length += variable.storage_width;
 		}
 		return nstr;
@@ -445,6 +510,62 @@ public class SASXportConverter implements Closeable {
 		}
 	}
 
+	/**
+	 * Checks whether the row slot just read is the blank padding after the last
+	 * row, followed by the next member's header. If so the header bytes are
+	 * pushed back so that {@link #nextMember()} can parse them.
+	 */
+	private boolean isMemberEnd(byte[] row, long slotStart) throws IOException {
+		int p = memberHeaderIndex(row, 0, ctx.row_length, slotStart);
+		if (p < 0)
+			return false;
+
+		int inSlot = ctx.row_length - p;
+		if (inSlot < MEMBER_HEADER.length) {
+			ByteBuffer rest = in.peek(MEMBER_HEADER.length - inSlot);
+			if (rest == null)
+				return false;
+			for (int i = inSlot; i < MEMBER_HEADER.length; i++) {
+				if (rest.get(rest.position() + i - inSlot) != MEMBER_HEADER[i])
+					return false;
+			}
+		}
+		pushback = Arrays.copyOfRange(row, p, ctx.row_length);
+		pushbackPos = 0;
+		offset -= inSlot;
+		return true;
+	}
+
+	/**
+	 * Start of the record that opens every member after the first, covering both
+	 * MEMBER and MEMBV8.
+	 */
+	static final byte[] MEMBER_HEADER = "HEADER RECORD*******MEMB".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Finds a member header inside a row slot: it starts at the first 80 byte
+	 * aligned position of the slot and everything before it is blank padding.
+	 * Only the part of the header that falls inside the slot is compared.
+	 * 
+	 * @param slotStart file offset of the slot
+	 * @return the index of the header relative to <code>off</code>, or -1
+	 */
+	static int memberHeaderIndex(byte[] row, int off, int row_length, long slotStart) {
+		int p = (int) ((LINE_LEN - slotStart % LINE_LEN) % LINE_LEN);
+		if (p >= row_length)
+			return -1;
+		for (int i = 0; i < p; i++) {
+			if (row[off + i] != ' ')
+				return -1;
+		}
+		int n = Math.min(MEMBER_HEADER.length, row_length - p);
+		for (int i = 0; i < n; i++) {
+			if (row[off + p + i] != MEMBER_HEADER[i])
+				return -1;
+		}
+		return p;
+	}
+
 	private boolean isBlankRow(byte[] row) {
 		boolean row_is_blank = true;
 		for (int pos = 0; pos < ctx.row_length; pos++) {
@@ -456,23 +577,21 @@ public class SASXportConverter implements Closeable {
 		return row_is_blank;
 	}
 
-	private boolean sas_validate_tag(byte tag) {
-		if (tag == '_' || (tag >= 'A' && tag <= 'Z'))
-			return true;
-
-		return false;
-	}
-
 	private int read_bytes(byte[] buffer, int len) throws IOException {
-		int off = len;
-		try {
-			in.readFully(buffer, 0, len);
-		} catch (Exception e) {
+		int n = 0;
+		if (pushback != null) {
+			n = Math.min(len, pushback.length - pushbackPos);
+			System.arraycopy(pushback, pushbackPos, buffer, 0, n);
+			pushbackPos += n;
+			if (pushbackPos == pushback.length)
+				pushback = null;
+		}
+		if (n < len && in.readFully(buffer, n, len - n) < len - n) {
 			System.out.println("!!WARN!! Reached EOF before read_fully, Offset: " + offset);
 			return -1;
 		}
-		offset += off;
-		return off;
+		offset += len;
+		return len;
 	}
 
 	public boolean isDebug() {
@@ -499,7 +618,7 @@ public class SASXportConverter implements Closeable {
 		return row;
 	}
 
-	public int getRowCount() {
+	public long getRowCount() {
 		return rowCount;
 	}
 
@@ -520,25 +639,97 @@ public class SASXportConverter implements Closeable {
 		in = null;
 	}
 
-	protected void seek(int offset) throws IOException {
-		int len = 0;
-		do {
-			len = Math.min(ctx.row_length, offset);
-			int read = read_bytes(DUMMY_BUFFER, len);
-			if (read <= 0) {
-				done = true;
-				close();
-				break;
-			}
-			offset -= read;
-		} while (offset > 0);
+	/**
+	 * Moves forward to the given absolute byte offset, repositioning seekable
+	 * inputs and reading through others.
+	 */
+	protected void seekTo(long position) throws IOException {
+		if (position < offset)
+			throw new IOException("Can not seek backwards from " + offset + " to " + position);
+		pushback = null;
+		long skipped = in.skip(position - offset);
+		offset += skipped;
+		if (offset < position) {
+			done = true;
+			close();
+		}
+	}
+
+	protected void seek(long offset) throws IOException {
+		long skipped = in.skip(offset);
+		this.offset += skipped;
+		if (skipped < offset) {
+			done = true;
+			close();
+		}
+	}
+
+	/**
+	 * Restricts the rows returned from now on, in this and any following member.
+	 * Rows that are not selected are read past without being decoded; the
+	 * offset and row selection count row slots of the member, while the limit
+	 * counts returned rows and stops reading the file once reached.
+	 * Reservoir sampling needs the row count and is not supported here.
+	 */
+	public void setSampling(SASXportSampling sampling) {
+		if (sampling != null && sampling.mode == SASXportSampling.Mode.RESERVOIR)
+			throw new IllegalArgumentException("Reservoir sampling needs the row count, use a random access reader");
+		this.sampling = sampling;
+		if (ctx != null)
+			startSampling();
+	}
+
+	private void startSampling() {
+		selector = sampling == null ? null : sampling.selector(Long.MAX_VALUE);
+		nextSelected = -1;
+		ctx.row_limit = sampling == null ? 0 : sampling.limit;
+	}
+
+	/**
+	 * Whether the sampling selects the given row slot. Slots must be asked for
+	 * in ascending order.
+	 */
+	private boolean isSelected(long slot) {
+		while (nextSelected < slot)
+			nextSelected = selector.next();
+		return nextSelected == slot;
 	}
 
 	protected void readNextRecord() throws Exception {
 
-		if (done)
+		if (!readNextRow())
 			return;
 
+		if (processBlankRecords) {
+			while (num_blank_rows > 0) {
+				processRecord(blank_row, ctx.row_length);
+				if (++(ctx.parsed_row_count) == ctx.row_limit) {
+					done = true;
+					throw new RuntimeException("Invalid read situation.");
+				}
+				num_blank_rows--;
+			}
+		}
+
+		processRecord(row, ctx.row_length);
+	}
+
+	/**
+	 * Reads the next non blank row into {@link #row} without decoding it. Rows
+	 * returned here count towards the row limit, whether they are decoded or
+	 * visited.
+	 * 
+	 * @return false once the end of the data or the row limit is reached
+	 */
+	protected boolean readNextRow() throws IOException {
+
+		if (done)
+			return false;
+		if (ctx.row_limit > 0 && ctx.parsed_row_count >= ctx.row_limit) {
+			close();
+			return false;
+		}
+
 		while (true) {
 			rowCount++;
 			int bytes_read = read_bytes(row, ctx.row_length);
@@ -546,102 +737,100 @@ public class SASXportConverter implements Closeable {
 				done = true;
 				break;
 			}
+			if (isMemberEnd(row, offset - ctx.row_length)) {
+				rowCount--;
+				done = true;
+				memberEnded = true;
+				return false;
+			}
 			if (isBlankRow(row)) {
 				num_blank_rows++;
 				continue;
-			} else {
-				break;
 			}
+			if (selector != null && !isSelected(rowCount - 1)) {
+				if (nextSelected == Long.MAX_VALUE)
+					done = true;
+				else
+					continue;
+			}
+			break;
 		}
 		if (done) {
 			close();
-			return;
-		}
-		if (processBlankRecords) {
-			while (num_blank_rows > 0) {
-				processRecord(blank_row, ctx.row_length);
-				if (++(ctx.parsed_row_count) == ctx.row_limit) {
-					done = true;
-					throw new RuntimeException("Invalid read situation.");
-				}
-				num_blank_rows--;
-			}
+			return false;
 		}
+		ctx.parsed_row_count++;
+		return true;
+	}
 
-		processRecord(row, ctx.row_length);
+	protected void processRecord(byte[] row, int row_length) {
+		record = new ArrayList<String>(ctx.var_count);
+		primitiveRecord = new ArrayList<ReadstatValue>(ctx.var_count);
+		decodeRecord(row, 0, record, primitiveRecord);
+		if (debug)
+			System.out.println(record);
+	}
 
-		if (++(ctx.parsed_row_count) == ctx.row_limit) {
-			done = true;
-		}
+	/**
+	 * Decodes one row starting at <code>pos</code> into the given lists. Only
+	 * reads the parsed metadata, so it may be called concurrently once
+	 * {@link #readMeta()} has completed.
+	 * 
+	 * @param primitiveRecord may be null when only the string values are needed
+	 */
+	protected void decodeRecord(byte[] row, int pos, List<String> record, List<ReadstatValue> primitiveRecord) {
+		rowDecoder.decode(row, pos, record, primitiveRecord);
 	}
 
-	protected void processRecord(byte[] row, int row_length) {
+	/**
+	 * Pushes the selected columns of one row to the visitor straight from the raw
+	 * bytes. Strings are passed with their trailing blanks cut off, numerics are
+	 * converted without allocation. Like {@link #decodeRecord} this only reads
+	 * the parsed metadata.
+	 * 
+	 * @param columns variable indexes to visit, or null for all of them
+	 */
+	protected void visitRow(byte[] row, int off, long rowIndex, int[] columns, SASXportRowVisitor visitor) {
+		rowDecoder.visit(row, off, rowIndex, columns, visitor);
+	}
 
-		int pos = 0;
-		String string = null;
-		record = new ArrayList<String>();
-		primitiveRecord = new ArrayList<ReadstatValue>();
+	public SASXportRowDecoder getRowDecoder() {
+		return rowDecoder;
+	}
 
-		for (int i = 0; i < ctx.var_count; i++) {
-			ReadStatVariable variable = ctx.variables[i];
-			ReadstatValue value = new ReadstatValue();
-			value.type = variable.type;
-
-			if (variable.type == ReadstatType.READSTAT_TYPE_STRING) {
-				string = IO.readString(row, pos, variable.storage_width);
-				if (debug)
-					System.out.print(" < " + string + " >, ");
-				value.tvalue = string;
-				record.add(string);
-			} else {
-				double dval = 0.0d;
-				if (variable.storage_width <= XPTTypes.XPORT_MAX_DOUBLE_SIZE
-						&& variable.storage_width >= XPTTypes.XPORT_MIN_DOUBLE_SIZE) {
-					byte full_value[] = new byte[8];
-					if (PrimitiveUtils.memcmp(full_value, 1, row, pos + 1, variable.storage_width - 1)
-							&& (row[pos] == '.' || sas_validate_tag(row[pos]))) {
-						if (row[pos] == '.') {
-							value.is_system_missing = 1;
-						} else {
-							value.tag = row[pos];
-							value.is_tagged_missing = 1;
-						}
-					} else {
-						PrimitiveUtils.memcpy(full_value, 0, row, pos, variable.storage_width);
-						dval = PrimitiveUtils.xpt2ieeeSimple(full_value);
-					}
-				}
-				value.value = dval;
-				String val = "" + dval;
-				if (convertDate9ToString && dval != 0 && variable.format.toLowerCase().contains("date")) {
-					val = XPTReaderUtils.convertSASDate9ToString(variable.format.toLowerCase(), dval);
-				}
-				record.add(val);
-				if (debug)
-					System.out.print(value.value + ", ");
-			}
-			primitiveRecord.add(value);
-			pos += variable.storage_width;
-		}
-		if (debug)
-			System.out.println();
+	/**
+	 * A numeric is missing when its first byte is '.', '_' or a letter and all
+	 * other bytes are zero.
+	 */
+	protected static boolean isMissingValue(byte[] row, int pos, int width) {
+		return MissingValues.isMissing(row, pos, width);
 	}
 
 	public void readMeta() throws Exception {
+		readLibraryHeader();
+		readMemberHeader();
+	}
+
+	protected void readLibraryHeader() throws Exception {
 
-		XPTHeader header = xport_read_library_record();
-		System.out.println(new Gson().toJson(header));
+		xport_read_library_record();
 
 		xport_skip_record();
 
-		TimeStamp ts = xport_read_timestamp_record();
-		System.out.println(new Gson().toJson(ts));
+		xport_read_timestamp_record();
+	}
+
+	/**
+	 * Parses the member header at the current position, up to and including the
+	 * OBS header.
+	 */
+	protected void readMemberHeader() throws Exception {
+
+		ctx.member_offset = offset;
 
-		XPTHeader memberHeader = xport_expect_header_record("MEMBER", "MEMBV8");
-		System.out.println(new Gson().toJson(memberHeader));
+		xport_expect_header_record("MEMBER", "MEMBV8");
 
-		XPTHeader descHeader = xport_expect_header_record("DSCRPTR", "DSCPTV8");
-		System.out.println(new Gson().toJson(descHeader));
+		xport_expect_header_record("DSCRPTR", "DSCPTV8");
 
 		xport_read_table_name_record();
 
@@ -649,10 +838,9 @@ public class SASXportConverter implements Closeable {
 
 		xport_read_namestr_header_record();
 
-		List<XPTNameString> nstrs = xport_read_variables();
-		System.out.println(new Gson().toJson(nstrs));
+		xport_read_variables();
 
-		System.out.println(new Gson().toJson(ctx));
+		rowDecoder = SASXportRowDecoder.compile(ctx, convertDate9ToString);
 
 		if (ctx.row_length == 0) {
 			done = true;
@@ -660,17 +848,44 @@ public class SASXportConverter implements Closeable {
 		} else {
 			row = new byte[ctx.row_length];
 			blank_row = new byte[ctx.row_length];
+			PrimitiveUtils.memset(blank_row, (byte) ' ', ctx.row_length);
+			startSampling();
 		}
 	}
 
-	public static void main(String[] args) {
-		try {
-			SASXportConverter converter = new SASXportConverter("/Users/ravi1/Downloads/test.sasxpt");
-			converter.init();
-			converter.close();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+	/**
+	 * True once the current member's rows are exhausted and another member
+	 * follows.
+	 */
+	public boolean hasNextMember() {
+		return memberEnded;
+	}
+
+	/**
+	 * Moves on to the next member of the file. Its metadata replaces
+	 * {@link #getMetaData()}; the previous context object is left untouched.
+	 * 
+	 * @return false if there is no further member
+	 */
+	public boolean nextMember() throws Exception {
+		if (!memberEnded)
+			return false;
+
+		XPTContext next = new XPTContext();
+		next.version = ctx.version;
+		next.timestamp = ctx.timestamp;
+		next.file_size = ctx.file_size;
+		next.member_index = ctx.member_index + 1;
+		ctx = next;
+
+		memberEnded = false;
+		done = false;
+		rowCount = 0;
+		num_blank_rows = 0;
+		readMemberHeader();
+		if (!done)
+			readNextRecord();
+		return true;
 	}
 
 }
\ No newline at end of file
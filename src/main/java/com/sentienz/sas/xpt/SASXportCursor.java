@@ -0,0 +1,61 @@
+package com.sentienz.sas.xpt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Position of a {@link SASXportFileIterator} that can be stored and used to
+ * resume reading later, possibly in another process. Besides the row it records
+ * the member and the file's size and modification time, so that resuming
+ * against a file that changed in the meantime fails instead of returning the
+ * wrong rows.
+ *
+ * <pre>
+ * SASXportCursor cursor = iterator.getCursor();
+ * ...
+ * SASXportFileIterator resumed = new SASXportFileIterator(cursor);
+ * </pre>
+ */
+public class SASXportCursor implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public String fileName;
+	public long fileSize;
+	public long lastModified;
+
+	/** index of the member in the file, from 0 */
+	public int member;
+	/** byte offset of the member header */
+	public long memberOffset;
+	/** byte offset of the member's first row, checked when resuming */
+	public long obsStart;
+	public int rowLength;
+
+	/** row slot that the next call to next() returns, blank rows included */
+	public long row;
+
+	/**
+	 * Byte offset of the row the cursor points at.
+	 */
+	public long getOffset() {
+		return obsStart + row * rowLength;
+	}
+
+	/**
+	 * Fails if the file is not the one the cursor was taken from.
+	 */
+	void verify() throws IOException {
+		File file = new File(fileName);
+		if (!file.isFile())
+			throw new IOException("File not found: " + fileName);
+		if (file.length() != fileSize || file.lastModified() != lastModified)
+			throw new IOException("File changed since the cursor was taken: " + fileName);
+	}
+
+	@Override
+	public String toString() {
+		return fileName + "[member " + member + ", row " + row + "]";
+	}
+}
@@ -1,11 +1,11 @@
 package com.sentienz.sas.xpt;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
 
-import com.google.gson.Gson;
 import com.sentienz.sas.xpt.XPTTypes.ReadstatValue;
 
 public class SASXportFileIterator extends SASXportConverter implements Iterator<List<String>> {
@@ -13,17 +13,66 @@ public class SASXportFileIterator extends SASXportConverter implements Iterator<
 	private List<String> crecord = null;
 	private List<ReadstatValue> cPrimitiveRecord = null;
 	private byte crow[] = null;
+	private String fileName = null;
 
 	public SASXportFileIterator(String fileName) throws Exception {
 		super(fileName);
+		this.fileName = fileName;
 		init();
 	}
 
+	/**
+	 * Returns only the rows the sampling selects, see
+	 * {@link #setSampling(SASXportSampling)}.
+	 */
+	public SASXportFileIterator(String fileName, SASXportSampling sampling) throws Exception {
+		super(fileName);
+		this.fileName = fileName;
+		setSampling(sampling);
+		init();
+	}
+
+	/**
+	 * Resumes at the row a cursor was taken at. On an uncompressed file the
+	 * skipped rows are not read at all.
+	 * 
+	 * @throws IOException if the file changed since the cursor was taken
+	 */
+	public SASXportFileIterator(SASXportCursor cursor) throws Exception {
+		super(SASXportInputs.open(cursor.fileName));
+		this.fileName = cursor.fileName;
+		try {
+			cursor.verify();
+			initMeta(cursor.memberOffset);
+			ctx.member_index = cursor.member;
+			if (ctx.obs_start != cursor.obsStart || ctx.row_length != cursor.rowLength)
+				throw new IOException("Cursor does not match the layout of " + cursor.fileName);
+			if (!done) {
+				seekTo(cursor.getOffset());
+				rowCount = cursor.row;
+				readNextRecord();
+			}
+		} catch (Exception e) {
+			close();
+			throw e;
+		}
+	}
+
 	public SASXportFileIterator(InputStream is) throws Exception {
 		super(is);
 		init();
 	}
 
+	public SASXportFileIterator(InputStream is, int bufferSize) throws Exception {
+		super(is, bufferSize);
+		init();
+	}
+
+	/**
+	 * @deprecated byte offsets are not checked against row boundaries, use
+	 *             {@link #SASXportFileIterator(SASXportCursor)}
+	 */
+	@Deprecated
 	public SASXportFileIterator(String fileName, int offset) throws Exception {
 		this(fileName);
 		seek(offset);
@@ -55,23 +104,47 @@ public class SASXportFileIterator extends SASXportConverter implements Iterator<
 		return crow;
 	}
 
-	public static void main(String[] args) {
-		try {
+	/**
+	 * Position of the row the next call to {@link #next()} returns, or of the end
+	 * of the member once it is exhausted. Only available for iterators opened by
+	 * file name.
+	 */
+	public SASXportCursor getCursor() throws IOException {
+		if (fileName == null)
+			throw new IllegalStateException("Cursors need an iterator opened by file name");
 
-			SASXportFileIterator iterator = new SASXportFileIterator("/grid/data/xpt/test3.sasxpt");
-			while (iterator.hasNext()) {
-				List<String> row = iterator.next();
-				System.out.println(new Gson().toJson(row));
-			}
-			System.out.println("Total Rows: " + iterator.getRowCount());
-			iterator.close();
+		File file = new File(fileName);
+		SASXportCursor cursor = new SASXportCursor();
+		cursor.fileName = fileName;
+		cursor.fileSize = file.length();
+		cursor.lastModified = file.lastModified();
+		cursor.member = ctx.member_index;
+		cursor.memberOffset = ctx.member_offset;
+		cursor.obsStart = ctx.obs_start;
+		cursor.rowLength = ctx.row_length;
+		if (ctx.row_length > 0) {
+			// offset is past the pending row, or at the end of the member
+			long slots = Math.max(0, offset - ctx.obs_start) / ctx.row_length;
+			cursor.row = isDone() ? slots : slots - 1;
+		}
+		return cursor;
+	}
 
-			Calendar cal = Calendar.getInstance();
-			cal.set(1960, 1, 1);
-			cal.add(Calendar.DAY_OF_YEAR, 19778);
-			System.out.println(cal.toString());
-		} catch (Exception e) {
-			e.printStackTrace();
+	/**
+	 * Pushes the selected columns of all remaining rows to the visitor without
+	 * materializing them. The iterator is exhausted afterwards.
+	 * 
+	 * @param columns variable indexes to visit, or null for all of them
+	 * @return the number of rows visited
+	 */
+	public long visitRemaining(int[] columns, SASXportRowVisitor visitor) throws Exception {
+		long visited = 0;
+		while (!isDone()) {
+			visitRow(getRow(), 0, getRowCount() - 1, columns, visitor);
+			visited++;
+			if (!readNextRow())
+				break;
 		}
+		return visited;
 	}
 }
@@ -0,0 +1,42 @@
+package com.sentienz.sas.xpt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Storage on a local file, read with {@link FileChannel#read(ByteBuffer, long)}
+ * so that threads never contend for a file position.
+ *
+ * Note that interrupting a thread blocked in a read closes the channel for
+ * every user, as with any {@link FileChannel}.
+ */
+public class SASXportFileStorage implements SASXportStorage {
+
+	private final FileChannel channel;
+
+	public SASXportFileStorage(String fileName) throws IOException {
+		this(FileChannel.open(Paths.get(fileName), StandardOpenOption.READ));
+	}
+
+	/**
+	 * Takes ownership of the channel, which is closed with the storage.
+	 */
+	public SASXportFileStorage(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	public int read(ByteBuffer dst, long position) throws IOException {
+		return channel.read(dst, position);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
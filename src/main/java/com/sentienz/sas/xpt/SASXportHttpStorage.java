@@ -0,0 +1,181 @@
+package com.sentienz.sas.xpt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage behind an HTTP server or object store gateway that answers byte
+ * range GETs. Every read is a single request for exactly the range asked for,
+ * so wrap it in a {@link SASXportBlockCache} to read in larger blocks and keep
+ * the header and recently read rows local.
+ *
+ * <pre>
+ * SASXportStorage storage = new SASXportBlockCache(new SASXportHttpStorage("https://store/data/ae.xpt"),
+ * 		SASXportBlockCache.DEFAULT_BLOCK_SIZE, 64 * 1024 * 1024);
+ * SASXportPositionalReader reader = new SASXportPositionalReader(storage);
+ * </pre>
+ */
+public class SASXportHttpStorage implements SASXportStorage {
+
+	public static final int DEFAULT_TIMEOUT_MILLIS = 30 * 1000;
+
+	private final URL url;
+	private final Map<String, String> headers = new LinkedHashMap<String, String>();
+	private int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+	private volatile long size = -1;
+
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong bytesFetched = new AtomicLong();
+
+	public SASXportHttpStorage(String url) throws IOException {
+		this(new URL(url));
+	}
+
+	public SASXportHttpStorage(URL url) {
+		this.url = url;
+	}
+
+	/**
+	 * Adds a header sent with every request, for example for authorization.
+	 */
+	public SASXportHttpStorage setHeader(String name, String value) {
+		headers.put(name, value);
+		return this;
+	}
+
+	public SASXportHttpStorage setTimeout(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+		return this;
+	}
+
+	/**
+	 * Size as reported by the server on first use; the object is assumed not to
+	 * change while it is read.
+	 */
+	public long size() throws IOException {
+		if (size < 0)
+			size = fetchSize();
+		return size;
+	}
+
+	public int read(ByteBuffer dst, long position) throws IOException {
+		if (!dst.hasRemaining())
+			return 0;
+		long total = size();
+		if (position >= total)
+			return -1;
+		int len = (int) Math.min(dst.remaining(), total - position);
+
+		HttpURLConnection connection = open("GET");
+		connection.setRequestProperty("Range", "bytes=" + position + "-" + (position + len - 1));
+		int status = connection.getResponseCode();
+		if (status != HttpURLConnection.HTTP_PARTIAL) {
+			// a server ignoring the range would send the whole file
+			if (status == HttpURLConnection.HTTP_OK)
+				connection.disconnect();
+			else
+				discard(connection);
+			throw new IOException("Range request for " + url + " answered with HTTP " + status);
+		}
+		requestCount.incrementAndGet();
+		int n = 0;
+		// closing the fully read body lets the connection be reused
+		try (InputStream in = connection.getInputStream()) {
+			byte[] chunk = new byte[Math.min(len, 64 * 1024)];
+			while (n < len) {
+				int r = in.read(chunk, 0, Math.min(chunk.length, len - n));
+				if (r < 0)
+					break;
+				dst.put(chunk, 0, r);
+				n += r;
+			}
+		}
+		bytesFetched.addAndGet(n);
+		return n;
+	}
+
+	/**
+	 * Number of range requests sent so far.
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * Number of body bytes received by range requests so far.
+	 */
+	public long getBytesFetched() {
+		return bytesFetched.get();
+	}
+
+	public void close() {
+		// idle connections are pooled and closed by HttpURLConnection
+	}
+
+	/**
+	 * Asks with HEAD, falling back to a one byte range GET for servers that do
+	 * not report the length there.
+	 */
+	private long fetchSize() throws IOException {
+		HttpURLConnection connection = open("HEAD");
+		int status = connection.getResponseCode();
+		long length = connection.getContentLengthLong();
+		discard(connection);
+		if (status == HttpURLConnection.HTTP_OK && length >= 0)
+			return length;
+
+		connection = open("GET");
+		connection.setRequestProperty("Range", "bytes=0-0");
+		status = connection.getResponseCode();
+		String range = connection.getHeaderField("Content-Range");
+		if (status == HttpURLConnection.HTTP_PARTIAL)
+			discard(connection);
+		else
+			connection.disconnect();
+		int slash = range == null ? -1 : range.lastIndexOf('/');
+		if (status != HttpURLConnection.HTTP_PARTIAL || slash < 0 || range.endsWith("/*"))
+			throw new IOException("Can not determine the size of " + url);
+		return Long.parseLong(range.substring(slash + 1).trim());
+	}
+
+	/**
+	 * Reads and closes whatever body came with a response.
+	 */
+	private static void discard(HttpURLConnection connection) {
+		try {
+			InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream()
+					: connection.getErrorStream();
+			if (in != null) {
+				byte[] skip = new byte[4096];
+				while (in.read(skip) >= 0)
+					;
+				in.close();
+			}
+		} catch (IOException e) {
+			connection.disconnect();
+		}
+	}
+
+	private HttpURLConnection open(String method) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod(method);
+		connection.setConnectTimeout(timeoutMillis);
+		connection.setReadTimeout(timeoutMillis);
+		connection.setUseCaches(false);
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			connection.setRequestProperty(header.getKey(), header.getValue());
+		}
+		return connection;
+	}
+
+	@Override
+	public String toString() {
+		return url.toString();
+	}
+}
@@ -0,0 +1,778 @@
+package com.sentienz.sas.xpt;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.KeyEncoder;
+import com.sentienz.sas.xpt.utils.RecordSorter;
+import com.sentienz.sas.xpt.utils.XPTReaderUtils;
+import com.sentienz.sas.xpt.utils.XXHash64;
+
+/**
+ * Persistent secondary index on one or more columns of an XPT file, stored
+ * next to it and memory mapped for lookups.
+ *
+ * Every entry is the {@link KeyEncoder encoded} key followed by the row
+ * number. A {@link Type#SORTED} index keeps the entries in key order and
+ * answers equality and range lookups by binary search. A {@link Type#HASH}
+ * index groups them by hash bucket, so an equality lookup reads one bucket,
+ * found through a bucket table after the entries. Entries with the same key
+ * are in row order.
+ *
+ * Building takes one pass over the key columns within a fixed memory budget:
+ * row aligned runs that each fill a share of it are encoded and sorted in
+ * parallel. When all entries fit, about key width plus 12 bytes per row, the
+ * runs stay in memory; otherwise each is written to a temporary file next to
+ * the index. The runs are then merged straight into the file, in several
+ * passes if there are too many to merge at once. The index records the size and modification time of the data file and
+ * refuses to open once the file has changed. It also records the member's
+ * exact row count, which spares readers the check for a following member.
+ *
+ * <pre>
+ * SASXportIndex.build("ae.xpt", Type.HASH, 4, "USUBJID");
+ * List&lt;List&lt;String&gt;&gt; rows = reader.readMatching("USUBJID", "01-701-1015");
+ * </pre>
+ */
+public class SASXportIndex implements Closeable {
+
+	public static enum Type {
+		HASH, SORTED
+	}
+
+	public static final long DEFAULT_MEMORY_BYTES = 256 * 1024 * 1024;
+
+	private static final byte[] MAGIC = "XPTIDX02".getBytes(StandardCharsets.US_ASCII);
+
+	/** bytes of entries mapped at once, rounded down to whole entries */
+	private static final long SEGMENT_BYTES = 1l << 30;
+
+	/** most runs merged in one pass */
+	private static final int MAX_FAN_IN = 128;
+
+	private static final int IO_BUFFER_SIZE = 1024 * 1024;
+
+	private final Type type;
+	private final String[] columns;
+	private final ReadStatVariable[] variables;
+	private final int keyLength;
+	private final int entryLength;
+	private final long entryCount;
+	private final long bucketCount;
+
+	private final FileChannel channel;
+	private final long tableStart;
+	private final long entriesStart;
+	private final MappedByteBuffer[] segments;
+	private final long entriesPerSegment;
+	private final MappedByteBuffer[] tableSegments;
+
+	private SASXportIndex(Path file, SASXportPositionalReader reader, long dataSize, long dataModified)
+			throws IOException {
+		XPTContext meta = reader.getMetaData();
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate((int) Math.min(channel.size(), 64 * 1024));
+			while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+				// fill
+			}
+			header.flip();
+
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new InvalidObjectException("Not an XPT index: " + file);
+			type = Type.values()[header.get()];
+			columns = new String[header.get()];
+			for (int i = 0; i < columns.length; i++) {
+				byte[] name = new byte[header.get()];
+				header.get(name);
+				columns[i] = new String(name, StandardCharsets.UTF_8);
+			}
+			long size = header.getLong();
+			long modified = header.getLong();
+			long memberOffset = header.getLong();
+			long obsStart = header.getLong();
+			int rowLength = header.getInt();
+			keyLength = header.getInt();
+			long rowCount = header.getLong();
+			long nextMemberOffset = header.getLong();
+			entryCount = header.getLong();
+			bucketCount = header.getLong();
+			entriesStart = header.position();
+
+			if (size != dataSize || modified != dataModified || memberOffset != meta.member_offset
+					|| obsStart != meta.obs_start || rowLength != meta.row_length)
+				throw new IOException("Index is out of date: " + file);
+
+			variables = resolve(meta, columns);
+			if (keyLength != KeyEncoder.width(variables))
+				throw new InvalidObjectException("Index key does not match the columns: " + file);
+			reader.assumeRowCount(rowCount, nextMemberOffset);
+
+			entryLength = keyLength + 8;
+			tableStart = entriesStart + entryCount * entryLength;
+			entriesPerSegment = SEGMENT_BYTES / entryLength;
+			segments = map(entriesStart, entryCount, entryLength, entriesPerSegment);
+			tableSegments = type == Type.HASH ? map(tableStart, bucketCount + 1, 8, SEGMENT_BYTES / 8)
+					: new MappedByteBuffer[0];
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private MappedByteBuffer[] map(long start, long records, int recordLength, long perSegment) throws IOException {
+		int count = (int) ((records + perSegment - 1) / perSegment);
+		MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long first = i * perSegment;
+			long n = Math.min(perSegment, records - first);
+			mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + first * recordLength, n * recordLength);
+		}
+		return mapped;
+	}
+
+	/**
+	 * Index file for the given data file and columns.
+	 */
+	public static Path indexPath(String dataFile, Type type, String... columns) {
+		StringBuilder sb = new StringBuilder(dataFile);
+		for (String column : columns) {
+			sb.append('.').append(column.toLowerCase(Locale.ROOT));
+		}
+		sb.append(type == Type.HASH ? ".hidx" : ".sidx");
+		return Paths.get(sb.toString());
+	}
+
+	/**
+	 * Opens an index, failing if it does not belong to the reader's file as it
+	 * is now.
+	 */
+	public static SASXportIndex open(Path indexFile, SASXportPositionalReader reader, String dataFile)
+			throws IOException {
+		File data = new File(dataFile);
+		return new SASXportIndex(indexFile, reader, data.length(), data.lastModified());
+	}
+
+	/**
+	 * Opens the up to date index on exactly these columns, preferring a hash
+	 * index.
+	 *
+	 * @return the index, or null if there is none
+	 */
+	public static SASXportIndex find(SASXportPositionalReader reader, String dataFile, String... columns) {
+		for (Type type : Type.values()) {
+			Path path = indexPath(dataFile, type, columns);
+			if (!Files.isRegularFile(path))
+				continue;
+			try {
+				return open(path, reader, dataFile);
+			} catch (IOException e) {
+				System.err.println("!!WARN!! Ignoring index " + path + ": " + e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Builds an index on the given columns of a data file and writes it to
+	 * {@link #indexPath}.
+	 */
+	public static Path build(String dataFile, Type type, int threads, String... columns) throws Exception {
+		try (SASXportPositionalReader reader = new SASXportPositionalReader(dataFile)) {
+			Path path = indexPath(dataFile, type, columns);
+			build(reader, dataFile, type, threads, path, columns);
+			return path;
+		}
+	}
+
+	public static void build(SASXportPositionalReader reader, String dataFile, Type type, int threads,
+			Path indexFile, String... columns) throws Exception {
+		build(reader, dataFile, type, threads, DEFAULT_MEMORY_BYTES, indexFile, columns);
+	}
+
+	/**
+	 * Builds an index holding at most about <code>memoryBytes</code> of entries
+	 * and merge buffers at once, shared by the threads.
+	 */
+	public static void build(final SASXportPositionalReader reader, String dataFile, final Type type, int threads,
+			long memoryBytes, Path indexFile, String... columns) throws Exception {
+		if (memoryBytes <= 0)
+			throw new IllegalArgumentException("Memory must be positive: " + memoryBytes);
+
+		File data = new File(dataFile);
+		long dataSize = data.length();
+		long dataModified = data.lastModified();
+
+		XPTContext meta = reader.getMetaData();
+		final ReadStatVariable[] variables = resolve(meta, columns);
+		final int keyLength = KeyEncoder.width(variables);
+		final int rowLength = meta.row_length;
+		// hash entries carry their bucket in front while sorting
+		final int prefix = type == Type.HASH ? 4 : 0;
+		final int recordLength = prefix + keyLength + 8;
+
+		// the bucket is fixed before any run is sorted, so the count comes from
+		// the rows there may be; blank rows or a following member only leave
+		// some buckets empty
+		long rows = reader.getRowCount();
+		final long buckets = type == Type.HASH ? bucketCount(rows) : 0;
+		final long bucketMask = buckets - 1;
+		final boolean spill = rows * recordLength > memoryBytes;
+		int workers = Math.max(1, threads);
+		long runRows = spill ? memoryBytes / workers / recordLength : (rows + workers - 1) / workers;
+		runRows = Math.max(1, Math.min(runRows, (Integer.MAX_VALUE - 8) / recordLength));
+		final Path tempDirectory = indexFile.toAbsolutePath().getParent();
+
+		// every run is listed as it is created, so that none is left behind when
+		// another task fails
+		final List<Run> created = Collections.synchronizedList(new ArrayList<Run>());
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+		try {
+			List<Run> runs = SASXportChunkRunner.run(reader, runRows, pool, (firstRow, count) -> {
+				byte[] records = new byte[(int) count * recordLength];
+				byte[] buffer = new byte[Math.max(rowLength, 64 * 1024 / rowLength * rowLength)];
+				ByteBuffer bb = ByteBuffer.wrap(buffer);
+				int n = 0;
+				for (long row = firstRow; row < firstRow + count;) {
+					bb.clear();
+					bb.limit((int) Math.min(buffer.length / rowLength, firstRow + count - row) * rowLength);
+					int read = reader.readRows(row, bb);
+					if (read == 0)
+						break;
+					for (int r = 0; r < read; r++) {
+						if (reader.isBlankRow(buffer, r * rowLength))
+							continue;
+						int off = n * recordLength;
+						int end = KeyEncoder.encode(variables, buffer, r * rowLength, records, off + prefix);
+						putLong(records, end, row + r);
+						if (prefix > 0) {
+							long hash = XXHash64.hash(records, off + prefix, keyLength);
+							putInt(records, off, (int) (hash & bucketMask));
+						}
+						n++;
+					}
+					row += read;
+				}
+				RecordSorter.sort(records, recordLength, recordLength, n);
+				Run run = new MemoryRun(records, n, recordLength);
+				if (spill)
+					run = spill(run, recordLength, tempDirectory);
+				created.add(run);
+				return run;
+			});
+			// every row has been read, so the row count is exact
+			reader.assumeRowCount(reader.getRowCount(), reader.getNextMemberOffset());
+
+			long entries = 0;
+			for (Run run : runs) {
+				entries += run.count;
+			}
+			while (runs.size() > MAX_FAN_IN) {
+				runs = mergePass(runs, recordLength, memoryBytes, tempDirectory, created);
+			}
+
+			try (OutputStream os = Files.newOutputStream(tmp);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, IO_BUFFER_SIZE))) {
+
+				out.write(MAGIC);
+				out.writeByte(type.ordinal());
+				out.writeByte(columns.length);
+				for (String column : columns) {
+					byte[] name = column.getBytes(StandardCharsets.UTF_8);
+					out.writeByte(name.length);
+					out.write(name);
+				}
+				out.writeLong(dataSize);
+				out.writeLong(dataModified);
+				out.writeLong(meta.member_offset);
+				out.writeLong(meta.obs_start);
+				out.writeInt(rowLength);
+				out.writeInt(keyLength);
+				out.writeLong(reader.getRowCount());
+				out.writeLong(reader.getNextMemberOffset());
+				out.writeLong(entries);
+				out.writeLong(buckets);
+
+				long[] bucketSizes = merge(runs, recordLength, prefix, buckets, memoryBytes, out);
+
+				// the bucket table follows the entries, as the sizes are known only now
+				long start = 0;
+				for (int b = 0; b < buckets; b++) {
+					out.writeLong(start);
+					start += bucketSizes[b];
+				}
+				if (type == Type.HASH)
+					out.writeLong(start);
+			}
+			Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			// tasks still running after a failure may yet spill a run
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			Files.deleteIfExists(tmp);
+			synchronized (created) {
+				for (Run run : created) {
+					run.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a sorted run to a temporary file.
+	 */
+	private static Run spill(Run run, int recordLength, Path tempDirectory) throws IOException {
+		Path file = Files.createTempFile(tempDirectory, "xptidx", ".run");
+		try (SpillWriter out = new SpillWriter(file, recordLength)) {
+			while (run.next()) {
+				out.write(run.data(), run.offset());
+			}
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		return new FileRun(file, run.count, recordLength);
+	}
+
+	/**
+	 * Merges groups of {@link #MAX_FAN_IN} runs into fewer, longer runs, each
+	 * listed in <code>created</code>.
+	 */
+	private static List<Run> mergePass(List<Run> runs, int recordLength, long memoryBytes, Path tempDirectory,
+			List<Run> created) throws IOException {
+		List<Run> merged = new ArrayList<Run>();
+		for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+			List<Run> group = runs.subList(i, Math.min(runs.size(), i + MAX_FAN_IN));
+			for (Run run : group) {
+				run.open(mergeBufferBytes(recordLength, memoryBytes, group.size()));
+			}
+			Path file = Files.createTempFile(tempDirectory, "xptidx", ".run");
+			long count = 0;
+			try (SpillWriter out = new SpillWriter(file, recordLength)) {
+				PriorityQueue<Run> queue = queue(group, recordLength);
+				while (!queue.isEmpty()) {
+					Run run = queue.poll();
+					out.write(run.data(), run.offset());
+					count++;
+					if (run.next())
+						queue.add(run);
+				}
+			} catch (IOException | RuntimeException e) {
+				Files.deleteIfExists(file);
+				throw e;
+			}
+			Run run = new FileRun(file, count, recordLength);
+			created.add(run);
+			merged.add(run);
+			for (Run done : group) {
+				done.delete();
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Writes the entries of all runs in order, without the bucket prefix.
+	 *
+	 * @return the number of entries per bucket
+	 */
+	private static long[] merge(List<Run> runs, int recordLength, int prefix, long buckets, long memoryBytes,
+			DataOutputStream out) throws IOException {
+		for (Run run : runs) {
+			run.open(mergeBufferBytes(recordLength, memoryBytes, runs.size()));
+		}
+		long[] bucketSizes = new long[(int) buckets];
+		PriorityQueue<Run> queue = queue(runs, recordLength);
+		while (!queue.isEmpty()) {
+			Run run = queue.poll();
+			int off = run.offset();
+			if (prefix > 0)
+				bucketSizes[getInt(run.data(), off)]++;
+			out.write(run.data(), off + prefix, recordLength - prefix);
+			if (run.next())
+				queue.add(run);
+		}
+		return bucketSizes;
+	}
+
+	/**
+	 * Queue of the runs positioned on their first entry.
+	 */
+	private static PriorityQueue<Run> queue(List<Run> runs, final int recordLength) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, runs.size()),
+				(a, b) -> KeyEncoder.compare(a.data(), a.offset(), b.data(), b.offset(), recordLength));
+		for (Run run : runs) {
+			if (run.next())
+				queue.add(run);
+		}
+		return queue;
+	}
+
+	/**
+	 * Read buffer of each file run when <code>runs</code> are merged at once.
+	 */
+	private static int mergeBufferBytes(int recordLength, long memoryBytes, int runs) {
+		long bytes = Math.max(64 * 1024, Math.min(IO_BUFFER_SIZE * 8l, memoryBytes / (runs + 1)));
+		return (int) Math.max(recordLength, bytes / recordLength * recordLength);
+	}
+
+	/**
+	 * Sorted entries read one at a time, the current one at {@link #offset()}.
+	 */
+	private static abstract class Run {
+		final long count;
+
+		Run(long count) {
+			this.count = count;
+		}
+
+		void open(int bufferBytes) throws IOException {
+		}
+
+		/**
+		 * Moves to the next entry.
+		 *
+		 * @return false once the run is exhausted
+		 */
+		abstract boolean next() throws IOException;
+
+		abstract byte[] data();
+
+		abstract int offset();
+
+		void delete() throws IOException {
+		}
+	}
+
+	private static class MemoryRun extends Run {
+		final byte[] records;
+		final int recordLength;
+		int position = -1;
+
+		MemoryRun(byte[] records, int count, int recordLength) {
+			super(count);
+			this.records = records;
+			this.recordLength = recordLength;
+		}
+
+		boolean next() {
+			return ++position < count;
+		}
+
+		byte[] data() {
+			return records;
+		}
+
+		int offset() {
+			return position * recordLength;
+		}
+	}
+
+	private static class FileRun extends Run {
+		final Path file;
+		final int recordLength;
+		FileChannel channel;
+		ByteBuffer buffer;
+		long remaining;
+		int position;
+
+		FileRun(Path file, long count, int recordLength) {
+			super(count);
+			this.file = file;
+			this.recordLength = recordLength;
+		}
+
+		@Override
+		void open(int bufferBytes) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			buffer = ByteBuffer.allocate(bufferBytes);
+			buffer.limit(0);
+			remaining = count;
+			position = -recordLength;
+		}
+
+		boolean next() throws IOException {
+			if (remaining == 0)
+				return false;
+			remaining--;
+			position += recordLength;
+			if (position >= buffer.limit()) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), (remaining + 1) * recordLength));
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0)
+						throw new IOException("Run ended early: " + file);
+				}
+				buffer.flip();
+				position = 0;
+			}
+			return true;
+		}
+
+		byte[] data() {
+			return buffer.array();
+		}
+
+		int offset() {
+			return position;
+		}
+
+		@Override
+		void delete() throws IOException {
+			if (channel != null)
+				channel.close();
+			channel = null;
+			buffer = null;
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Appends entries to a run file.
+	 */
+	private static class SpillWriter implements AutoCloseable {
+		final FileChannel channel;
+		final ByteBuffer buffer;
+		final int recordLength;
+
+		SpillWriter(Path file, int recordLength) throws IOException {
+			this.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			this.buffer = ByteBuffer.allocate(Math.max(recordLength, IO_BUFFER_SIZE / recordLength * recordLength));
+			this.recordLength = recordLength;
+		}
+
+		void write(byte[] src, int off) throws IOException {
+			if (buffer.remaining() < recordLength)
+				flush();
+			buffer.put(src, off, recordLength);
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	private static long bucketCount(long entries) {
+		long buckets = 1;
+		while (buckets < entries / 2 && buckets < (1l << 30))
+			buckets <<= 1;
+		return buckets;
+	}
+
+	private static ReadStatVariable[] resolve(XPTContext meta, String[] columns) {
+		ReadStatVariable[] variables = new ReadStatVariable[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			int col = XPTReaderUtils.getVariableIndex(meta, columns[i]);
+			if (col < 0)
+				throw new IllegalArgumentException("Unknown variable: " + columns[i]);
+			variables[i] = meta.variables[col];
+		}
+		return variables;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String[] getColumns() {
+		return columns.clone();
+	}
+
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Rows whose key columns equal the given values, in row order.
+	 *
+	 * @param values one per column, see {@link KeyEncoder#encodeValue}
+	 */
+	public long[] lookup(Object... values) {
+		byte[] key = encode(values);
+		if (type == Type.SORTED) {
+			long from = search(key, false);
+			return rows(from, search(key, true));
+		}
+
+		long bucket = XXHash64.hash(key, 0, keyLength) & (bucketCount - 1);
+		long from = tableEntry(bucket), to = tableEntry(bucket + 1);
+		byte[] entry = new byte[entryLength];
+		// the bucket is sorted by key, so matches are adjacent
+		long first = -1, end = to;
+		for (long i = from; i < to; i++) {
+			entry(i, entry);
+			int c = KeyEncoder.compare(entry, 0, key, 0, keyLength);
+			if (c == 0 && first < 0)
+				first = i;
+			else if (c > 0) {
+				end = i;
+				break;
+			}
+		}
+		return first < 0 ? new long[0] : rows(first, end);
+	}
+
+	/**
+	 * Rows with keys from <code>low</code> up to and including
+	 * <code>high</code>, in row order. Only for {@link Type#SORTED} indexes.
+	 *
+	 * @param low  lower bound, or null for none
+	 * @param high upper bound, or null for none
+	 */
+	public long[] range(Object[] low, Object[] high) {
+		if (type != Type.SORTED)
+			throw new UnsupportedOperationException("Range lookups need a sorted index");
+		long from = low == null ? 0 : search(encode(low), false);
+		long to = high == null ? entryCount : search(encode(high), true);
+		long[] rows = rows(from, Math.max(from, to));
+		Arrays.sort(rows);
+		return rows;
+	}
+
+	/**
+	 * Number of rows {@link #range} would return, found by binary search alone.
+	 */
+	public long rangeCount(Object[] low, Object[] high) {
+		if (type != Type.SORTED)
+			throw new UnsupportedOperationException("Range lookups need a sorted index");
+		long from = low == null ? 0 : search(encode(low), false);
+		long to = high == null ? entryCount : search(encode(high), true);
+		return Math.max(0, to - from);
+	}
+
+	private byte[] encode(Object[] values) {
+		if (values.length != variables.length)
+			throw new IllegalArgumentException("Expected " + variables.length + " values, got " + values.length);
+		byte[] key = new byte[keyLength];
+		int off = 0;
+		for (int i = 0; i < values.length; i++) {
+			off = KeyEncoder.encodeValue(variables[i], values[i], key, off);
+		}
+		return key;
+	}
+
+	/**
+	 * First entry not smaller than the key, or greater than it with
+	 * <code>after</code>.
+	 */
+	private long search(byte[] key, boolean after) {
+		byte[] entry = new byte[entryLength];
+		long lo = 0, hi = entryCount;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			entry(mid, entry);
+			int c = KeyEncoder.compare(entry, 0, key, 0, keyLength);
+			if (c < 0 || (after && c == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private long[] rows(long from, long to) {
+		long[] rows = new long[(int) (to - from)];
+		byte[] entry = new byte[entryLength];
+		for (long i = from; i < to; i++) {
+			entry(i, entry);
+			rows[(int) (i - from)] = getLong(entry, keyLength);
+		}
+		return rows;
+	}
+
+	public int getKeyLength() {
+		return keyLength;
+	}
+
+	/**
+	 * Copies entry <code>i</code>, in key order: the encoded key followed by the
+	 * row as 8 big endian bytes, see {@link #rowOf(byte[])}.
+	 */
+	void entry(long i, byte[] dst) {
+		ByteBuffer segment = segments[(int) (i / entriesPerSegment)].duplicate();
+		segment.position((int) (i % entriesPerSegment) * entryLength);
+		segment.get(dst, 0, entryLength);
+	}
+
+	/**
+	 * Row number of an entry copied by {@link #entry(long, byte[])}.
+	 */
+	long rowOf(byte[] entry) {
+		return getLong(entry, keyLength);
+	}
+
+	private long tableEntry(long i) {
+		long perSegment = SEGMENT_BYTES / 8;
+		return tableSegments[(int) (i / perSegment)].getLong((int) (i % perSegment) * 8);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private static void putLong(byte[] dst, int off, long value) {
+		for (int i = 0; i < 8; i++) {
+			dst[off + i] = (byte) (value >>> (56 - 8 * i));
+		}
+	}
+
+	private static void putInt(byte[] dst, int off, int value) {
+		for (int i = 0; i < 4; i++) {
+			dst[off + i] = (byte) (value >>> (24 - 8 * i));
+		}
+	}
+
+	private static int getInt(byte[] src, int off) {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (src[off + i] & 0xff);
+		}
+		return value;
+	}
+
+	private static long getLong(byte[] src, int off) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (src[off + i] & 0xff);
+		}
+		return value;
+	}
+}
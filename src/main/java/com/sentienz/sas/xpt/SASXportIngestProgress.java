@@ -0,0 +1,72 @@
+package com.sentienz.sas.xpt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregate progress of a {@link SASXportIngestor} run. All counters are
+ * updated live and may be read from any thread.
+ */
+public class SASXportIngestProgress {
+
+	final AtomicLong filesTotal = new AtomicLong();
+	final AtomicLong filesCompleted = new AtomicLong();
+	final AtomicLong filesFailed = new AtomicLong();
+	final AtomicLong bytesTotal = new AtomicLong();
+	final AtomicLong bytesRead = new AtomicLong();
+	final AtomicLong rowsRead = new AtomicLong();
+	final AtomicLong chunksCompleted = new AtomicLong();
+	final AtomicLong chunksUnchanged = new AtomicLong();
+
+	private final long startTime = System.currentTimeMillis();
+
+	public long getFilesTotal() {
+		return filesTotal.get();
+	}
+
+	public long getFilesCompleted() {
+		return filesCompleted.get();
+	}
+
+	public long getFilesFailed() {
+		return filesFailed.get();
+	}
+
+	public long getBytesTotal() {
+		return bytesTotal.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getRowsRead() {
+		return rowsRead.get();
+	}
+
+	public long getChunksCompleted() {
+		return chunksCompleted.get();
+	}
+
+	/**
+	 * Chunks skipped in incremental mode because their content had not changed.
+	 */
+	public long getChunksUnchanged() {
+		return chunksUnchanged.get();
+	}
+
+	public double getFractionDone() {
+		long total = bytesTotal.get();
+		return total == 0 ? 0 : (double) bytesRead.get() / total;
+	}
+
+	public double getBytesPerSecond() {
+		long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+		return bytesRead.get() * 1000d / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		return "files " + getFilesCompleted() + "/" + getFilesTotal() + ", bytes " + getBytesRead() + "/"
+				+ getBytesTotal() + ", rows " + getRowsRead();
+	}
+}
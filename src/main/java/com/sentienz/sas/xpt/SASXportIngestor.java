@@ -0,0 +1,518 @@
+package com.sentienz.sas.xpt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.XXHash64;
+
+/**
+ * Reads many XPT files concurrently on a shared worker pool. Every file is split
+ * into row aligned chunks of about {@link #setChunkBytes(long) chunkBytes},
+ * which are decoded independently through one shared
+ * {@link SASXportPositionalReader}, so one large file can keep all workers busy
+ * while small files fill the gaps. Files are scheduled largest first.
+ *
+ * Three global limits provide back pressure: the number of open files, the raw
+ * bytes of chunks submitted but not yet finished, and the estimated heap held by
+ * decoded batches that are waiting on the sink.
+ *
+ * In {@link #setIncremental(boolean) incremental} mode every chunk is also
+ * fingerprinted, see {@link SASXportManifest}. Chunks whose raw bytes hash the
+ * same as at the last run are not decoded or passed to the sink, and the new
+ * manifest is saved next to the file once the sink has completed it.
+ *
+ * Only the first member of every file is ingested. A file found to hold more
+ * members gets a warning once its first member is done; open the others with
+ * {@link SASXportPositionalReader#SASXportPositionalReader(String, long)}.
+ */
+public class SASXportIngestor implements Closeable {
+
+	private static final long MB = 1024 * 1024;
+	/** chunks are read into one array */
+	private static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE - 8;
+
+	private final ExecutorService pool;
+	private final boolean ownsPool;
+
+	private int maxOpenFiles = 64;
+	private long maxInFlightBytes = 256 * MB;
+	private long maxMemoryBytes = 512 * MB;
+	private long chunkBytes = 16 * MB;
+	private int batchRows = 1024;
+	private boolean incremental = false;
+
+	private volatile SASXportIngestProgress progress = new SASXportIngestProgress();
+
+	public SASXportIngestor() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public SASXportIngestor(int threads) {
+		this(Executors.newFixedThreadPool(threads), true);
+	}
+
+	/**
+	 * Uses a caller owned pool, which is not shut down by {@link #close()}.
+	 */
+	public SASXportIngestor(ExecutorService pool) {
+		this(pool, false);
+	}
+
+	private SASXportIngestor(ExecutorService pool, boolean ownsPool) {
+		this.pool = pool;
+		this.ownsPool = ownsPool;
+	}
+
+	/**
+	 * Reads all rows of the first member of the given files into the sink and
+	 * blocks until every file is done. A failing file does not stop the others;
+	 * the failures are reported together once the run is over.
+	 */
+	public SASXportIngestProgress ingest(Collection<String> fileNames, SASXportRowSink sink) throws Exception {
+
+		SASXportIngestProgress progress = new SASXportIngestProgress();
+		this.progress = progress;
+
+		List<File> files = new ArrayList<File>();
+		for (String fileName : fileNames) {
+			File file = new File(fileName);
+			files.add(file);
+			progress.filesTotal.incrementAndGet();
+			progress.bytesTotal.addAndGet(file.length());
+		}
+		Collections.sort(files, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return Long.compare(f2.length(), f1.length());
+			}
+		});
+
+		Run run = new Run(sink, progress);
+		for (File file : files) {
+			run.dispatch(file);
+		}
+		run.phaser.arriveAndAwaitAdvance();
+
+		if (!run.failures.isEmpty()) {
+			Exception e = new IOException(run.failures.size() + " of " + files.size() + " files failed",
+					run.failures.get(0));
+			for (int i = 1; i < run.failures.size(); i++) {
+				e.addSuppressed(run.failures.get(i));
+			}
+			throw e;
+		}
+		return progress;
+	}
+
+	/**
+	 * Progress of the current, or last finished, {@link #ingest} call.
+	 */
+	public SASXportIngestProgress getProgress() {
+		return progress;
+	}
+
+	public void close() {
+		if (ownsPool)
+			pool.shutdown();
+	}
+
+	public int getMaxOpenFiles() {
+		return maxOpenFiles;
+	}
+
+	public void setMaxOpenFiles(int maxOpenFiles) {
+		this.maxOpenFiles = maxOpenFiles;
+	}
+
+	public long getMaxInFlightBytes() {
+		return maxInFlightBytes;
+	}
+
+	public void setMaxInFlightBytes(long maxInFlightBytes) {
+		this.maxInFlightBytes = maxInFlightBytes;
+	}
+
+	public long getMaxMemoryBytes() {
+		return maxMemoryBytes;
+	}
+
+	public void setMaxMemoryBytes(long maxMemoryBytes) {
+		this.maxMemoryBytes = maxMemoryBytes;
+	}
+
+	public long getChunkBytes() {
+		return chunkBytes;
+	}
+
+	public void setChunkBytes(long chunkBytes) {
+		this.chunkBytes = chunkBytes;
+	}
+
+	public int getBatchRows() {
+		return batchRows;
+	}
+
+	public void setBatchRows(int batchRows) {
+		this.batchRows = batchRows;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Only delivers the chunks that changed since the last incremental run, as
+	 * recorded by the manifest at {@link SASXportManifest#manifestPath}. The
+	 * changed ranges of each file are reported to
+	 * {@link SASXportRowSink#rangesChanged} before it is completed.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * State of one {@link #ingest} call.
+	 */
+	private class Run {
+
+		final SASXportRowSink sink;
+		final SASXportIngestProgress progress;
+		final Phaser phaser = new Phaser(1);
+		final Semaphore openFiles = new Semaphore(maxOpenFiles);
+		final ByteBudget inFlight = new ByteBudget(maxInFlightBytes);
+		final ByteBudget memory = new ByteBudget(maxMemoryBytes);
+		final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+
+		Run(SASXportRowSink sink, SASXportIngestProgress progress) {
+			this.sink = sink;
+			this.progress = progress;
+		}
+
+		void dispatch(File file) throws InterruptedException {
+
+			openFiles.acquire();
+			FileState state = null;
+			try {
+				state = open(file);
+			} catch (Exception e) {
+				openFiles.release();
+				fail(file.getPath(), e);
+				return;
+			}
+
+			if (state.chunks.get() == 0) {
+				state.finish();
+				return;
+			}
+
+			for (long first = 0; first < state.rows; first += state.rowsPerChunk) {
+				long count = Math.min(state.rowsPerChunk, state.rows - first);
+				int permits = inFlight.acquire(count * state.meta.row_length);
+				phaser.register();
+				pool.execute(new Chunk(state, first, count, permits));
+			}
+		}
+
+		FileState open(File file) throws Exception {
+
+			SASXportPositionalReader reader = new SASXportPositionalReader(file.getPath());
+			long maxChunkRows = Math.max(1, MAX_CHUNK_BYTES / Math.max(1, reader.getRowLength()));
+			long rowsPerChunk = Math.max(1, Math.min(chunkBytes, MAX_CHUNK_BYTES) / Math.max(1, reader.getRowLength()));
+			SASXportManifest previous = null;
+			if (incremental) {
+				previous = loadManifest(file.getPath());
+				if (previous != null && previous.getLayoutHash() == SASXportManifest.layoutHash(reader.getMetaData())
+						&& previous.getChunkRows() <= maxChunkRows)
+					rowsPerChunk = previous.getChunkRows();
+			}
+			int chunks = (int) ((reader.getRowCount() + rowsPerChunk - 1) / rowsPerChunk);
+			progress.bytesRead.addAndGet(reader.getMetaData().obs_start);
+			return new FileState(this, file.getPath(), reader, rowsPerChunk, chunks, incremental, previous);
+		}
+
+		SASXportManifest loadManifest(String fileName) {
+			Path path = SASXportManifest.manifestPath(fileName);
+			try {
+				return SASXportManifest.load(path);
+			} catch (IOException e) {
+				System.err.println("!!WARN!! Ignoring manifest " + path + ": " + e.getMessage());
+				return null;
+			}
+		}
+
+		void fail(String fileName, Exception e) {
+			progress.filesFailed.incrementAndGet();
+			failures.add(new IOException("Failed to ingest " + fileName, e));
+		}
+	}
+
+	/**
+	 * One open file shared by all its chunks.
+	 */
+	private static class FileState {
+
+		final Run run;
+		final String fileName;
+		final SASXportPositionalReader reader;
+		final XPTContext meta;
+		final long rows;
+		final long rowsPerChunk;
+		final AtomicInteger chunks;
+		/** manifest of the last run, if any */
+		final SASXportManifest previous;
+		final boolean comparable;
+		/** hash of every chunk, only in incremental mode */
+		final long[] hashes;
+		volatile boolean failed = false;
+		/** chunks read but held back until the ones before them are read */
+		private final Chunk[] read;
+		private int chunksRead = 0;
+
+		FileState(Run run, String fileName, SASXportPositionalReader reader, long rowsPerChunk, int chunks,
+				boolean incremental, SASXportManifest previous) {
+			this.run = run;
+			this.fileName = fileName;
+			this.reader = reader;
+			this.meta = reader.getMetaData();
+			this.rows = reader.getRowCount();
+			this.rowsPerChunk = rowsPerChunk;
+			this.chunks = new AtomicInteger(chunks);
+			this.hashes = incremental ? new long[chunks] : null;
+			this.read = new Chunk[chunks];
+			this.previous = previous;
+			this.comparable = previous != null && previous.getChunkRows() == rowsPerChunk
+					&& previous.getLayoutHash() == SASXportManifest.layoutHash(meta);
+		}
+
+		/**
+		 * Hash of the chunk at the last run, if it can be compared.
+		 */
+		Long previousHash(long firstRow) {
+			int chunk = (int) (firstRow / rowsPerChunk);
+			if (!comparable || chunk >= previous.getChunkCount())
+				return null;
+			return previous.getChunkHash(chunk);
+		}
+
+		void fail(Exception e) {
+			synchronized (this) {
+				if (failed)
+					return;
+				failed = true;
+			}
+			run.fail(fileName, e);
+		}
+
+		/**
+		 * Records that a chunk has been read and returns the chunks that may now
+		 * be passed on, those whose earlier chunks have all been read. The read
+		 * holding the next member's header, if any, has then lowered the row
+		 * count, so no rows of that member are passed on.
+		 */
+		synchronized List<Chunk> chunkRead(Chunk chunk) {
+			read[(int) (chunk.firstRow / rowsPerChunk)] = chunk;
+			List<Chunk> ready = new ArrayList<Chunk>();
+			while (chunksRead < read.length && read[chunksRead] != null) {
+				ready.add(read[chunksRead]);
+				read[chunksRead++] = null;
+			}
+			return ready;
+		}
+
+		void chunkDone() {
+			if (chunks.decrementAndGet() == 0)
+				finish();
+		}
+
+		void finish() {
+			try {
+				if (!failed) {
+					SASXportManifest manifest = null;
+					// every row has been read, so the row count is exact
+					reader.assumeRowCount(reader.getRowCount(), reader.getNextMemberOffset());
+					if (hashes != null) {
+						// rows past the end of the member were read as empty chunks
+						long rowCount = reader.getRowCount();
+						int chunkCount = (int) ((rowCount + rowsPerChunk - 1) / rowsPerChunk);
+						manifest = new SASXportManifest(meta, new File(fileName), rowsPerChunk, rowCount,
+								Arrays.copyOf(hashes, chunkCount));
+						run.sink.rangesChanged(fileName, meta, manifest.changedSince(previous));
+					}
+					run.sink.fileCompleted(fileName, meta);
+					if (reader.getNextMemberOffset() >= 0)
+						System.err.println("!!WARN!! Ingested only the first member of " + fileName);
+					if (manifest != null)
+						manifest.save(SASXportManifest.manifestPath(fileName));
+					run.progress.filesCompleted.incrementAndGet();
+				}
+			} catch (Exception e) {
+				fail(e);
+			} finally {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// nothing left to read
+				}
+				run.openFiles.release();
+			}
+		}
+	}
+
+	/**
+	 * Reads its rows in one go, then decodes them once every earlier chunk of
+	 * the file has been read.
+	 */
+	private class Chunk implements Runnable {
+
+		final FileState file;
+		final long firstRow;
+		final long rowCount;
+		final int inFlightPermits;
+		private byte[] raw;
+		private int rowsRead;
+
+		Chunk(FileState file, long firstRow, long rowCount, int inFlightPermits) {
+			this.file = file;
+			this.firstRow = firstRow;
+			this.rowCount = rowCount;
+			this.inFlightPermits = inFlightPermits;
+		}
+
+		public void run() {
+			try {
+				if (!file.failed)
+					read();
+			} catch (Exception e) {
+				file.fail(e);
+			}
+			List<Chunk> ready = file.chunkRead(this);
+			for (int i = 1; i < ready.size(); i++) {
+				final Chunk chunk = ready.get(i);
+				try {
+					pool.execute(() -> chunk.deliver());
+				} catch (RuntimeException e) {
+					chunk.deliver();
+				}
+			}
+			if (!ready.isEmpty())
+				ready.get(0).deliver();
+		}
+
+		private void read() throws IOException {
+			int rowLength = file.meta.row_length;
+			raw = new byte[(int) rowCount * rowLength];
+			ByteBuffer bb = ByteBuffer.wrap(raw);
+			for (long row = firstRow; row < firstRow + rowCount && !file.failed;) {
+				int n = file.reader.readRows(row, bb);
+				if (n == 0)
+					break;
+				row += n;
+			}
+			rowsRead = bb.position() / Math.max(1, rowLength);
+		}
+
+		void deliver() {
+			Run run = file.run;
+			try {
+				if (!file.failed)
+					decode(run);
+				run.progress.chunksCompleted.incrementAndGet();
+			} catch (Exception e) {
+				file.fail(e);
+			} finally {
+				raw = null;
+				run.inFlight.release(inFlightPermits);
+				file.chunkDone();
+				run.phaser.arriveAndDeregister();
+			}
+		}
+
+		private void decode(Run run) throws Exception {
+
+			int rowLength = file.meta.row_length;
+			// rows of a following member read before its header was found
+			int rows = (int) Math.max(0, Math.min(rowsRead, file.reader.getRowCount() - firstRow));
+
+			if (file.hashes != null) {
+				XXHash64 hash = new XXHash64();
+				hash.update(raw, 0, rows * rowLength);
+				long current = hash.digest();
+				file.hashes[(int) (firstRow / file.rowsPerChunk)] = current;
+				Long previous = file.previousHash(firstRow);
+				if (previous != null && current == previous) {
+					run.progress.chunksUnchanged.incrementAndGet();
+					run.progress.bytesRead.addAndGet(rows * (long) rowLength);
+					return;
+				}
+			}
+
+			int batch = (int) Math.max(1, Math.min(batchRows, rows));
+			for (int first = 0; first < rows && !file.failed; first += batch) {
+				int n = Math.min(batch, rows - first);
+				int permits = run.memory.acquire(estimateBatchMemory(n));
+				try {
+					List<List<String>> decoded = new ArrayList<List<String>>(n);
+					for (int i = first; i < first + n; i++) {
+						if (!file.reader.isBlankRow(raw, i * rowLength))
+							decoded.add(file.reader.decodeRecord(raw, i * rowLength));
+					}
+					run.sink.accept(file.fileName, file.meta, firstRow + first, decoded);
+					run.progress.rowsRead.addAndGet(decoded.size());
+					run.progress.bytesRead.addAndGet(n * (long) rowLength);
+				} finally {
+					run.memory.release(permits);
+				}
+			}
+		}
+
+		/**
+		 * Rough heap size of a decoded batch: the characters of every cell plus
+		 * the String and list overhead.
+		 */
+		private long estimateBatchMemory(int rows) {
+			return rows * (2L * file.meta.row_length + 56L * file.meta.var_count + 32);
+		}
+	}
+
+	/**
+	 * A byte limit on top of a {@link Semaphore}, counted in kilobytes so limits
+	 * above 2 GB fit into the int permits. A single request larger than the whole
+	 * budget is clamped to it instead of blocking forever.
+	 */
+	static class ByteBudget {
+
+		private static final int UNIT = 1024;
+
+		private final Semaphore permits;
+		private final int max;
+
+		ByteBudget(long bytes) {
+			max = (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / UNIT));
+			permits = new Semaphore(max);
+		}
+
+		int acquire(long bytes) throws InterruptedException {
+			int n = (int) Math.max(1, Math.min(max, (bytes + UNIT - 1) / UNIT));
+			permits.acquire(n);
+			return n;
+		}
+
+		void release(int n) {
+			permits.release(n);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.sentienz.sas.xpt;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import com.sentienz.sas.xpt.utils.BgzfInputStream;
+import com.sentienz.sas.xpt.utils.ReadAheadInputStream;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+
+/**
+ * Opens XPT input that may be compressed, recognized by its magic bytes rather
+ * than the file name. Decompression runs on a read-ahead thread, or on several
+ * threads for blocked gzip, and the result feeds the normal row decoder.
+ *
+ * zstd support needs io.airlift:aircompressor on the class path.
+ */
+public class SASXportInputs {
+
+	public static final int READ_AHEAD_BUFFER = 1024 * 1024;
+
+	private static final int PEEK = 18;
+
+	public static enum Compression {
+		NONE, GZIP, BGZF, ZSTD
+	}
+
+	private SASXportInputs() {
+		// prevent instantiation
+	}
+
+	/**
+	 * Opens the file, transparently decompressing gzip, blocked gzip and zstd.
+	 * Uncompressed files are returned as a plain {@link FileInputStream}.
+	 */
+	public static InputStream open(String fileName) throws IOException {
+		FileInputStream in = new FileInputStream(fileName);
+		try {
+			byte[] magic = new byte[PEEK];
+			int n = 0;
+			while (n < magic.length) {
+				int r = in.read(magic, n, magic.length - n);
+				if (r < 0)
+					break;
+				n += r;
+			}
+			in.getChannel().position(0);
+			Compression compression = detect(magic, n);
+			if (compression == Compression.NONE)
+				return in;
+			return decompress(in, compression, Runtime.getRuntime().availableProcessors());
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Detects the compression of a stream that does not support positioning. The
+	 * returned stream starts at the first byte of the input.
+	 */
+	public static InputStream open(InputStream in) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(in, 64 * 1024);
+		buffered.mark(PEEK);
+		byte[] magic = new byte[PEEK];
+		int n = 0;
+		while (n < magic.length) {
+			int r = buffered.read(magic, n, magic.length - n);
+			if (r < 0)
+				break;
+			n += r;
+		}
+		buffered.reset();
+		Compression compression = detect(magic, n);
+		if (compression == Compression.NONE)
+			return buffered;
+		return decompress(buffered, compression, Runtime.getRuntime().availableProcessors());
+	}
+
+	public static Compression detect(byte[] magic, int len) {
+		if (len >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b)
+			return len >= 18 && BgzfInputStream.isBgzf(magic) ? Compression.BGZF : Compression.GZIP;
+		if (len >= 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5 && (magic[2] & 0xff) == 0x2f
+				&& (magic[3] & 0xff) == 0xfd)
+			return Compression.ZSTD;
+		return Compression.NONE;
+	}
+
+	/**
+	 * @param threads inflater threads for blocked gzip, other formats are
+	 *                decompressed on one read-ahead thread
+	 */
+	public static InputStream decompress(InputStream in, Compression compression, int threads) throws IOException {
+		switch (compression) {
+		case BGZF:
+			return new BgzfInputStream(in, threads);
+		case GZIP:
+			// GZIPInputStream reads concatenated members as well
+			return new ReadAheadInputStream(new GZIPInputStream(in, 64 * 1024), READ_AHEAD_BUFFER, 4);
+		case ZSTD:
+			try {
+				return new ReadAheadInputStream(Zstd.open(in), READ_AHEAD_BUFFER, 4);
+			} catch (NoClassDefFoundError e) {
+				throw new IOException("zstd input needs io.airlift:aircompressor", e);
+			}
+		default:
+			return in;
+		}
+	}
+
+	/**
+	 * Only loaded for zstd input, so that the optional aircompressor jar is not
+	 * needed to read anything else.
+	 */
+	private static class Zstd {
+
+		static InputStream open(InputStream in) throws IOException {
+			return new ZstdInputStream(in);
+		}
+	}
+}
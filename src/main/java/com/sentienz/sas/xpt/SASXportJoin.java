@@ -0,0 +1,889 @@
+package com.sentienz.sas.xpt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.ByteKeyHashMap;
+import com.sentienz.sas.xpt.utils.KeyEncoder;
+import com.sentienz.sas.xpt.utils.XPTReaderUtils;
+import com.sentienz.sas.xpt.utils.XPTWriterUtils;
+import com.sentienz.sas.xpt.utils.XXHash64;
+
+/**
+ * Joins two XPT members on key columns with a hash join over raw row bytes.
+ * Joined rows hold the selected columns of the left file followed by those of
+ * the right file.
+ *
+ * The smaller side of an inner join, and the right side of a left join, is the
+ * build side: its key and selected columns go into a {@link ByteKeyHashMap}
+ * keyed by the encoded key bytes, with rows of the same key chained in file
+ * order. The other side is streamed through it in parallel, row aligned
+ * chunks, and the joined rows come out in the order of the streamed file.
+ * Keys compare as {@link KeyEncoder} encodes them, so numerics match by value
+ * whatever their width and strings match ignoring trailing blanks; missing
+ * values match equal missing values, as in a SAS merge.
+ *
+ * When the build side does not fit into the memory budget, both sides are
+ * first split by key hash into partitions in temporary files, and the
+ * partitions are joined one pair at a time, several at once. A partition whose
+ * build rows still exceed a thread's share of the budget, as with skewed keys,
+ * is split again by other bits of the hash. Joined rows then come out grouped
+ * by partition.
+ *
+ * <pre>
+ * SASXportJoin join = new SASXportJoin(SASXportJoin.Type.LEFT, "USUBJID");
+ * join.setRightColumns("AGE", "SEX", "ARMCD");
+ * join.join("adlb.xpt", "adsl.xpt", "adlb_adsl.xpt");
+ * </pre>
+ */
+public class SASXportJoin {
+
+	public static final long DEFAULT_MEMORY_BYTES = 256 * 1024 * 1024;
+
+	public enum Type {
+		/** only rows with a match on both sides */
+		INNER,
+		/** every left row, with missing right columns when there is no match */
+		LEFT
+	}
+
+	/**
+	 * Receives joined rows in the layout returned by
+	 * {@link SASXportJoin#layout(XPTContext, XPTContext)}. Calls never overlap.
+	 */
+	public interface BatchWriter {
+
+		/**
+		 * @param rows holds <code>count</code> raw rows from offset 0; only valid
+		 *             during the call
+		 */
+		void write(byte[] rows, int count) throws Exception;
+	}
+
+	private static final int IO_BUFFER_SIZE = 1024 * 1024;
+
+	private static final int SINK_BATCH_ROWS = 1024;
+
+	/** bytes per build row besides its key and columns: chain links and hash slots */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	/** largest build table held in one piece */
+	private static final long MAX_TABLE_BYTES = 1l << 30;
+
+	private static final int MAX_PARTITIONS = 4096;
+
+	private final Type type;
+	private final String[] keyColumns;
+	private String[] rightKeyColumns;
+	private String[] leftColumns;
+	private String[] rightColumns;
+	private long memoryBytes = DEFAULT_MEMORY_BYTES;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private Path tempDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+
+	private int partitionCount;
+	private boolean buildLeft;
+
+	/**
+	 * @param keyColumns key columns, named the same in both files unless
+	 *                   {@link #setRightKeyColumns} says otherwise
+	 */
+	public SASXportJoin(Type type, String... keyColumns) {
+		if (keyColumns.length == 0)
+			throw new IllegalArgumentException("No key columns");
+		this.type = type;
+		this.keyColumns = keyColumns.clone();
+	}
+
+	/**
+	 * Joins the first members of two files into a new XPT file.
+	 *
+	 * @return the number of rows written
+	 */
+	public long join(String leftFile, String rightFile, String outFile) throws Exception {
+		try (SASXportPositionalReader left = new SASXportPositionalReader(leftFile);
+				SASXportPositionalReader right = new SASXportPositionalReader(rightFile);
+				FileChannel out = FileChannel.open(Paths.get(outFile), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			XPTContext layout = layout(left.getMetaData(), right.getMetaData());
+			final int rowLength = layout.row_length;
+			write(out, ByteBuffer.wrap(XPTWriterUtils.libraryHeader(layout)));
+			write(out, ByteBuffer.wrap(XPTWriterUtils.memberHeader(layout)));
+			long rows = join(left, right, (data, count) -> {
+				write(out, ByteBuffer.wrap(data, 0, count * rowLength));
+			});
+			write(out, ByteBuffer.wrap(XPTWriterUtils.padding(rows * rowLength)));
+			return rows;
+		}
+	}
+
+	/**
+	 * Joins the first members of two files, passing the decoded rows to the sink
+	 * in batches, as if read from a file named like the left one.
+	 *
+	 * @return the number of rows passed
+	 */
+	public long join(final String leftFile, String rightFile, final SASXportRowSink sink) throws Exception {
+		try (SASXportPositionalReader left = new SASXportPositionalReader(leftFile);
+				SASXportPositionalReader right = new SASXportPositionalReader(rightFile)) {
+			final XPTContext layout = layout(left.getMetaData(), right.getMetaData());
+			final SASXportRowDecoder decoder = SASXportRowDecoder.compile(layout, true);
+			final int rowLength = layout.row_length;
+			final long[] passed = new long[1];
+			long rows = join(left, right, (data, count) -> {
+				for (int first = 0; first < count; first += SINK_BATCH_ROWS) {
+					int n = Math.min(SINK_BATCH_ROWS, count - first);
+					List<List<String>> batch = new ArrayList<List<String>>(n);
+					for (int r = first; r < first + n; r++) {
+						List<String> record = new ArrayList<String>(layout.var_count);
+						decoder.decode(data, r * rowLength, record, null);
+						batch.add(record);
+					}
+					sink.accept(leftFile, layout, passed[0], batch);
+					passed[0] += n;
+				}
+			});
+			sink.fileCompleted(leftFile, layout);
+			return rows;
+		}
+	}
+
+	/**
+	 * Joins the readers' members, passing the raw joined rows to the writer.
+	 * Blank rows of either side are left out.
+	 *
+	 * @return the number of rows written
+	 */
+	public long join(SASXportPositionalReader left, SASXportPositionalReader right, BatchWriter writer)
+			throws Exception {
+		XPTContext leftMeta = left.getMetaData();
+		XPTContext rightMeta = right.getMetaData();
+		int[][] columns = select(leftMeta, rightMeta);
+		ReadStatVariable[] leftKeys = resolve(leftMeta, keyColumns);
+		ReadStatVariable[] rightKeys = resolve(rightMeta, rightKeyColumns == null ? keyColumns : rightKeyColumns);
+		if (leftKeys.length != rightKeys.length)
+			throw new IllegalArgumentException("Left and right key columns differ in number");
+		int[] keyWidths = new int[leftKeys.length];
+		for (int i = 0; i < keyWidths.length; i++) {
+			if (leftKeys[i].type != rightKeys[i].type)
+				throw new IllegalArgumentException(
+						"Key columns " + leftKeys[i].name + " and " + rightKeys[i].name + " differ in type");
+			keyWidths[i] = leftKeys[i].type == ReadstatType.READSTAT_TYPE_STRING
+					? Math.max(leftKeys[i].storage_width, rightKeys[i].storage_width)
+					: KeyEncoder.NUMERIC_WIDTH;
+		}
+
+		Side l = new Side(left, leftKeys, keyWidths, columns[0], 0);
+		Side r = new Side(right, rightKeys, keyWidths, columns[1], l.partLength);
+		int rowLength = l.partLength + r.partLength;
+
+		long leftRows = left.settleRowCount();
+		long rightRows = right.settleRowCount();
+		buildLeft = type == Type.INNER && leftRows * (l.keyLength + l.partLength) < rightRows
+				* (r.keyLength + r.partLength);
+		Side build = buildLeft ? l : r;
+		Side probe = buildLeft ? r : l;
+		long buildBytes = (buildLeft ? leftRows : rightRows) * (build.keyLength + build.partLength + ENTRY_OVERHEAD);
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			if (buildBytes <= Math.min(memoryBytes, MAX_TABLE_BYTES)) {
+				partitionCount = 0;
+				Table table = buildTable(build);
+				return probeInMemory(table, build, probe, rowLength, pool, writer);
+			}
+			long partitions = Math.max(2, (buildBytes * Math.max(1, threads) + memoryBytes - 1) / memoryBytes);
+			partitions = Math.max(partitions, (buildBytes + MAX_TABLE_BYTES - 1) / MAX_TABLE_BYTES);
+			partitionCount = (int) Math.min(MAX_PARTITIONS, partitions);
+			return joinPartitioned(build, probe, rowLength, pool, writer);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Layout of the joined rows: the selected left columns followed by the
+	 * selected right columns.
+	 */
+	public XPTContext layout(XPTContext leftMeta, XPTContext rightMeta) {
+		int[][] columns = select(leftMeta, rightMeta);
+		ReadStatVariable[] variables = new ReadStatVariable[columns[0].length + columns[1].length];
+		for (int i = 0; i < columns[0].length; i++) {
+			variables[i] = SASXportTransform.copyOf(leftMeta.variables[columns[0][i]]);
+		}
+		for (int i = 0; i < columns[1].length; i++) {
+			variables[columns[0].length + i] = SASXportTransform.copyOf(rightMeta.variables[columns[1][i]]);
+		}
+		XPTContext layout = XPTWriterUtils.newContext(leftMeta.table_name, variables);
+		layout.version = Math.max(leftMeta.version, rightMeta.version);
+		layout.file_label = leftMeta.file_label;
+		layout.timestamp = leftMeta.timestamp;
+		return layout;
+	}
+
+	/**
+	 * Partitions used by the last join, 0 when the build side fit into memory.
+	 */
+	public int getPartitionCount() {
+		return partitionCount;
+	}
+
+	/**
+	 * Whether the last join built its table from the left side, which happens
+	 * for an inner join whose left side is the smaller one.
+	 */
+	public boolean isBuildLeft() {
+		return buildLeft;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Names of the key columns in the right file, in the order of the key
+	 * columns of the left file.
+	 */
+	public void setRightKeyColumns(String... rightKeyColumns) {
+		this.rightKeyColumns = rightKeyColumns == null ? null : rightKeyColumns.clone();
+	}
+
+	/**
+	 * Left columns to keep, all of them by default.
+	 */
+	public void setLeftColumns(String... leftColumns) {
+		this.leftColumns = leftColumns == null ? null : leftColumns.clone();
+	}
+
+	/**
+	 * Right columns to keep. By default all but the key columns and those
+	 * named like a kept left column.
+	 */
+	public void setRightColumns(String... rightColumns) {
+		this.rightColumns = rightColumns == null ? null : rightColumns.clone();
+	}
+
+	public long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	/**
+	 * Bytes the build tables may take, shared by the threads.
+	 */
+	public void setMemoryBytes(long memoryBytes) {
+		if (memoryBytes <= 0)
+			throw new IllegalArgumentException("Memory must be positive: " + memoryBytes);
+		this.memoryBytes = memoryBytes;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public Path getTempDirectory() {
+		return tempDirectory;
+	}
+
+	public void setTempDirectory(Path tempDirectory) {
+		this.tempDirectory = tempDirectory;
+	}
+
+	/**
+	 * Indexes of the left and the right columns kept.
+	 */
+	private int[][] select(XPTContext leftMeta, XPTContext rightMeta) {
+		int[] left = leftColumns == null ? SASXportTransform.allColumns(leftMeta) : indexes(leftMeta, leftColumns);
+		List<String> taken = new ArrayList<String>();
+		for (int col : left) {
+			taken.add(leftMeta.variables[col].name.toUpperCase());
+		}
+		int[] right;
+		if (rightColumns != null) {
+			right = indexes(rightMeta, rightColumns);
+			for (int col : right) {
+				if (taken.contains(rightMeta.variables[col].name.toUpperCase()))
+					throw new IllegalArgumentException(
+							"Variable selected from both sides: " + rightMeta.variables[col].name);
+			}
+		} else {
+			List<String> keys = new ArrayList<String>();
+			for (String key : rightKeyColumns == null ? keyColumns : rightKeyColumns) {
+				keys.add(key.toUpperCase());
+			}
+			int n = 0;
+			right = new int[rightMeta.var_count];
+			for (int col = 0; col < rightMeta.var_count; col++) {
+				String name = rightMeta.variables[col].name.toUpperCase();
+				if (!keys.contains(name) && !taken.contains(name))
+					right[n++] = col;
+			}
+			right = Arrays.copyOf(right, n);
+		}
+		return new int[][] { left, right };
+	}
+
+	private static int[] indexes(XPTContext meta, String[] names) {
+		int[] columns = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			columns[i] = XPTReaderUtils.getVariableIndex(meta, names[i]);
+			if (columns[i] < 0)
+				throw new IllegalArgumentException("Unknown variable: " + names[i]);
+		}
+		return columns;
+	}
+
+	private static ReadStatVariable[] resolve(XPTContext meta, String[] names) {
+		int[] columns = indexes(meta, names);
+		ReadStatVariable[] variables = new ReadStatVariable[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			variables[i] = meta.variables[columns[i]];
+		}
+		return variables;
+	}
+
+	/**
+	 * One input of the join: how to encode its key and gather its kept columns
+	 * into a part of the joined row.
+	 */
+	private static class Side {
+		final SASXportPositionalReader reader;
+		final ReadStatVariable[] keys;
+		final int[] keyWidths;
+		final int keyLength;
+		/** source offset, part offset and length of each copied range */
+		final int[][] plan;
+		final int partLength;
+		/** offset of the part in the joined row */
+		final int outOffset;
+		/** part of a row without a match: missing numerics and blank strings */
+		final byte[] missing;
+
+		Side(SASXportPositionalReader reader, ReadStatVariable[] keys, int[] keyWidths, int[] columns,
+				int outOffset) {
+			this.reader = reader;
+			this.keys = keys;
+			this.keyWidths = keyWidths;
+			int length = 0;
+			for (int width : keyWidths) {
+				length += width;
+			}
+			this.keyLength = length;
+			this.outOffset = outOffset;
+
+			XPTContext meta = reader.getMetaData();
+			List<int[]> ranges = new ArrayList<int[]>();
+			length = 0;
+			for (int col : columns) {
+				ReadStatVariable v = meta.variables[col];
+				int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+				if (last != null && last[0] + last[2] == v.offset)
+					last[2] += v.storage_width;
+				else
+					ranges.add(new int[] { v.offset, length, v.storage_width });
+				length += v.storage_width;
+			}
+			this.plan = ranges.toArray(new int[ranges.size()][]);
+			this.partLength = length;
+
+			missing = new byte[length];
+			Arrays.fill(missing, (byte) ' ');
+			length = 0;
+			for (int col : columns) {
+				ReadStatVariable v = meta.variables[col];
+				if (v.type != ReadstatType.READSTAT_TYPE_STRING) {
+					missing[length] = '.';
+					Arrays.fill(missing, length + 1, length + v.storage_width, (byte) 0);
+				}
+				length += v.storage_width;
+			}
+		}
+
+		/**
+		 * Encodes the key of the row at <code>base</code>, padding strings to the
+		 * width shared with the other side.
+		 */
+		void key(byte[] row, int base, byte[] dst, int off) {
+			for (int i = 0; i < keys.length; i++) {
+				ReadStatVariable key = keys[i];
+				if (key.type == ReadstatType.READSTAT_TYPE_STRING) {
+					System.arraycopy(row, base + key.offset, dst, off, key.storage_width);
+					Arrays.fill(dst, off + key.storage_width, off + keyWidths[i], (byte) ' ');
+				} else {
+					KeyEncoder.encode(key, row, base + key.offset, dst, off);
+				}
+				off += keyWidths[i];
+			}
+		}
+
+		void part(byte[] row, int base, byte[] dst, int off) {
+			for (int[] range : plan) {
+				System.arraycopy(row, base + range[0], dst, off + range[1], range[2]);
+			}
+		}
+	}
+
+	/**
+	 * Build side rows by key. Rows of one key are chained in insertion order
+	 * through {@link #next}, their parts stored one after the other.
+	 */
+	private static class Table {
+		final ByteKeyHashMap keys;
+		final int partLength;
+		byte[] parts;
+		int[] next;
+		int[] head;
+		int[] tail;
+		int rows = 0;
+
+		Table(int keyLength, int partLength, int expectedRows) {
+			int expected = Math.max(16, expectedRows);
+			this.keys = new ByteKeyHashMap(keyLength, expected);
+			this.partLength = partLength;
+			this.parts = new byte[expected * partLength];
+			this.next = new int[expected];
+			this.head = new int[expected];
+			this.tail = new int[expected];
+		}
+
+		void add(byte[] key, int keyOff, byte[] part, int partOff) {
+			int size = keys.size();
+			int id = keys.getOrAdd(key, keyOff);
+			if (id == head.length) {
+				head = Arrays.copyOf(head, id * 2);
+				tail = Arrays.copyOf(tail, id * 2);
+			}
+			if (rows == next.length) {
+				next = Arrays.copyOf(next, rows * 2);
+				parts = Arrays.copyOf(parts, rows * 2 * partLength);
+			}
+			System.arraycopy(part, partOff, parts, rows * partLength, partLength);
+			next[rows] = -1;
+			if (id == size)
+				head[id] = rows;
+			else
+				next[tail[id]] = rows;
+			tail[id] = rows++;
+		}
+
+		/**
+		 * @return the first row of the key, or -1
+		 */
+		int first(byte[] key, int off) {
+			int id = keys.get(key, off);
+			return id < 0 ? -1 : head[id];
+		}
+	}
+
+	/**
+	 * Joined rows collected in a growing buffer, or handed to a writer whenever
+	 * the buffer is full if there is one.
+	 */
+	private static class Output {
+		final int rowLength;
+		final BatchWriter writer;
+		byte[] data;
+		int count = 0;
+
+		Output(int rowLength, int capacity, BatchWriter writer) {
+			this.rowLength = rowLength;
+			this.writer = writer;
+			this.data = new byte[Math.max(1, capacity) * Math.max(1, rowLength)];
+		}
+
+		/**
+		 * @return the offset of a new row
+		 */
+		int append() throws Exception {
+			if ((count + 1) * rowLength > data.length) {
+				if (writer != null)
+					flush();
+				else
+					data = Arrays.copyOf(data, data.length * 2);
+			}
+			return count++ * rowLength;
+		}
+
+		void flush() throws Exception {
+			if (count == 0)
+				return;
+			synchronized (writer) {
+				writer.write(data, count);
+			}
+			count = 0;
+		}
+	}
+
+	/**
+	 * Adds the joined rows of one streamed row to the output.
+	 *
+	 * @return the number of rows added
+	 */
+	private int emit(Table table, Side build, Side probe, byte[] key, int keyOff, byte[] part, int partOff,
+			Output out) throws Exception {
+		int row = table.first(key, keyOff);
+		if (row < 0) {
+			if (type != Type.LEFT)
+				return 0;
+			int off = out.append();
+			System.arraycopy(part, partOff, out.data, off + probe.outOffset, probe.partLength);
+			System.arraycopy(build.missing, 0, out.data, off + build.outOffset, build.partLength);
+			return 1;
+		}
+		int n = 0;
+		for (; row >= 0; row = table.next[row]) {
+			int off = out.append();
+			System.arraycopy(part, partOff, out.data, off + probe.outOffset, probe.partLength);
+			System.arraycopy(table.parts, row * build.partLength, out.data, off + build.outOffset, build.partLength);
+			n++;
+		}
+		return n;
+	}
+
+	private static Table buildTable(Side build) throws IOException {
+		SASXportPositionalReader reader = build.reader;
+		int rowLength = reader.getRowLength();
+		Table table = new Table(build.keyLength, build.partLength, (int) reader.getRowCount());
+		byte[] key = new byte[build.keyLength];
+		byte[] part = new byte[build.partLength];
+		byte[] buffer = new byte[Math.max(rowLength, IO_BUFFER_SIZE / rowLength * rowLength)];
+		ByteBuffer bb = ByteBuffer.wrap(buffer);
+		for (long row = 0; row < reader.getRowCount();) {
+			bb.clear();
+			int n = reader.readRows(row, bb);
+			if (n == 0)
+				break;
+			for (int i = 0; i < n; i++) {
+				if (reader.isBlankRow(buffer, i * rowLength))
+					continue;
+				build.key(buffer, i * rowLength, key, 0);
+				build.part(buffer, i * rowLength, part, 0);
+				table.add(key, 0, part, 0);
+			}
+			row += n;
+		}
+		return table;
+	}
+
+	/**
+	 * Streams the probe side through the table in waves of one chunk per
+	 * thread, writing each wave in chunk order.
+	 */
+	private long probeInMemory(final Table table, final Side build, final Side probe, final int rowLength,
+			ExecutorService pool, BatchWriter writer) throws Exception {
+		final SASXportPositionalReader reader = probe.reader;
+		final int inLength = reader.getRowLength();
+		long rows = reader.getRowCount();
+		long chunkRows = Math.max(1, SASXportChunkRunner.DEFAULT_CHUNK_BYTES / inLength);
+		long waveRows = chunkRows * Math.max(1, threads);
+		long written = 0;
+		for (long wave = 0; wave < rows; wave += waveRows) {
+			final long waveStart = wave;
+			List<Output> outputs = SASXportChunkRunner.run(Math.min(waveRows, rows - wave), chunkRows, pool,
+					(firstRow, count) -> {
+						Output out = new Output(rowLength, (int) count, null);
+						byte[] key = new byte[probe.keyLength];
+						byte[] part = new byte[probe.partLength];
+						byte[] buffer = new byte[(int) Math.min(IO_BUFFER_SIZE / inLength + 1, count) * inLength];
+						ByteBuffer bb = ByteBuffer.wrap(buffer);
+						long end = waveStart + firstRow + count;
+						for (long row = waveStart + firstRow; row < end;) {
+							bb.clear();
+							bb.limit((int) Math.min(buffer.length / inLength, end - row) * inLength);
+							int n = reader.readRows(row, bb);
+							if (n == 0)
+								break;
+							for (int i = 0; i < n; i++) {
+								if (reader.isBlankRow(buffer, i * inLength))
+									continue;
+								probe.key(buffer, i * inLength, key, 0);
+								probe.part(buffer, i * inLength, part, 0);
+								emit(table, build, probe, key, 0, part, 0, out);
+							}
+							row += n;
+						}
+						return out;
+					});
+			for (Output out : outputs) {
+				if (out.count > 0)
+					writer.write(out.data, out.count);
+				written += out.count;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Splits both sides into partition files by key hash, then joins the
+	 * partitions in parallel.
+	 */
+	private long joinPartitioned(final Side build, final Side probe, final int rowLength, ExecutorService pool,
+			final BatchWriter writer) throws Exception {
+		final int partitions = partitionCount;
+		final Path[] buildFiles = new Path[partitions];
+		final Path[] probeFiles = new Path[partitions];
+		try {
+			createTempFiles(buildFiles);
+			createTempFiles(probeFiles);
+			final long[] buildCounts = partition(build, buildFiles);
+			partition(probe, probeFiles);
+
+			List<Long> counts = SASXportChunkRunner.run(partitions, 1, pool, (p, c) -> {
+				int i = (int) p;
+				return joinPartition(build, probe, buildFiles[i], probeFiles[i], buildCounts[i], partitions,
+						rowLength, writer);
+			});
+			long written = 0;
+			for (long count : counts) {
+				written += count;
+			}
+			return written;
+		} finally {
+			deleteFiles(buildFiles);
+			deleteFiles(probeFiles);
+		}
+	}
+
+	/**
+	 * Joins one pair of partition files, splitting them again while the build
+	 * rows do not fit into a thread's share of the budget.
+	 *
+	 * @param divisor product of the partition counts of the splits so far
+	 */
+	private long joinPartition(Side build, Side probe, Path buildFile, Path probeFile, long buildRows, long divisor,
+			int rowLength, BatchWriter writer) throws Exception {
+		long tableBytes = buildRows * (build.keyLength + build.partLength + ENTRY_OVERHEAD);
+		long budget = Math.max(1, Math.min(MAX_TABLE_BYTES, memoryBytes / Math.max(1, threads)));
+		if (tableBytes <= budget || divisor >= (1l << 32))
+			return joinTable(build, probe, buildFile, probeFile, buildRows, rowLength, writer);
+
+		int parts = (int) Math.min(MAX_PARTITIONS, Math.max(2, (tableBytes + budget - 1) / budget));
+		Path[] buildParts = new Path[parts];
+		Path[] probeParts = new Path[parts];
+		try {
+			createTempFiles(buildParts);
+			createTempFiles(probeParts);
+			long[] buildCounts = repartition(buildFile, build.keyLength + build.partLength, build.keyLength, divisor,
+					buildParts);
+			Files.deleteIfExists(buildFile);
+			repartition(probeFile, probe.keyLength + probe.partLength, probe.keyLength, divisor, probeParts);
+			Files.deleteIfExists(probeFile);
+
+			long written = 0;
+			for (int i = 0; i < parts; i++) {
+				// rows that all stay together most likely share one key, which no
+				// further split can break up
+				if (buildCounts[i] == buildRows)
+					written += joinTable(build, probe, buildParts[i], probeParts[i], buildRows, rowLength, writer);
+				else
+					written += joinPartition(build, probe, buildParts[i], probeParts[i], buildCounts[i],
+							divisor * parts, rowLength, writer);
+			}
+			return written;
+		} finally {
+			deleteFiles(buildParts);
+			deleteFiles(probeParts);
+		}
+	}
+
+	/**
+	 * Joins one pair of partition files through a table of the build rows.
+	 */
+	private long joinTable(final Side build, final Side probe, Path buildFile, Path probeFile, long buildRows,
+			int rowLength, BatchWriter writer) throws Exception {
+		long largest = buildRows * Math.max(build.keyLength, build.partLength);
+		if (largest > Integer.MAX_VALUE - 8 || buildRows > Integer.MAX_VALUE / 2)
+			throw new IllegalStateException("Too many rows of one key to join in memory: " + buildRows);
+		final Table table = new Table(build.keyLength, build.partLength, (int) buildRows);
+		readRecords(buildFile, build.keyLength + build.partLength, (data, off) -> {
+			table.add(data, off, data, off + build.keyLength);
+		});
+		Files.deleteIfExists(buildFile);
+		final Output out = new Output(rowLength, Math.max(1, IO_BUFFER_SIZE / rowLength), writer);
+		final long[] written = new long[1];
+		if (table.rows > 0 || type == Type.LEFT) {
+			readRecords(probeFile, probe.keyLength + probe.partLength, (data, off) -> {
+				written[0] += emit(table, build, probe, data, off, data, off + probe.keyLength, out);
+			});
+		}
+		out.flush();
+		Files.deleteIfExists(probeFile);
+		return written[0];
+	}
+
+	/**
+	 * Writes the key and part of every row of a side to the file of its
+	 * partition.
+	 *
+	 * @return the number of records per partition
+	 */
+	private long[] partition(Side side, Path[] files) throws IOException {
+		SASXportPositionalReader reader = side.reader;
+		int rowLength = reader.getRowLength();
+		int recordLength = side.keyLength + side.partLength;
+		try (PartitionWriter out = new PartitionWriter(files, recordLength, memoryBytes / 2 / files.length)) {
+			byte[] record = new byte[recordLength];
+			byte[] buffer = new byte[Math.max(rowLength, IO_BUFFER_SIZE / rowLength * rowLength)];
+			ByteBuffer bb = ByteBuffer.wrap(buffer);
+			for (long row = 0; row < reader.getRowCount();) {
+				bb.clear();
+				int n = reader.readRows(row, bb);
+				if (n == 0)
+					break;
+				for (int i = 0; i < n; i++) {
+					if (reader.isBlankRow(buffer, i * rowLength))
+						continue;
+					side.key(buffer, i * rowLength, record, 0);
+					side.part(buffer, i * rowLength, record, side.keyLength);
+					out.write(record, 0, partitionOf(record, 0, side.keyLength, 1, files.length));
+				}
+				row += n;
+			}
+			return out.counts;
+		}
+	}
+
+	/**
+	 * Splits a partition file by the next digit of the key hashes.
+	 *
+	 * @return the number of records per partition
+	 */
+	private long[] repartition(Path file, int recordLength, final int keyLength, final long divisor,
+			final Path[] files) throws Exception {
+		long bufferBytes = memoryBytes / 2 / Math.max(1, threads) / files.length;
+		try (final PartitionWriter out = new PartitionWriter(files, recordLength, bufferBytes)) {
+			readRecords(file, recordLength, (data, off) -> {
+				out.write(data, off, partitionOf(data, off, keyLength, divisor, files.length));
+			});
+			return out.counts;
+		}
+	}
+
+	/**
+	 * Partition of an encoded key. The high half of the hash is taken, as the
+	 * hash map slots by the low one, and read as digits in base
+	 * <code>partitions</code>, one per split.
+	 *
+	 * @param divisor product of the partition counts of the splits before
+	 */
+	private static int partitionOf(byte[] key, int off, int keyLength, long divisor, int partitions) {
+		long hash = XXHash64.hash(key, off, keyLength) >>> 32;
+		return (int) (hash / divisor % partitions);
+	}
+
+	/**
+	 * Appends records to the files of their partitions through a buffer per
+	 * file.
+	 */
+	private static class PartitionWriter implements AutoCloseable {
+		final FileChannel[] channels;
+		final ByteBuffer[] buffers;
+		final long[] counts;
+		final int recordLength;
+
+		PartitionWriter(Path[] files, int recordLength, long bufferBytes) throws IOException {
+			this.recordLength = recordLength;
+			int size = (int) Math.max(recordLength, Math.min(IO_BUFFER_SIZE, bufferBytes) / recordLength * recordLength);
+			channels = new FileChannel[files.length];
+			buffers = new ByteBuffer[files.length];
+			counts = new long[files.length];
+			try {
+				for (int p = 0; p < files.length; p++) {
+					channels[p] = FileChannel.open(files[p], StandardOpenOption.WRITE,
+							StandardOpenOption.TRUNCATE_EXISTING);
+					buffers[p] = ByteBuffer.allocate(size);
+				}
+			} catch (IOException | RuntimeException e) {
+				closeChannels();
+				throw e;
+			}
+		}
+
+		void write(byte[] record, int off, int p) throws IOException {
+			if (buffers[p].remaining() < recordLength) {
+				buffers[p].flip();
+				SASXportJoin.write(channels[p], buffers[p]);
+				buffers[p].clear();
+			}
+			buffers[p].put(record, off, recordLength);
+			counts[p]++;
+		}
+
+		public void close() throws IOException {
+			try {
+				for (int p = 0; p < channels.length; p++) {
+					buffers[p].flip();
+					SASXportJoin.write(channels[p], buffers[p]);
+				}
+			} finally {
+				closeChannels();
+			}
+		}
+
+		private void closeChannels() throws IOException {
+			for (FileChannel channel : channels) {
+				if (channel != null)
+					channel.close();
+			}
+		}
+	}
+
+	private void createTempFiles(Path[] files) throws IOException {
+		for (int p = 0; p < files.length; p++) {
+			files[p] = Files.createTempFile(tempDirectory, "xptjoin", ".part");
+		}
+	}
+
+	private static void deleteFiles(Path[] files) throws IOException {
+		for (Path file : files) {
+			if (file != null)
+				Files.deleteIfExists(file);
+		}
+	}
+
+	private interface RecordVisitor {
+		void visit(byte[] data, int off) throws Exception;
+	}
+
+	private static void readRecords(Path file, int recordLength, RecordVisitor visitor) throws Exception {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(Math.max(recordLength, IO_BUFFER_SIZE / recordLength * recordLength));
+			byte[] data = buffer.array();
+			boolean eof = false;
+			while (!eof) {
+				eof = channel.read(buffer) < 0;
+				int n = buffer.position() / recordLength;
+				for (int i = 0; i < n; i++) {
+					visitor.visit(data, i * recordLength);
+				}
+				int rest = buffer.position() - n * recordLength;
+				if (eof && rest > 0)
+					throw new IOException("Partition ended in a partial record: " + file);
+				System.arraycopy(data, n * recordLength, data, 0, rest);
+				buffer.clear();
+				buffer.position(rest);
+			}
+		}
+	}
+
+	private static void write(FileChannel out, ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining())
+			out.write(bb);
+	}
+}
@@ -0,0 +1,317 @@
+package com.sentienz.sas.xpt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.XXHash64;
+
+/**
+ * Content fingerprint of an XPT member: one {@link XXHash64} over the raw bytes
+ * of every row aligned chunk of {@link #getChunkRows()} rows. Comparing the
+ * manifest of a file with the one saved at its last ingestion tells which row
+ * ranges changed, so only those have to be processed again.
+ *
+ * Chunks are fixed row ranges, so an edit in place changes one chunk and
+ * appended rows change the last chunk and add new ones, while inserting or
+ * deleting rows in the middle shifts and changes every chunk after it. A
+ * manifest with different variables or chunk size marks the whole member as
+ * changed.
+ *
+ * <pre>
+ * SASXportManifest previous = SASXportManifest.load(SASXportManifest.manifestPath("ae.xpt"));
+ * SASXportManifest current = SASXportManifest.compute("ae.xpt", 4);
+ * for (Range range : current.changedSince(previous)) {
+ * 	// re-process rows range.firstRow to range.endRow
+ * }
+ * current.save(SASXportManifest.manifestPath("ae.xpt"));
+ * </pre>
+ *
+ * {@link SASXportIngestor#setIncremental(boolean)} does the same while it reads.
+ */
+public class SASXportManifest {
+
+	private static final byte[] MAGIC = "XPTMAN01".getBytes(StandardCharsets.US_ASCII);
+
+	private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Rows <code>firstRow</code> up to, excluding, <code>endRow</code>.
+	 */
+	public static class Range {
+		public final long firstRow;
+		public final long endRow;
+
+		public Range(long firstRow, long endRow) {
+			this.firstRow = firstRow;
+			this.endRow = endRow;
+		}
+
+		public long getRowCount() {
+			return endRow - firstRow;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + firstRow + ", " + endRow + ")";
+		}
+	}
+
+	private final long fileSize;
+	private final long lastModified;
+	private final long memberOffset;
+	private final long layoutHash;
+	private final long chunkRows;
+	private final long rowCount;
+	private final long[] hashes;
+
+	SASXportManifest(XPTContext meta, File data, long chunkRows, long rowCount, long[] hashes) {
+		this(data.length(), data.lastModified(), meta.member_offset, layoutHash(meta), chunkRows, rowCount, hashes);
+	}
+
+	private SASXportManifest(long fileSize, long lastModified, long memberOffset, long layoutHash, long chunkRows,
+			long rowCount, long[] hashes) {
+		this.fileSize = fileSize;
+		this.lastModified = lastModified;
+		this.memberOffset = memberOffset;
+		this.layoutHash = layoutHash;
+		this.chunkRows = chunkRows;
+		this.rowCount = rowCount;
+		this.hashes = hashes;
+	}
+
+	/**
+	 * Manifest file for the given data file.
+	 */
+	public static Path manifestPath(String dataFile) {
+		return Paths.get(dataFile + ".xptm");
+	}
+
+	/**
+	 * Rows per chunk used unless a previous manifest dictates otherwise.
+	 */
+	public static long defaultChunkRows(XPTContext meta) {
+		return Math.max(1, SASXportChunkRunner.DEFAULT_CHUNK_BYTES / Math.max(1, meta.row_length));
+	}
+
+	/**
+	 * Fingerprints the first member of a data file with the default chunk size.
+	 */
+	public static SASXportManifest compute(String dataFile, int threads) throws Exception {
+		try (SASXportPositionalReader reader = new SASXportPositionalReader(dataFile)) {
+			return compute(reader, dataFile, defaultChunkRows(reader.getMetaData()), threads);
+		}
+	}
+
+	/**
+	 * Fingerprints the reader's member, hashing the chunks in parallel.
+	 *
+	 * @param dataFile file of the reader, whose size and time are recorded
+	 */
+	public static SASXportManifest compute(final SASXportPositionalReader reader, String dataFile, long chunkRows,
+			int threads) throws Exception {
+		if (chunkRows <= 0)
+			throw new IllegalArgumentException("Chunk rows must be positive: " + chunkRows);
+		File data = new File(dataFile);
+		List<Long> results;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			results = SASXportChunkRunner.run(reader, chunkRows, pool, (firstRow, count) -> {
+				return hashRows(reader, firstRow, count);
+			});
+		} finally {
+			pool.shutdown();
+		}
+		// every row has been read, so the row count is exact
+		long rows = reader.getRowCount();
+		reader.assumeRowCount(rows, reader.getNextMemberOffset());
+		long[] hashes = new long[results.size()];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = results.get(i);
+		}
+		return new SASXportManifest(reader.getMetaData(), data, chunkRows, rows, hashes);
+	}
+
+	/**
+	 * Hash of the raw bytes of the given rows, as stored for a chunk.
+	 */
+	static long hashRows(SASXportPositionalReader reader, long firstRow, long count) throws IOException {
+		int rowLength = reader.getRowLength();
+		byte[] buffer = new byte[Math.max(rowLength, HASH_BUFFER_SIZE / rowLength * rowLength)];
+		ByteBuffer bb = ByteBuffer.wrap(buffer);
+		XXHash64 hash = new XXHash64();
+		for (long row = firstRow; row < firstRow + count;) {
+			bb.clear();
+			bb.limit((int) Math.min(buffer.length / rowLength, firstRow + count - row) * rowLength);
+			int n = reader.readRows(row, bb);
+			if (n == 0)
+				break;
+			hash.update(buffer, 0, n * rowLength);
+			row += n;
+		}
+		return hash.digest();
+	}
+
+	/**
+	 * Hash of the names, types and positions of the variables, which decide how
+	 * row bytes are read.
+	 */
+	static long layoutHash(XPTContext meta) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(meta.row_length);
+		for (int i = 0; i < meta.var_count; i++) {
+			ReadStatVariable v = meta.variables[i];
+			sb.append('|').append(v.name).append(':').append(v.type).append(':').append(v.offset).append(':')
+					.append(v.storage_width);
+		}
+		byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+		return XXHash64.hash(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Row ranges whose content differs from the previous manifest, adjacent
+	 * chunks merged. Rows that existed before but are gone now are included as
+	 * well, so a range may end past {@link #getRowCount()}.
+	 *
+	 * @param previous the last manifest, or null if there is none
+	 */
+	public List<Range> changedSince(SASXportManifest previous) {
+		if (previous == null || !isCompatible(previous)) {
+			long end = previous == null ? rowCount : Math.max(rowCount, previous.rowCount);
+			return end == 0 ? Collections.<Range>emptyList() : Collections.singletonList(new Range(0, end));
+		}
+		List<Range> changed = new ArrayList<Range>();
+		long start = -1;
+		int chunks = Math.max(hashes.length, previous.hashes.length);
+		for (int i = 0; i <= chunks; i++) {
+			boolean differs = i < chunks
+					&& (i >= hashes.length || i >= previous.hashes.length || hashes[i] != previous.hashes[i]);
+			if (differs && start < 0) {
+				start = i * chunkRows;
+			} else if (!differs && start >= 0) {
+				long end = Math.min(i * chunkRows, Math.max(rowCount, previous.rowCount));
+				changed.add(new Range(start, end));
+				start = -1;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Whether chunk hashes of the two manifests can be compared.
+	 */
+	public boolean isCompatible(SASXportManifest other) {
+		return other.layoutHash == layoutHash && other.chunkRows == chunkRows && other.memberOffset == memberOffset;
+	}
+
+	/**
+	 * Whether the data file still has the size and modification time it had when
+	 * this manifest was computed. A match is a cheap hint, not a proof.
+	 */
+	public boolean matchesFile(String dataFile) {
+		File data = new File(dataFile);
+		return data.length() == fileSize && data.lastModified() == lastModified;
+	}
+
+	/**
+	 * Writes the manifest, replacing any previous one atomically.
+	 */
+	public void save(Path file) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (OutputStream os = Files.newOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024))) {
+			out.write(MAGIC);
+			out.writeLong(fileSize);
+			out.writeLong(lastModified);
+			out.writeLong(memberOffset);
+			out.writeLong(layoutHash);
+			out.writeLong(chunkRows);
+			out.writeLong(rowCount);
+			out.writeInt(hashes.length);
+			for (long hash : hashes) {
+				out.writeLong(hash);
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a saved manifest.
+	 *
+	 * @return the manifest, or null if the file does not exist
+	 */
+	public static SASXportManifest load(Path file) throws IOException {
+		if (!Files.isRegularFile(file))
+			return null;
+		try (InputStream is = Files.newInputStream(file);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(is, 64 * 1024))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new InvalidObjectException("Not an XPT manifest: " + file);
+			long fileSize = in.readLong();
+			long lastModified = in.readLong();
+			long memberOffset = in.readLong();
+			long layoutHash = in.readLong();
+			long chunkRows = in.readLong();
+			long rowCount = in.readLong();
+			long[] hashes = new long[in.readInt()];
+			for (int i = 0; i < hashes.length; i++) {
+				hashes[i] = in.readLong();
+			}
+			return new SASXportManifest(fileSize, lastModified, memberOffset, layoutHash, chunkRows, rowCount,
+					hashes);
+		}
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public long getLayoutHash() {
+		return layoutHash;
+	}
+
+	public long getChunkRows() {
+		return chunkRows;
+	}
+
+	/**
+	 * Number of row slots fingerprinted, trailing blank slots included.
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	public int getChunkCount() {
+		return hashes.length;
+	}
+
+	public long getChunkHash(int chunk) {
+		return hashes[chunk];
+	}
+}
@@ -0,0 +1,754 @@
+package com.sentienz.sas.xpt;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatValue;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.ColumnKernels;
+import com.sentienz.sas.xpt.utils.IO;
+import com.sentienz.sas.xpt.utils.KeyEncoder;
+import com.sentienz.sas.xpt.utils.PrimitiveUtils;
+import com.sentienz.sas.xpt.utils.XPTReaderUtils;
+
+/**
+ * Stateless random access reader over one open XPT file. The header is parsed
+ * once on open; afterwards every call reads with
+ * {@link SASXportStorage#read(ByteBuffer, long)} into a caller supplied buffer
+ * and keeps no per request state, so a single instance can serve any number of
+ * threads without locking. Buffers belong to the caller and may be pooled or
+ * sized per request.
+ *
+ * A read checks only its own rows for the header of a following member, so
+ * in a file with several members, rows read out of order past the end of the
+ * first one may belong to the next. {@link SASXportChunkRunner} leaves out
+ * chunks found to lie past the end, and {@link #settleRowCount()} finds the
+ * end once for callers that need the exact count up front.
+ *
+ * Local files are read through a {@link SASXportFileStorage}; remote ones
+ * through any other {@link SASXportStorage}, of which only the byte ranges
+ * needed are fetched.
+ */
+public class SASXportPositionalReader implements Closeable {
+
+	private final SASXportStorage storage;
+	private final SASXportConverter decoder;
+	private final XPTContext meta;
+	private volatile long rowCount;
+	/** set when opened by name, to find indexes stored next to the file */
+	private String fileName;
+	private volatile long nextMemberOffset = -1;
+	/** rows read in one stretch from the start, so known to lie before the next member */
+	private final AtomicLong verifiedRows = new AtomicLong();
+	private final Object settleLock = new Object();
+	private volatile boolean lastMember = false;
+
+	private static final int VERIFY_BUFFER_SIZE = 1024 * 1024;
+	private static final int SAMPLE_BATCH_SIZE = 4096;
+
+	public SASXportPositionalReader(String fileName) throws Exception {
+		this(fileName, 0);
+	}
+
+	/**
+	 * Opens the member whose header starts at <code>memberOffset</code>, as
+	 * returned by {@link #getNextMemberOffset()}.
+	 */
+	public SASXportPositionalReader(String fileName, long memberOffset) throws Exception {
+		this(new SASXportFileStorage(fileName), memberOffset);
+		this.fileName = fileName;
+	}
+
+	public SASXportPositionalReader(FileChannel channel) throws Exception {
+		this(new SASXportFileStorage(channel), 0);
+	}
+
+	public SASXportPositionalReader(FileChannel channel, long memberOffset) throws Exception {
+		this(new SASXportFileStorage(channel), memberOffset);
+	}
+
+	public SASXportPositionalReader(SASXportStorage storage) throws Exception {
+		this(storage, 0);
+	}
+
+	/**
+	 * Takes ownership of the storage, which is closed with the reader.
+	 *
+	 * @param memberOffset byte offset of the member header, 0 for the first
+	 *                     member
+	 */
+	public SASXportPositionalReader(SASXportStorage storage, long memberOffset) throws Exception {
+		this.storage = storage;
+		try {
+			decoder = new SASXportConverter(new MemberChannel(storage), SASXportConverter.HEADER_BUFFER_SIZE);
+			decoder.initMeta(memberOffset);
+			meta = decoder.getMetaData();
+			meta.file_size = storage.size();
+			rowCount = meta.row_length == 0 ? 0 : (meta.file_size - meta.obs_start) / meta.row_length;
+		} catch (Exception e) {
+			storage.close();
+			throw e;
+		}
+	}
+
+	public XPTContext getMetaData() {
+		return meta;
+	}
+
+	/**
+	 * Number of row slots in the member. Trailing slots may be blank padding.
+	 * For the first member of a file with several, this is an upper bound until
+	 * a read reaches the next member's header, which lowers it to the exact
+	 * count.
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Picks up rows appended since the file was opened, for files that are still
+	 * being written. Only whole rows are counted.
+	 *
+	 * @return the new row count
+	 */
+	public long refreshRowCount() throws IOException {
+		if (meta.row_length > 0 && nextMemberOffset < 0) {
+			meta.file_size = storage.size();
+			rowCount = (meta.file_size - meta.obs_start) / meta.row_length;
+		}
+		return rowCount;
+	}
+
+	public int getRowLength() {
+		return meta.row_length;
+	}
+
+	/**
+	 * Byte offset of the header of the member following this one, or -1 if no
+	 * read has reached it yet.
+	 */
+	public long getNextMemberOffset() {
+		return nextMemberOffset;
+	}
+
+	/**
+	 * Byte offset of the given row.
+	 */
+	public long rowOffset(long row) {
+		return meta.obs_start + row * meta.row_length;
+	}
+
+	/**
+	 * Reads as many whole rows starting at <code>firstRow</code> as fit into the
+	 * remaining space of <code>dst</code>, advancing its position. Stops at a
+	 * member header among the rows read, but does not look at the rows before
+	 * <code>firstRow</code>.
+	 *
+	 * @return the number of rows read, 0 past the last row
+	 */
+	public int readRows(long firstRow, ByteBuffer dst) throws IOException {
+		if (meta.row_length == 0 || firstRow >= rowCount)
+			return 0;
+		int n = (int) Math.min(dst.remaining() / meta.row_length, rowCount - firstRow);
+		int start = dst.position();
+		int limit = dst.limit();
+		dst.limit(start + n * meta.row_length);
+		try {
+			readFully(dst, rowOffset(firstRow));
+		} finally {
+			dst.limit(limit);
+		}
+
+		int end = findMemberEnd(dst, start, firstRow, n);
+		if (end < n)
+			dst.position(start + end * meta.row_length);
+		else
+			advanceVerifiedRows(firstRow, firstRow + n);
+		return end;
+	}
+
+	/**
+	 * Declares that no other member follows this one, as for files holding a
+	 * single dataset. {@link #settleRowCount()} then takes the row count as it
+	 * is instead of scanning the rows not read yet, which matters on remote
+	 * storage where that scan would download them.
+	 */
+	public void declareLastMember() {
+		lastMember = true;
+	}
+
+	/**
+	 * Finds the end of the member once, by scanning the rows not yet read in one
+	 * stretch from the start, after which the row count is exact. Reads do not
+	 * wait for this; a scan that is already done, or rows already read from the
+	 * start, are not read again.
+	 */
+	long settleRowCount() throws IOException {
+		synchronized (settleLock) {
+			int rowLength = meta.row_length;
+			ByteBuffer bb = null;
+			while (!lastMember && rowLength > 0 && nextMemberOffset < 0 && verifiedRows.get() < rowCount) {
+				if (bb == null)
+					bb = ByteBuffer.allocate(Math.max(1, VERIFY_BUFFER_SIZE / rowLength) * rowLength);
+				long first = verifiedRows.get();
+				int n = (int) Math.min(bb.capacity() / rowLength, rowCount - first);
+				bb.clear();
+				bb.limit(n * rowLength);
+				readFully(bb, rowOffset(first));
+				if (findMemberEnd(bb, 0, first, n) < n)
+					break;
+				advanceVerifiedRows(first, first + n);
+			}
+		}
+		return rowCount;
+	}
+
+	/**
+	 * Takes over a row count settled earlier, for example by an index build or
+	 * a pass that read every row, so that {@link #settleRowCount()} need not
+	 * scan again.
+	 *
+	 * @param nextMemberOffset offset of the following member, or -1 if there is
+	 *                         none
+	 */
+	void assumeRowCount(long rows, long nextMemberOffset) {
+		synchronized (this) {
+			if (nextMemberOffset >= 0 && this.nextMemberOffset < 0) {
+				rowCount = Math.min(rowCount, rows);
+				this.nextMemberOffset = nextMemberOffset;
+			}
+		}
+		advanceVerifiedRows(0, Math.min(rows, rowCount));
+	}
+
+	/**
+	 * Extends the rows read from the start by the rows just read, if they
+	 * connect to them.
+	 */
+	private void advanceVerifiedRows(long firstRow, long endRow) {
+		long verified;
+		while ((verified = verifiedRows.get()) >= firstRow && verified < endRow) {
+			if (verifiedRows.compareAndSet(verified, endRow))
+				return;
+		}
+	}
+
+	/**
+	 * Looks for the next member's header among the rows just read. Only the
+	 * last rows of a member can hold it, so the check is a few byte compares
+	 * per row.
+	 *
+	 * @return the number of rows before the header
+	 */
+	private int findMemberEnd(ByteBuffer dst, int start, long firstRow, int n) throws IOException {
+		int rowLength = meta.row_length;
+		byte[] array = dst.hasArray() ? dst.array() : null;
+		byte[] slot = array == null ? new byte[rowLength] : null;
+		for (int i = 0; i < n; i++) {
+			byte[] row = array;
+			int off = array == null ? 0 : dst.arrayOffset() + start + i * rowLength;
+			if (array == null) {
+				ByteBuffer view = dst.duplicate();
+				view.position(start + i * rowLength);
+				view.get(slot);
+				row = slot;
+			}
+			if (row[off] != ' ' && row[off] != 'H')
+				continue;
+
+			long slotStart = rowOffset(firstRow + i);
+			int p = SASXportConverter.memberHeaderIndex(row, off, rowLength, slotStart);
+			if (p < 0 || !headerContinues(slotStart + rowLength, rowLength - p))
+				continue;
+
+			long rows = firstRow + i;
+			synchronized (this) {
+				if (rows < rowCount || nextMemberOffset < 0) {
+					rowCount = rows;
+					nextMemberOffset = slotStart + p;
+				}
+			}
+			return i;
+		}
+		return n;
+	}
+
+	/**
+	 * Checks the part of a member header that lies beyond the row slot.
+	 */
+	private boolean headerContinues(long position, int matched) throws IOException {
+		byte[] signature = SASXportConverter.MEMBER_HEADER;
+		if (matched >= signature.length)
+			return true;
+		ByteBuffer rest = ByteBuffer.allocate(signature.length - matched);
+		try {
+			readFully(rest, position);
+		} catch (EOFException e) {
+			return false;
+		}
+		for (int i = matched; i < signature.length; i++) {
+			if (rest.get(i - matched) != signature[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Row count without the blank slots that pad the last record.
+	 */
+	long dataRowCount() throws IOException {
+		long rows = rowCount;
+		byte[] tail = new byte[meta.row_length];
+		while (rows > 0) {
+			readFully(ByteBuffer.wrap(tail), rowOffset(rows - 1));
+			if (!isBlankRow(tail, 0))
+				break;
+			rows--;
+		}
+		return rows;
+	}
+
+	/**
+	 * Reads arbitrary bytes, for example a single column of a row.
+	 */
+	public void readFully(ByteBuffer dst, long position) throws IOException {
+		storage.readFully(dst, position);
+	}
+
+	/**
+	 * Reads and decodes up to <code>count</code> rows, skipping blank ones. The
+	 * buffer only needs to hold one row; larger buffers mean fewer reads.
+	 */
+	public List<List<String>> readRecords(long firstRow, long count, byte[] buffer) throws IOException {
+
+		int rowLength = meta.row_length;
+		if (buffer.length < rowLength)
+			throw new IllegalArgumentException("Buffer smaller than one row: " + buffer.length);
+
+		List<List<String>> records = new ArrayList<List<String>>();
+		ByteBuffer bb = ByteBuffer.wrap(buffer);
+		long row = firstRow;
+		long end = Math.min(rowCount, firstRow + count);
+		while (row < end) {
+			bb.clear();
+			bb.limit((int) Math.min(buffer.length / rowLength, end - row) * rowLength);
+			int n = readRows(row, bb);
+			if (n == 0)
+				break;
+			for (int i = 0; i < n; i++) {
+				if (!isBlankRow(buffer, i * rowLength))
+					records.add(decodeRecord(buffer, i * rowLength));
+			}
+			row += n;
+		}
+		return records;
+	}
+
+	/**
+	 * Pushes the selected columns of up to <code>count</code> rows to the visitor,
+	 * skipping blank rows.
+	 *
+	 * @param columns variable indexes to visit, or null for all of them
+	 * @return the number of rows visited
+	 */
+	public long visitRows(long firstRow, long count, int[] columns, byte[] buffer, SASXportRowVisitor visitor)
+			throws IOException {
+
+		int rowLength = meta.row_length;
+		if (buffer.length < rowLength)
+			throw new IllegalArgumentException("Buffer smaller than one row: " + buffer.length);
+
+		long visited = 0;
+		ByteBuffer bb = ByteBuffer.wrap(buffer);
+		long row = firstRow;
+		long end = Math.min(rowCount, firstRow + count);
+		while (row < end) {
+			bb.clear();
+			bb.limit((int) Math.min(buffer.length / rowLength, end - row) * rowLength);
+			int n = readRows(row, bb);
+			if (n == 0)
+				break;
+			for (int i = 0; i < n; i++) {
+				if (!isBlankRow(buffer, i * rowLength)) {
+					decoder.visitRow(buffer, i * rowLength, row + i, columns, visitor);
+					visited++;
+				}
+			}
+			row += n;
+		}
+		return visited;
+	}
+
+	/**
+	 * Reads up to <code>batch.capacity</code> non blank rows starting at
+	 * <code>firstRow</code> into the column vectors of the batch, decoding each
+	 * numeric column for the whole block in one pass.
+	 *
+	 * @param buffer must hold at least <code>batch.capacity</code> rows
+	 * @return the row to continue from, or the row count once all rows are read
+	 */
+	public long readColumns(long firstRow, SASXportColumnBatch batch, byte[] buffer) throws IOException {
+
+		int rowLength = meta.row_length;
+		if (buffer.length < batch.capacity * rowLength)
+			throw new IllegalArgumentException("Buffer smaller than " + batch.capacity + " rows: " + buffer.length);
+
+		ByteBuffer bb = ByteBuffer.wrap(buffer, 0, batch.capacity * rowLength);
+		int n = readRows(firstRow, bb);
+
+		// blank rows only pad the end of the data, compact them away
+		int rows = 0;
+		for (int i = 0; i < n; i++) {
+			if (isBlankRow(buffer, i * rowLength))
+				continue;
+			if (rows != i)
+				System.arraycopy(buffer, i * rowLength, buffer, rows * rowLength, rowLength);
+			rows++;
+		}
+
+		batch.firstRow = firstRow;
+		batch.rowCount = rows;
+		for (int c = 0; c < batch.columns.length; c++) {
+			ReadStatVariable variable = meta.variables[batch.columns[c]];
+			if (variable.type == ReadstatType.READSTAT_TYPE_STRING) {
+				String[] strings = batch.strings[c];
+				for (int r = 0; r < rows; r++) {
+					strings[r] = IO.readString(buffer, r * rowLength + variable.offset, variable.storage_width);
+				}
+			} else if (variable.storage_width >= XPTTypes.XPORT_MIN_DOUBLE_SIZE
+					&& variable.storage_width <= XPTTypes.XPORT_MAX_DOUBLE_SIZE) {
+				batch.types[c] = decodeNumeric(batch, c, variable, buffer, rows);
+			} else {
+				batch.types[c] = ReadstatType.READSTAT_TYPE_DOUBLE;
+				Arrays.fill(batch.fallbackValues(c), 0, rows, 0.0d);
+				Arrays.fill(batch.missing[c], 0l);
+			}
+		}
+		return firstRow + n;
+	}
+
+	/**
+	 * Decodes into the declared vector, or into doubles if a value does not fit.
+	 *
+	 * @return the type of the vector filled
+	 */
+	private ReadstatType decodeNumeric(SASXportColumnBatch batch, int c, ReadStatVariable variable, byte[] buffer,
+			int rows) {
+		int rowLength = meta.row_length;
+		int width = variable.storage_width;
+		ReadstatType type = batch.declaredTypes[c];
+		if (SASXportColumnBatch.isInt(type)) {
+			if (ColumnKernels.decodeInts(buffer, variable.offset, rowLength, rows, width, batch.ints[c],
+					batch.missing[c], batch.tags[c]))
+				return ReadstatType.READSTAT_TYPE_INT32;
+		} else if (type == ReadstatType.READSTAT_TYPE_FLOAT) {
+			if (ColumnKernels.decodeFloats(buffer, variable.offset, rowLength, rows, width, batch.floats[c],
+					batch.missing[c], batch.tags[c]))
+				return ReadstatType.READSTAT_TYPE_FLOAT;
+		}
+		ColumnKernels.decodeDoubles(buffer, variable.offset, rowLength, rows, width, batch.fallbackValues(c),
+				batch.missing[c], batch.tags[c]);
+		return ReadstatType.READSTAT_TYPE_DOUBLE;
+	}
+
+	/**
+	 * Picks the narrowest vector type for each numeric column from a sample of
+	 * rows spread over the file: INT8, INT16 or INT32 when every sampled value is
+	 * an integer in that range, FLOAT for widths up to 4 bytes, which a float
+	 * holds exactly, and DOUBLE otherwise. Columns without a sampled value stay
+	 * DOUBLE. A sample can miss the odd value that does not fit, which
+	 * {@link #readColumns} handles by falling back to doubles for that block,
+	 * as it does for the rows of a following member a late stripe may sample.
+	 *
+	 * @param columns    variable indexes
+	 * @param sampleRows rows to look at, all of them if the file is smaller
+	 * @return one type per column, STRING for string columns
+	 */
+	public ReadstatType[] sampleTypes(int[] columns, int sampleRows) throws IOException {
+
+		int rowLength = meta.row_length;
+		long[] min = new long[columns.length];
+		long[] max = new long[columns.length];
+		boolean[] integral = new boolean[columns.length];
+		boolean[] seen = new boolean[columns.length];
+		Arrays.fill(min, Long.MAX_VALUE);
+		Arrays.fill(max, Long.MIN_VALUE);
+		Arrays.fill(integral, true);
+
+		int stripes = 16;
+		long stripeRows = Math.max(1, sampleRows / stripes);
+		byte[] buffer = new byte[(int) Math.min(stripeRows, Math.max(1, 1024 * 1024 / rowLength)) * rowLength];
+		ByteBuffer bb = ByteBuffer.wrap(buffer);
+		long stride = Math.max(stripeRows, rowCount / stripes);
+
+		for (long first = 0; first < rowCount; first += stride) {
+			for (long row = first; row < Math.min(first + stripeRows, rowCount);) {
+				bb.clear();
+				bb.limit((int) Math.min(buffer.length / rowLength, first + stripeRows - row) * rowLength);
+				int n = readRows(row, bb);
+				if (n == 0)
+					break;
+				for (int r = 0; r < n; r++) {
+					int off = r * rowLength;
+					if (isBlankRow(buffer, off))
+						continue;
+					for (int c = 0; c < columns.length; c++) {
+						ReadStatVariable variable = meta.variables[columns[c]];
+						int pos = off + variable.offset;
+						if (variable.type == ReadstatType.READSTAT_TYPE_STRING || !integral[c]
+								|| SASXportConverter.isMissingValue(buffer, pos, variable.storage_width))
+							continue;
+						double d = PrimitiveUtils.xpt2ieee(buffer, pos, variable.storage_width);
+						seen[c] = true;
+						if (d != Math.rint(d) || Math.abs(d) > Integer.MAX_VALUE) {
+							integral[c] = false;
+							continue;
+						}
+						min[c] = Math.min(min[c], (long) d);
+						max[c] = Math.max(max[c], (long) d);
+					}
+				}
+				row += n;
+			}
+		}
+
+		ReadstatType[] types = new ReadstatType[columns.length];
+		for (int c = 0; c < columns.length; c++) {
+			ReadStatVariable variable = meta.variables[columns[c]];
+			if (variable.type == ReadstatType.READSTAT_TYPE_STRING)
+				types[c] = ReadstatType.READSTAT_TYPE_STRING;
+			else if (!seen[c])
+				types[c] = ReadstatType.READSTAT_TYPE_DOUBLE;
+			else if (integral[c] && min[c] >= Byte.MIN_VALUE && max[c] <= Byte.MAX_VALUE)
+				types[c] = ReadstatType.READSTAT_TYPE_INT8;
+			else if (integral[c] && min[c] >= Short.MIN_VALUE && max[c] <= Short.MAX_VALUE)
+				types[c] = ReadstatType.READSTAT_TYPE_INT16;
+			else if (integral[c] && min[c] >= Integer.MIN_VALUE && max[c] <= Integer.MAX_VALUE)
+				types[c] = ReadstatType.READSTAT_TYPE_INT32;
+			else if (variable.storage_width <= 4)
+				types[c] = ReadstatType.READSTAT_TYPE_FLOAT;
+			else
+				types[c] = ReadstatType.READSTAT_TYPE_DOUBLE;
+		}
+		return types;
+	}
+
+	/**
+	 * Reads the rows whose columns equal the given values, through a
+	 * {@link SASXportIndex} on exactly these columns if one is stored next to the
+	 * file and up to date, and by scanning the key columns otherwise.
+	 *
+	 * @param values one per column, see {@link KeyEncoder#encodeValue}
+	 */
+	public List<List<String>> readMatching(String[] columns, Object[] values) throws IOException {
+		if (fileName != null) {
+			SASXportIndex index = SASXportIndex.find(this, fileName, columns);
+			if (index != null) {
+				try {
+					return readRows(index.lookup(values));
+				} finally {
+					index.close();
+				}
+			}
+		}
+
+		ReadStatVariable[] variables = new ReadStatVariable[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			int col = getVariableIndex(columns[i]);
+			if (col < 0)
+				throw new IllegalArgumentException("Unknown variable: " + columns[i]);
+			variables[i] = meta.variables[col];
+		}
+		int keyLength = KeyEncoder.width(variables);
+		byte[] key = new byte[keyLength];
+		int off = 0;
+		for (int i = 0; i < values.length; i++) {
+			off = KeyEncoder.encodeValue(variables[i], values[i], key, off);
+		}
+
+		int rowLength = meta.row_length;
+		List<List<String>> records = new ArrayList<List<String>>();
+		byte[] buffer = new byte[Math.max(rowLength, 1024 * 1024 / rowLength * rowLength)];
+		byte[] cell = new byte[keyLength];
+		ByteBuffer bb = ByteBuffer.wrap(buffer);
+		for (long row = 0; row < rowCount;) {
+			bb.clear();
+			int n = readRows(row, bb);
+			if (n == 0)
+				break;
+			for (int i = 0; i < n; i++) {
+				if (isBlankRow(buffer, i * rowLength))
+					continue;
+				KeyEncoder.encode(variables, buffer, i * rowLength, cell, 0);
+				if (KeyEncoder.compare(cell, 0, key, 0, keyLength) == 0)
+					records.add(decodeRecord(buffer, i * rowLength));
+			}
+			row += n;
+		}
+		return records;
+	}
+
+	public List<List<String>> readMatching(String column, Object value) throws IOException {
+		return readMatching(new String[] { column }, new Object[] { value });
+	}
+
+	/**
+	 * Reads and decodes the given rows, in ascending order, with one read per run
+	 * of adjacent rows. Blank rows and rows past the end are left out.
+	 */
+	public List<List<String>> readRows(long[] rows) throws IOException {
+		int rowLength = meta.row_length;
+		List<List<String>> records = new ArrayList<List<String>>(rows.length);
+		byte[] buffer = new byte[Math.max(rowLength, 64 * 1024 / rowLength * rowLength)];
+		int maxRows = buffer.length / rowLength;
+		for (int i = 0; i < rows.length;) {
+			int run = 1;
+			while (i + run < rows.length && run < maxRows && rows[i + run] == rows[i] + run)
+				run++;
+			ByteBuffer bb = ByteBuffer.wrap(buffer, 0, run * rowLength);
+			int n = readRows(rows[i], bb);
+			for (int r = 0; r < n; r++) {
+				if (!isBlankRow(buffer, r * rowLength))
+					records.add(decodeRecord(buffer, r * rowLength));
+			}
+			i += run;
+		}
+		return records;
+	}
+
+	/**
+	 * Reads the rows the sampling selects, in row order. Only the selected rows
+	 * are read, each run of adjacent ones at once.
+	 *
+	 * In the first member of a file with several, the row count is an upper
+	 * bound until a read reaches the next member, so a reservoir sample may
+	 * come back smaller than asked for.
+	 */
+	public List<List<String>> readSample(SASXportSampling sampling) throws IOException {
+		SASXportSampling.Selector selector = sampling.selector(rowCount);
+		long limit = sampling.limit > 0 ? sampling.limit : Long.MAX_VALUE;
+		List<List<String>> records = new ArrayList<List<String>>();
+		long[] batch = new long[SAMPLE_BATCH_SIZE];
+		boolean exhausted = false;
+		while (!exhausted && records.size() < limit) {
+			int want = (int) Math.min(batch.length, limit - records.size());
+			int n = 0;
+			while (n < want) {
+				long slot = selector.next();
+				if (slot >= rowCount) {
+					exhausted = true;
+					break;
+				}
+				batch[n++] = slot;
+			}
+			List<List<String>> rows = readRows(n == batch.length ? batch : Arrays.copyOf(batch, n));
+			for (int i = 0; i < rows.size() && records.size() < limit; i++) {
+				records.add(rows.get(i));
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * @return the index of the named variable, or -1
+	 */
+	public int getVariableIndex(String name) {
+		return XPTReaderUtils.getVariableIndex(meta, name);
+	}
+
+	public boolean isBlankRow(byte[] buffer, int off) {
+		for (int i = off; i < off + meta.row_length; i++) {
+			if (buffer[i] != ' ')
+				return false;
+		}
+		return true;
+	}
+
+	public List<String> decodeRecord(byte[] buffer, int off) {
+		List<String> record = new ArrayList<String>(meta.var_count);
+		decoder.decodeRecord(buffer, off, record, null);
+		return record;
+	}
+
+	/**
+	 * Decodes a single column of the row at <code>off</code>, as
+	 * {@link #decodeRecord} would.
+	 */
+	public String decodeCell(byte[] buffer, int off, int col) {
+		return decoder.getRowDecoder().decode(buffer, off, col);
+	}
+
+	public List<ReadstatValue> decodePrimitiveRecord(byte[] buffer, int off) {
+		List<ReadstatValue> record = new ArrayList<ReadstatValue>(meta.var_count);
+		decoder.decodeRecord(buffer, off, new ArrayList<String>(meta.var_count), record);
+		return record;
+	}
+
+	public void close() throws IOException {
+		storage.close();
+	}
+
+	/**
+	 * Sequential view of the storage for header parsing that uses positional
+	 * reads too. Seekable, so the header parser can jump straight to a later
+	 * member.
+	 */
+	private static class MemberChannel implements SeekableByteChannel {
+
+		private final SASXportStorage storage;
+		private long position = 0;
+		private boolean open = true;
+
+		MemberChannel(SASXportStorage storage) {
+			this.storage = storage;
+		}
+
+		public int read(ByteBuffer dst) throws IOException {
+			int n = storage.read(dst, position);
+			if (n > 0)
+				position += n;
+			return n;
+		}
+
+		public int write(ByteBuffer src) {
+			throw new NonWritableChannelException();
+		}
+
+		public long position() {
+			return position;
+		}
+
+		public SeekableByteChannel position(long newPosition) {
+			position = newPosition;
+			return this;
+		}
+
+		public long size() throws IOException {
+			return storage.size();
+		}
+
+		public SeekableByteChannel truncate(long size) {
+			throw new NonWritableChannelException();
+		}
+
+		public boolean isOpen() {
+			return open;
+		}
+
+		public void close() {
+			// the storage is owned by the reader
+			open = false;
+		}
+	}
+}
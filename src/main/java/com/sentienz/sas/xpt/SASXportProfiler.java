@@ -0,0 +1,103 @@
+package com.sentienz.sas.xpt;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.utils.PrimitiveUtils;
+
+/**
+ * Computes a {@link SASXportColumnProfile} for every column in one parallel pass
+ * over the raw row bytes.
+ */
+public class SASXportProfiler {
+
+	private SASXportProfiler() {
+		// prevent instantiation
+	}
+
+	public static List<SASXportColumnProfile> profile(final SASXportPositionalReader reader, int threads)
+			throws Exception {
+
+		List<SASXportColumnProfile[]> partials = SASXportChunkRunner.run(reader, threads,
+				(firstRow, rowCount) -> profile(reader, firstRow, rowCount));
+
+		SASXportColumnProfile[] total = newProfiles(reader);
+		for (SASXportColumnProfile[] partial : partials) {
+			for (int i = 0; i < total.length; i++) {
+				total[i].merge(partial[i]);
+			}
+		}
+		return Arrays.asList(total);
+	}
+
+	private static SASXportColumnProfile[] newProfiles(SASXportPositionalReader reader) {
+		ReadStatVariable[] variables = reader.getMetaData().variables;
+		SASXportColumnProfile[] profiles = new SASXportColumnProfile[variables.length];
+		for (int i = 0; i < variables.length; i++) {
+			profiles[i] = new SASXportColumnProfile();
+			profiles[i].name = variables[i].name;
+			profiles[i].type = variables[i].type;
+		}
+		return profiles;
+	}
+
+	private static SASXportColumnProfile[] profile(SASXportPositionalReader reader, long firstRow, long rowCount)
+			throws Exception {
+
+		ReadStatVariable[] variables = reader.getMetaData().variables;
+		SASXportColumnProfile[] profiles = newProfiles(reader);
+
+		int rowLength = reader.getRowLength();
+		byte[] buffer = new byte[Math.max(rowLength, 64 * 1024 / rowLength * rowLength)];
+		ByteBuffer bb = ByteBuffer.wrap(buffer);
+
+		for (long row = firstRow; row < firstRow + rowCount;) {
+			bb.clear();
+			bb.limit((int) Math.min(buffer.length / rowLength, firstRow + rowCount - row) * rowLength);
+			int n = reader.readRows(row, bb);
+			if (n == 0)
+				break;
+			for (int r = 0; r < n; r++) {
+				int off = r * rowLength;
+				if (reader.isBlankRow(buffer, off))
+					continue;
+				for (int c = 0; c < variables.length; c++) {
+					ReadStatVariable variable = variables[c];
+					SASXportColumnProfile profile = profiles[c];
+					int pos = off + variable.offset;
+					int width = variable.storage_width;
+					profile.rows++;
+
+					if (variable.type == ReadstatType.READSTAT_TYPE_STRING) {
+						while (width > 0 && buffer[pos + width - 1] == ' ') {
+							width--;
+						}
+						profile.minLength = Math.min(profile.minLength, width);
+						profile.maxLength = Math.max(profile.maxLength, width);
+						if (width == 0) {
+							profile.missing++;
+							continue;
+						}
+					} else if (width > XPTTypes.XPORT_MAX_DOUBLE_SIZE || width < XPTTypes.XPORT_MIN_DOUBLE_SIZE
+							|| SASXportConverter.isMissingValue(buffer, pos, width)) {
+						profile.missing++;
+						continue;
+					} else {
+						double d = PrimitiveUtils.xpt2ieee(buffer, pos, width);
+						profile.sum += d;
+						if (Double.isNaN(profile.min) || d < profile.min)
+							profile.min = d;
+						if (Double.isNaN(profile.max) || d > profile.max)
+							profile.max = d;
+					}
+					profile.distinct.addBytes(buffer, pos, width);
+				}
+			}
+			row += n;
+		}
+		return profiles;
+	}
+}
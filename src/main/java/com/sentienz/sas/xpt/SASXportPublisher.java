@@ -0,0 +1,282 @@
+package com.sentienz.sas.xpt;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Flow.Publisher} of the row or column batches of an XPT member. Every
+ * subscriber gets its own reader, opened by the task that serves its first
+ * request, and batches are read only to satisfy demand: a subscription that
+ * has not requested anything holds no file, no threads and no buffers.
+ *
+ * Reading and emitting run as short tasks on the given executor, at most
+ * {@link #MAX_BATCHES_PER_TURN} batches at a time, so a few threads can serve
+ * many streams. Signals to one subscriber never overlap. Cancelling closes the
+ * reader at once when no batch is being read, or right after the batch in
+ * progress otherwise.
+ *
+ * Readers come from an {@link Opener}, so a remote file can be read through a
+ * {@link SASXportBlockCache}, which then supplies the read ahead.
+ *
+ * <pre>
+ * Flow.Publisher&lt;SASXportColumnBatch&gt; publisher = SASXportPublisher.columns("lb.xpt",
+ * 		new String[] { "USUBJID", "LBSTRESN" }, 8192, pool);
+ * publisher.subscribe(subscriber);
+ * </pre>
+ */
+public class SASXportPublisher<T> implements Flow.Publisher<T> {
+
+	/** most batches emitted in one task before the executor is given back */
+	public static final int MAX_BATCHES_PER_TURN = 16;
+
+	/**
+	 * Opens a new reader for each subscription; the reader is closed by the
+	 * publisher.
+	 */
+	public interface Opener {
+		SASXportPositionalReader open() throws Exception;
+	}
+
+	/**
+	 * Batches of one subscription, read on demand.
+	 */
+	private interface Batches<T> {
+
+		/**
+		 * @return the next batch, or null after the last row
+		 */
+		T next() throws IOException;
+	}
+
+	private interface BatchesFactory<T> {
+		Batches<T> create(SASXportPositionalReader reader);
+	}
+
+	private final Opener opener;
+	private final BatchesFactory<T> factory;
+	private final Executor executor;
+
+	private SASXportPublisher(Opener opener, BatchesFactory<T> factory, Executor executor) {
+		if (executor == null)
+			throw new NullPointerException("executor");
+		this.opener = opener;
+		this.factory = factory;
+		this.executor = executor;
+	}
+
+	/**
+	 * Publishes the decoded rows of the first member of a file, blank rows left
+	 * out, in batches of up to <code>batchRows</code> rows.
+	 */
+	public static SASXportPublisher<List<List<String>>> rows(final String fileName, int batchRows,
+			Executor executor) {
+		return rows(() -> new SASXportPositionalReader(fileName), batchRows, executor);
+	}
+
+	public static SASXportPublisher<List<List<String>>> rows(Opener opener, final int batchRows,
+			Executor executor) {
+		checkBatchRows(batchRows);
+		return new SASXportPublisher<List<List<String>>>(opener, reader -> {
+			final byte[] buffer = new byte[Math.max(1, batchRows * reader.getRowLength())];
+			return new Batches<List<List<String>>>() {
+				long row = 0;
+
+				public List<List<String>> next() throws IOException {
+					while (row < reader.getRowCount()) {
+						List<List<String>> rows = reader.readRecords(row, batchRows, buffer);
+						row += batchRows;
+						if (!rows.isEmpty())
+							return rows;
+					}
+					return null;
+				}
+			};
+		}, executor);
+	}
+
+	/**
+	 * Publishes column batches of up to <code>batchRows</code> rows of the first
+	 * member of a file, numerics decoded as doubles. Each batch is a new
+	 * {@link SASXportColumnBatch}, so subscribers may keep it.
+	 *
+	 * @param columns names of the columns, or null for all of them
+	 */
+	public static SASXportPublisher<SASXportColumnBatch> columns(final String fileName, String[] columns,
+			int batchRows, Executor executor) {
+		return columns(() -> new SASXportPositionalReader(fileName), columns, batchRows, executor);
+	}
+
+	public static SASXportPublisher<SASXportColumnBatch> columns(Opener opener, final String[] columns,
+			final int batchRows, Executor executor) {
+		checkBatchRows(batchRows);
+		return new SASXportPublisher<SASXportColumnBatch>(opener, reader -> {
+			final int[] selected = new int[columns == null ? reader.getMetaData().var_count : columns.length];
+			for (int i = 0; i < selected.length; i++) {
+				selected[i] = columns == null ? i : reader.getVariableIndex(columns[i]);
+				if (selected[i] < 0)
+					throw new IllegalArgumentException("Unknown variable: " + columns[i]);
+			}
+			final byte[] buffer = new byte[Math.max(1, batchRows * reader.getRowLength())];
+			return new Batches<SASXportColumnBatch>() {
+				long row = 0;
+
+				public SASXportColumnBatch next() throws IOException {
+					while (row < reader.getRowCount()) {
+						SASXportColumnBatch batch = new SASXportColumnBatch(reader.getMetaData(), selected,
+								batchRows);
+						row = reader.readColumns(row, batch, buffer);
+						if (batch.rowCount > 0)
+							return batch;
+						if (row == batch.firstRow)
+							break;
+					}
+					return null;
+				}
+			};
+		}, executor);
+	}
+
+	private static void checkBatchRows(int batchRows) {
+		if (batchRows <= 0)
+			throw new IllegalArgumentException("Batch rows must be positive: " + batchRows);
+	}
+
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException("subscriber");
+		Subscription<T> subscription = new Subscription<T>(this, subscriber);
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * Demand is counted in {@link #requested}; {@link #wip} counts the signals
+	 * that asked for a drain, and whoever raises it from 0 owns the reader until
+	 * it brings it back to 0, so reads and signals never run concurrently.
+	 */
+	private static final class Subscription<T> implements Flow.Subscription, Runnable {
+
+		private final SASXportPublisher<T> publisher;
+		private final Flow.Subscriber<? super T> subscriber;
+
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled = false;
+		private volatile Throwable invalidRequest;
+
+		/** touched by the owner of the drain only */
+		private SASXportPositionalReader reader;
+		private Batches<T> batches;
+		private boolean done = false;
+
+		Subscription(SASXportPublisher<T> publisher, Flow.Subscriber<? super T> subscriber) {
+			this.publisher = publisher;
+			this.subscriber = subscriber;
+		}
+
+		public void request(long n) {
+			if (n <= 0) {
+				invalidRequest = new IllegalArgumentException("Non-positive request: " + n);
+			} else {
+				long current, next;
+				do {
+					current = requested.get();
+					next = current + n < 0 ? Long.MAX_VALUE : current + n;
+				} while (!requested.compareAndSet(current, next));
+			}
+			schedule();
+		}
+
+		public void cancel() {
+			cancelled = true;
+			// nobody is reading: close right here instead of waiting for the executor
+			if (wip.getAndIncrement() == 0)
+				close();
+		}
+
+		private void schedule() {
+			if (wip.getAndIncrement() == 0)
+				execute();
+		}
+
+		private void execute() {
+			try {
+				publisher.executor.execute(this);
+			} catch (RuntimeException e) {
+				fail(e);
+			}
+		}
+
+		public void run() {
+			int missed = wip.get();
+			int emitted = 0;
+			while (true) {
+				if (cancelled || done) {
+					close();
+					return;
+				}
+				if (invalidRequest != null) {
+					fail(invalidRequest);
+					return;
+				}
+				try {
+					if (reader == null) {
+						reader = publisher.opener.open();
+						batches = publisher.factory.create(reader);
+					}
+					while (requested.get() > 0 && !cancelled && emitted < MAX_BATCHES_PER_TURN) {
+						T batch = batches.next();
+						if (batch == null) {
+							done = true;
+							close();
+							subscriber.onComplete();
+							return;
+						}
+						if (cancelled)
+							break;
+						if (requested.get() != Long.MAX_VALUE)
+							requested.decrementAndGet();
+						emitted++;
+						subscriber.onNext(batch);
+					}
+				} catch (Throwable e) {
+					fail(e);
+					return;
+				}
+				if (emitted == MAX_BATCHES_PER_TURN && requested.get() > 0 && !cancelled) {
+					// more demand: continue in a new task, behind the other streams
+					execute();
+					return;
+				}
+				missed = wip.addAndGet(-missed);
+				if (missed == 0)
+					return;
+			}
+		}
+
+		private void fail(Throwable e) {
+			if (done)
+				return;
+			done = true;
+			close();
+			if (!cancelled)
+				subscriber.onError(e);
+		}
+
+		private void close() {
+			done = true;
+			batches = null;
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					System.err.println("!!WARN!! Closing reader failed: " + e);
+				}
+				reader = null;
+			}
+		}
+	}
+}
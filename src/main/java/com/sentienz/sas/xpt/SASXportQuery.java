@@ -0,0 +1,954 @@
+package com.sentienz.sas.xpt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.IO;
+import com.sentienz.sas.xpt.utils.KeyEncoder;
+import com.sentienz.sas.xpt.utils.PrimitiveUtils;
+import com.sentienz.sas.xpt.utils.XPTReaderUtils;
+
+/**
+ * A small SQL dialect over the first member of an XPT file, without loading it
+ * anywhere first:
+ *
+ * <pre>
+ * SELECT * | COUNT(*) | column [, column ...]
+ * FROM file
+ * [WHERE condition]
+ * [LIMIT n]
+ * </pre>
+ *
+ * Conditions combine comparisons of a column with a literal (=, &lt;&gt;, !=,
+ * &lt;, &lt;=, &gt;, &gt;=), <code>BETWEEN</code>, <code>IN</code> and
+ * <code>IS [NOT] NULL</code> with AND, OR, NOT and parentheses. Missing
+ * numerics and blank strings are NULL, and a comparison with NULL is unknown,
+ * as in SQL: NOT keeps it unknown, so the row is selected neither by the
+ * comparison nor by its negation. Keywords are case insensitive, as are column
+ * names.
+ *
+ * All of the query is pushed into the reader. The condition is compiled
+ * against the raw row bytes, comparing cells in {@link KeyEncoder} order, so
+ * rows are tested without decoding. Only the selected columns of matching rows
+ * are decoded. An equality, IN or range condition that must hold for every row
+ * is answered through a {@link SASXportIndex} on its column when one is stored
+ * next to the file, and a LIMIT stops reading once enough rows were found.
+ * Other queries scan the rows in parallel chunks.
+ *
+ * <pre>
+ * Result r = SASXportQuery.execute("SELECT USUBJID, AVAL FROM adlb.xpt WHERE PARAMCD = 'ALT' AND AVAL &gt; 100");
+ * </pre>
+ */
+public class SASXportQuery {
+
+	private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+	/** a range lookup is used while it selects at most 1 / this of the rows */
+	private static final int MAX_RANGE_FRACTION = 8;
+
+	public static class Result {
+		/** names of the returned columns */
+		public String[] columns;
+		/** decoded cells, null for missing numerics */
+		public List<List<String>> rows;
+		/** how the rows were found: a scan, or the index used */
+		public String access;
+		/** rows whose bytes were tested against the condition */
+		public long rowsExamined;
+	}
+
+	private final String table;
+	/** selected columns, null for all of them */
+	private final String[] select;
+	private final boolean count;
+	/** null when every row qualifies */
+	private final Node where;
+	/** -1 for no limit */
+	private final long limit;
+
+	private SASXportQuery(String table, String[] select, boolean count, Node where, long limit) {
+		this.table = table;
+		this.select = select;
+		this.count = count;
+		this.where = where;
+		this.limit = limit;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the query does not parse
+	 */
+	public static SASXportQuery parse(String sql) {
+		return new Parser(sql).query();
+	}
+
+	/**
+	 * Builds a query from its parts rather than SQL text.
+	 *
+	 * @param columns   selected columns, null for all of them
+	 * @param count     whether to return only the number of matching rows
+	 * @param condition the text of a WHERE clause, or null
+	 * @param limit     maximum number of rows, -1 for no limit
+	 * @throws IllegalArgumentException if the condition does not parse
+	 */
+	public static SASXportQuery of(String table, String[] columns, boolean count, String condition, long limit) {
+		Node where = condition == null ? null : new Parser(condition).condition();
+		return new SASXportQuery(table, columns == null ? null : columns.clone(), count, where, limit);
+	}
+
+	/**
+	 * Parses and runs a query with one thread per processor.
+	 */
+	public static Result execute(String sql) throws Exception {
+		return parse(sql).execute(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Runs the query against the file named in FROM, trying the name with
+	 * <code>.xpt</code> appended if there is no such file.
+	 */
+	public Result execute(int threads) throws Exception {
+		String dataFile = table;
+		if (!new File(dataFile).isFile() && new File(dataFile + ".xpt").isFile())
+			dataFile = dataFile + ".xpt";
+		try (SASXportPositionalReader reader = new SASXportPositionalReader(dataFile)) {
+			return execute(reader, dataFile, threads);
+		}
+	}
+
+	/**
+	 * Runs the query against an open reader, ignoring the FROM clause.
+	 *
+	 * @param dataFile file of the reader, where indexes are looked for, or null
+	 */
+	public Result execute(final SASXportPositionalReader reader, String dataFile, int threads) throws Exception {
+		final XPTContext meta = reader.getMetaData();
+		final Test test = where == null ? null : where.bind(meta);
+		final int[] columns = select == null ? null : resolve(meta, select);
+
+		Result result = new Result();
+		result.columns = count ? new String[] { "COUNT" } : names(meta, columns);
+		result.rows = new ArrayList<List<String>>();
+		final AtomicLong examined = new AtomicLong();
+		long wanted = count || limit < 0 ? Long.MAX_VALUE : limit;
+		final List<List<String>> rows = count ? null : result.rows;
+
+		long[] candidates = null;
+		if (dataFile != null && where != null) {
+			StringBuilder access = new StringBuilder();
+			candidates = lookup(reader, dataFile, access);
+			result.access = candidates == null ? null : access.toString();
+		}
+
+		long matched;
+		if (candidates != null) {
+			matched = readCandidates(reader, candidates, test, columns, rows, wanted, examined);
+		} else if (wanted != Long.MAX_VALUE || threads <= 1) {
+			result.access = "scan";
+			matched = scan(reader, 0, reader.getRowCount(), test, columns, rows, wanted, examined);
+		} else {
+			result.access = "parallel scan";
+			List<Chunk> chunks = SASXportChunkRunner.run(reader, threads, (firstRow, rowCount) -> {
+				Chunk chunk = new Chunk();
+				chunk.rows = count ? null : new ArrayList<List<String>>();
+				chunk.matched = scan(reader, firstRow, rowCount, test, columns, chunk.rows, Long.MAX_VALUE, examined);
+				return chunk;
+			});
+			matched = 0;
+			for (Chunk chunk : chunks) {
+				matched += chunk.matched;
+				if (rows != null)
+					rows.addAll(chunk.rows);
+			}
+		}
+
+		if (count && limit != 0)
+			result.rows.add(Arrays.asList(String.valueOf(matched)));
+		result.rowsExamined = examined.get();
+		return result;
+	}
+
+	/**
+	 * The WHERE clause as a filter on raw rows of the given layout, for instance
+	 * for {@link SASXportTransform#subset}.
+	 */
+	public SASXportRowFilter filter(XPTContext meta) {
+		if (where == null)
+			return (row, buffer, off) -> true;
+		final Test test = where.bind(meta);
+		return (row, buffer, off) -> test.matches(buffer, off);
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	private static class Chunk {
+		List<List<String>> rows;
+		long matched;
+	}
+
+	/**
+	 * Tests and projects the rows of a range until <code>wanted</code> rows
+	 * matched.
+	 *
+	 * @param rows receives the projected rows, null to only count them
+	 * @return the number of matching rows
+	 */
+	private static long scan(SASXportPositionalReader reader, long firstRow, long rowCount, Test test, int[] columns,
+			List<List<String>> rows, long wanted, AtomicLong examined) throws IOException {
+		int rowLength = reader.getRowLength();
+		byte[] buffer = new byte[Math.max(rowLength, READ_BUFFER_SIZE / rowLength * rowLength)];
+		ByteBuffer bb = ByteBuffer.wrap(buffer);
+		long matched = 0;
+		long seen = 0;
+		for (long row = firstRow; row < firstRow + rowCount && matched < wanted;) {
+			bb.clear();
+			bb.limit((int) Math.min(buffer.length / rowLength, firstRow + rowCount - row) * rowLength);
+			int n = reader.readRows(row, bb);
+			if (n == 0)
+				break;
+			for (int r = 0; r < n && matched < wanted; r++) {
+				int off = r * rowLength;
+				if (reader.isBlankRow(buffer, off))
+					continue;
+				seen++;
+				if (test != null && !test.matches(buffer, off))
+					continue;
+				matched++;
+				if (rows != null)
+					rows.add(project(reader, columns, buffer, off));
+			}
+			row += n;
+		}
+		examined.addAndGet(seen);
+		return matched;
+	}
+
+	/**
+	 * Tests and projects the given rows, in ascending order, reading each run of
+	 * adjacent rows at once.
+	 */
+	private static long readCandidates(SASXportPositionalReader reader, long[] candidates, Test test, int[] columns,
+			List<List<String>> rows, long wanted, AtomicLong examined) throws IOException {
+		int rowLength = reader.getRowLength();
+		byte[] buffer = new byte[Math.max(rowLength, 64 * 1024 / rowLength * rowLength)];
+		int maxRows = buffer.length / rowLength;
+		long matched = 0;
+		for (int i = 0; i < candidates.length && matched < wanted;) {
+			int run = 1;
+			while (i + run < candidates.length && run < maxRows && candidates[i + run] == candidates[i] + run)
+				run++;
+			int n = reader.readRows(candidates[i], ByteBuffer.wrap(buffer, 0, run * rowLength));
+			for (int r = 0; r < n && matched < wanted; r++) {
+				int off = r * rowLength;
+				if (reader.isBlankRow(buffer, off))
+					continue;
+				examined.incrementAndGet();
+				if (!test.matches(buffer, off))
+					continue;
+				matched++;
+				if (rows != null)
+					rows.add(project(reader, columns, buffer, off));
+			}
+			i += run;
+		}
+		return matched;
+	}
+
+	/**
+	 * Decodes the selected cells, missing numerics as null.
+	 */
+	private static List<String> project(SASXportPositionalReader reader, int[] columns, byte[] buffer, int off) {
+		XPTContext meta = reader.getMetaData();
+		int n = columns == null ? meta.var_count : columns.length;
+		List<String> record = new ArrayList<String>(n);
+		for (int i = 0; i < n; i++) {
+			int col = columns == null ? i : columns[i];
+			ReadStatVariable v = meta.variables[col];
+			if (v.type != ReadstatType.READSTAT_TYPE_STRING
+					&& SASXportConverter.isMissingValue(buffer, off + v.offset, v.storage_width))
+				record.add(null);
+			else
+				record.add(reader.decodeCell(buffer, off, col));
+		}
+		return record;
+	}
+
+	/**
+	 * Candidate rows from an index on a column that the whole condition
+	 * constrains, a superset of the matching rows in ascending order.
+	 *
+	 * @return the rows, or null if no index applies
+	 */
+	private long[] lookup(SASXportPositionalReader reader, String dataFile, StringBuilder access) throws IOException {
+		List<Node> conjuncts = where instanceof And ? ((And) where).nodes : Arrays.asList(where);
+		XPTContext meta = reader.getMetaData();
+		// equality first, it is the more selective lookup
+		for (Node node : conjuncts) {
+			List<Object> values = equalityValues(node);
+			if (values == null)
+				continue;
+			String column = ((Predicate) node).column;
+			SASXportIndex index = SASXportIndex.find(reader, dataFile, column);
+			if (index == null)
+				continue;
+			try {
+				ReadStatVariable variable = variable(meta, column);
+				long[] rows = new long[0];
+				for (Object value : values) {
+					rows = union(rows, index.lookup(keyValue(variable, value)));
+				}
+				access.append(index.getType().name().toLowerCase(Locale.ROOT)).append(" index on ").append(column);
+				return rows;
+			} finally {
+				index.close();
+			}
+		}
+		for (Node node : conjuncts) {
+			Object[] bounds = rangeBounds(node);
+			if (bounds == null)
+				continue;
+			String column = ((Predicate) node).column;
+			Path path = SASXportIndex.indexPath(dataFile, SASXportIndex.Type.SORTED, column);
+			if (!Files.isRegularFile(path))
+				continue;
+			SASXportIndex index;
+			try {
+				index = SASXportIndex.open(path, reader, dataFile);
+			} catch (IOException e) {
+				System.err.println("!!WARN!! Ignoring index " + path + ": " + e.getMessage());
+				continue;
+			}
+			try {
+				ReadStatVariable variable = variable(meta, column);
+				Object[] low = bounds[0] == null ? null : new Object[] { keyValue(variable, bounds[0]) };
+				Object[] high = bounds[1] == null ? null : new Object[] { keyValue(variable, bounds[1]) };
+				// reading most rows at random is slower than a scan
+				if (index.rangeCount(low, high) > reader.getRowCount() / MAX_RANGE_FRACTION)
+					continue;
+				access.append("sorted index range on ").append(column);
+				return index.range(low, high);
+			} finally {
+				index.close();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Values the column must equal one of, or null if the node is no equality.
+	 */
+	private static List<Object> equalityValues(Node node) {
+		if (node instanceof Compare && ((Compare) node).op == Op.EQ && ((Compare) node).literal != null)
+			return Arrays.asList(((Compare) node).literal);
+		if (node instanceof In && !((In) node).values.contains(null))
+			return ((In) node).values;
+		return null;
+	}
+
+	/**
+	 * Inclusive lower and upper bound of the column, either may be null, or null
+	 * if the node is no range.
+	 */
+	private static Object[] rangeBounds(Node node) {
+		if (node instanceof Between) {
+			Between between = (Between) node;
+			return between.low == null || between.high == null ? null : new Object[] { between.low, between.high };
+		}
+		if (!(node instanceof Compare) || ((Compare) node).literal == null)
+			return null;
+		Compare compare = (Compare) node;
+		switch (compare.op) {
+		case LT:
+		case LE:
+			return new Object[] { null, compare.literal };
+		case GT:
+		case GE:
+			return new Object[] { compare.literal, null };
+		default:
+			return null;
+		}
+	}
+
+	private static long[] union(long[] a, long[] b) {
+		long[] all = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, all, a.length, b.length);
+		Arrays.sort(all);
+		int n = 0;
+		for (int i = 0; i < all.length; i++) {
+			if (n == 0 || all[n - 1] != all[i])
+				all[n++] = all[i];
+		}
+		return Arrays.copyOf(all, n);
+	}
+
+	private static int[] resolve(XPTContext meta, String[] names) {
+		int[] columns = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			columns[i] = variable(meta, names[i]).index;
+		}
+		return columns;
+	}
+
+	private static String[] names(XPTContext meta, int[] columns) {
+		String[] names = new String[columns == null ? meta.var_count : columns.length];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = meta.variables[columns == null ? i : columns[i]].name;
+		}
+		return names;
+	}
+
+	private static ReadStatVariable variable(XPTContext meta, String name) {
+		int col = XPTReaderUtils.getVariableIndex(meta, name);
+		if (col < 0)
+			throw new IllegalArgumentException("Unknown variable: " + name);
+		return meta.variables[col];
+	}
+
+	/**
+	 * The literal as the column's type: a String for string columns, a Double
+	 * otherwise.
+	 */
+	private static Object keyValue(ReadStatVariable variable, Object literal) {
+		if (variable.type == ReadstatType.READSTAT_TYPE_STRING) {
+			if (!(literal instanceof String))
+				throw new IllegalArgumentException("Variable " + variable.name + " is a string, got " + literal);
+			return literal;
+		}
+		if (literal instanceof Double)
+			return literal;
+		try {
+			return Double.valueOf(literal.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Variable " + variable.name + " is numeric, got '" + literal + "'");
+		}
+	}
+
+	/** results of a {@link Test}: SQL's three valued logic */
+	private static final int FALSE = 0;
+	private static final int TRUE = 1;
+	/** a comparison with a missing value or a blank string */
+	private static final int UNKNOWN = 2;
+
+	/**
+	 * A compiled condition over the raw bytes of a row.
+	 */
+	private interface Test {
+
+		/**
+		 * @return {@link #TRUE}, {@link #FALSE} or {@link #UNKNOWN}
+		 */
+		int test(byte[] row, int base);
+
+		/**
+		 * Whether the row is selected, which needs the condition to be true, not
+		 * unknown.
+		 */
+		default boolean matches(byte[] row, int base) {
+			return test(row, base) == TRUE;
+		}
+	}
+
+	private static enum Op {
+		EQ, NE, LT, LE, GT, GE;
+
+		boolean holds(int c) {
+			switch (this) {
+			case EQ:
+				return c == 0;
+			case NE:
+				return c != 0;
+			case LT:
+				return c < 0;
+			case LE:
+				return c <= 0;
+			case GT:
+				return c > 0;
+			default:
+				return c >= 0;
+			}
+		}
+	}
+
+	/**
+	 * Parsed condition, bound to a layout before it is run.
+	 */
+	private static abstract class Node {
+		abstract Test bind(XPTContext meta);
+	}
+
+	private static class And extends Node {
+		final List<Node> nodes;
+
+		And(List<Node> nodes) {
+			this.nodes = nodes;
+		}
+
+		Test bind(XPTContext meta) {
+			final Test[] tests = bindAll(nodes, meta);
+			return (row, base) -> and(tests, row, base);
+		}
+	}
+
+	private static class Or extends Node {
+		final List<Node> nodes;
+
+		Or(List<Node> nodes) {
+			this.nodes = nodes;
+		}
+
+		Test bind(XPTContext meta) {
+			final Test[] tests = bindAll(nodes, meta);
+			return (row, base) -> or(tests, row, base);
+		}
+	}
+
+	private static class Not extends Node {
+		final Node node;
+
+		Not(Node node) {
+			this.node = node;
+		}
+
+		Test bind(XPTContext meta) {
+			final Test test = node.bind(meta);
+			return (row, base) -> {
+				int result = test.test(row, base);
+				return result == UNKNOWN ? UNKNOWN : TRUE - result;
+			};
+		}
+	}
+
+	/**
+	 * False if any test is false, otherwise unknown if any is unknown.
+	 */
+	private static int and(Test[] tests, byte[] row, int base) {
+		int result = TRUE;
+		for (Test test : tests) {
+			int r = test.test(row, base);
+			if (r == FALSE)
+				return FALSE;
+			if (r == UNKNOWN)
+				result = UNKNOWN;
+		}
+		return result;
+	}
+
+	/**
+	 * True if any test is true, otherwise unknown if any is unknown.
+	 */
+	private static int or(Test[] tests, byte[] row, int base) {
+		int result = FALSE;
+		for (Test test : tests) {
+			int r = test.test(row, base);
+			if (r == TRUE)
+				return TRUE;
+			if (r == UNKNOWN)
+				result = UNKNOWN;
+		}
+		return result;
+	}
+
+	private static Test[] bindAll(List<Node> nodes, XPTContext meta) {
+		Test[] tests = new Test[nodes.size()];
+		for (int i = 0; i < tests.length; i++) {
+			tests[i] = nodes.get(i).bind(meta);
+		}
+		return tests;
+	}
+
+	/**
+	 * A condition on a single column.
+	 */
+	private static abstract class Predicate extends Node {
+		final String column;
+
+		Predicate(String column) {
+			this.column = column;
+		}
+	}
+
+	private static class Compare extends Predicate {
+		final Op op;
+		/** String, Double, or null for NULL */
+		final Object literal;
+
+		Compare(String column, Op op, Object literal) {
+			super(column);
+			this.op = op;
+			this.literal = literal;
+		}
+
+		Test bind(XPTContext meta) {
+			return compare(variable(meta, column), op, literal);
+		}
+	}
+
+	private static class Between extends Predicate {
+		final Object low;
+		final Object high;
+
+		Between(String column, Object low, Object high) {
+			super(column);
+			this.low = low;
+			this.high = high;
+		}
+
+		Test bind(XPTContext meta) {
+			ReadStatVariable variable = variable(meta, column);
+			final Test lower = compare(variable, Op.GE, low);
+			final Test upper = compare(variable, Op.LE, high);
+			final Test[] tests = { lower, upper };
+			return (row, base) -> and(tests, row, base);
+		}
+	}
+
+	private static class In extends Predicate {
+		final List<Object> values;
+
+		In(String column, List<Object> values) {
+			super(column);
+			this.values = values;
+		}
+
+		Test bind(XPTContext meta) {
+			ReadStatVariable variable = variable(meta, column);
+			final Test[] tests = new Test[values.size()];
+			for (int i = 0; i < tests.length; i++) {
+				tests[i] = compare(variable, Op.EQ, values.get(i));
+			}
+			return (row, base) -> or(tests, row, base);
+		}
+	}
+
+	private static class IsNull extends Predicate {
+
+		IsNull(String column) {
+			super(column);
+		}
+
+		Test bind(XPTContext meta) {
+			ReadStatVariable variable = variable(meta, column);
+			final int offset = variable.offset;
+			final int width = variable.storage_width;
+			if (variable.type == ReadstatType.READSTAT_TYPE_STRING)
+				return (row, base) -> isBlank(row, base + offset, width) ? TRUE : FALSE;
+			return (row, base) -> SASXportConverter.isMissingValue(row, base + offset, width) ? TRUE : FALSE;
+		}
+	}
+
+	/**
+	 * Compiles <code>column op literal</code>. Strings compare as blank padded
+	 * bytes, numerics as their {@link KeyEncoder#sortable} form of the value
+	 * stored at the column's width.
+	 */
+	private static Test compare(ReadStatVariable variable, final Op op, Object literal) {
+		final int offset = variable.offset;
+		final int width = variable.storage_width;
+		if (literal == null)
+			return (row, base) -> UNKNOWN;
+		Object value = keyValue(variable, literal);
+
+		if (variable.type == ReadstatType.READSTAT_TYPE_STRING) {
+			final byte[] key = new byte[width];
+			KeyEncoder.encodeValue(variable, value, key, 0);
+			// a literal longer than the column sorts after the cells it starts
+			final boolean longer = trimmedLength(((String) value).getBytes(IO.CHARSET)) > width;
+			final boolean blank = isBlank(key, 0, width);
+			return (row, base) -> {
+				if (isBlank(row, base + offset, width) && !blank)
+					return UNKNOWN;
+				int c = KeyEncoder.compare(row, base + offset, key, 0, width);
+				return op.holds(c == 0 && longer ? -1 : c) ? TRUE : FALSE;
+			};
+		}
+
+		byte[] key = new byte[KeyEncoder.NUMERIC_WIDTH];
+		KeyEncoder.encodeValue(variable, value, key, 0);
+		final long literalKey = ByteBuffer.wrap(key).getLong();
+		final boolean valid = width >= XPTTypes.XPORT_MIN_DOUBLE_SIZE && width <= XPTTypes.XPORT_MAX_DOUBLE_SIZE;
+		return (row, base) -> {
+			int pos = base + offset;
+			if (SASXportConverter.isMissingValue(row, pos, width))
+				return UNKNOWN;
+			long cell = KeyEncoder.sortable(valid ? PrimitiveUtils.xpt2ieee(row, pos, width) : 0.0d);
+			return op.holds(Long.compareUnsigned(cell, literalKey)) ? TRUE : FALSE;
+		};
+	}
+
+	private static boolean isBlank(byte[] bytes, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			if (bytes[i] != ' ')
+				return false;
+		}
+		return true;
+	}
+
+	private static int trimmedLength(byte[] bytes) {
+		int n = bytes.length;
+		while (n > 0 && bytes[n - 1] == ' ')
+			n--;
+		return n;
+	}
+
+	/**
+	 * Recursive descent over the query text.
+	 */
+	private static class Parser {
+
+		private final String sql;
+		private int pos = 0;
+
+		Parser(String sql) {
+			this.sql = sql;
+		}
+
+		SASXportQuery query() {
+			expectKeyword("SELECT");
+			boolean count = false;
+			String[] select = null;
+			if (symbol("*")) {
+				// all columns
+			} else if (keyword("COUNT")) {
+				expectSymbol("(");
+				expectSymbol("*");
+				expectSymbol(")");
+				count = true;
+			} else {
+				List<String> columns = new ArrayList<String>();
+				do {
+					columns.add(identifier());
+				} while (symbol(","));
+				select = columns.toArray(new String[columns.size()]);
+			}
+			expectKeyword("FROM");
+			String table = path();
+			Node where = keyword("WHERE") ? or() : null;
+			long limit = -1;
+			if (keyword("LIMIT")) {
+				Object n = literal();
+				if (!(n instanceof Double) || (Double) n < 0 || (Double) n != Math.rint((Double) n))
+					throw error("LIMIT needs a whole number");
+				limit = ((Double) n).longValue();
+			}
+			symbol(";");
+			skipSpace();
+			if (pos < sql.length())
+				throw error("Unexpected input");
+			return new SASXportQuery(table, select, count, where, limit);
+		}
+
+		/**
+		 * A WHERE clause on its own.
+		 */
+		Node condition() {
+			Node node = or();
+			skipSpace();
+			if (pos < sql.length())
+				throw error("Unexpected input");
+			return node;
+		}
+
+		private Node or() {
+			List<Node> nodes = new ArrayList<Node>();
+			nodes.add(and());
+			while (keyword("OR"))
+				nodes.add(and());
+			return nodes.size() == 1 ? nodes.get(0) : new Or(nodes);
+		}
+
+		private Node and() {
+			List<Node> nodes = new ArrayList<Node>();
+			nodes.add(not());
+			while (keyword("AND"))
+				nodes.add(not());
+			return nodes.size() == 1 ? nodes.get(0) : new And(nodes);
+		}
+
+		private Node not() {
+			if (keyword("NOT"))
+				return new Not(not());
+			if (symbol("(")) {
+				Node node = or();
+				expectSymbol(")");
+				return node;
+			}
+			return predicate();
+		}
+
+		private Node predicate() {
+			String column = identifier();
+			if (keyword("IS")) {
+				boolean negated = keyword("NOT");
+				expectKeyword("NULL");
+				Node node = new IsNull(column);
+				return negated ? new Not(node) : node;
+			}
+			boolean negated = keyword("NOT");
+			Node node;
+			if (keyword("BETWEEN")) {
+				Object low = literal();
+				expectKeyword("AND");
+				node = new Between(column, low, literal());
+			} else if (keyword("IN")) {
+				expectSymbol("(");
+				List<Object> values = new ArrayList<Object>();
+				do {
+					values.add(literal());
+				} while (symbol(","));
+				expectSymbol(")");
+				node = new In(column, values);
+			} else if (negated) {
+				throw error("Expected BETWEEN or IN");
+			} else {
+				node = new Compare(column, operator(), literal());
+			}
+			return negated ? new Not(node) : node;
+		}
+
+		private Op operator() {
+			if (symbol("<="))
+				return Op.LE;
+			if (symbol(">="))
+				return Op.GE;
+			if (symbol("<>") || symbol("!="))
+				return Op.NE;
+			if (symbol("<"))
+				return Op.LT;
+			if (symbol(">"))
+				return Op.GT;
+			if (symbol("="))
+				return Op.EQ;
+			throw error("Expected a comparison operator");
+		}
+
+		/**
+		 * @return a String, a Double, or null for NULL
+		 */
+		private Object literal() {
+			skipSpace();
+			if (pos < sql.length() && sql.charAt(pos) == '\'')
+				return quoted('\'');
+			if (keyword("NULL"))
+				return null;
+			int start = pos;
+			if (pos < sql.length() && (sql.charAt(pos) == '-' || sql.charAt(pos) == '+'))
+				pos++;
+			while (pos < sql.length() && (Character.isDigit(sql.charAt(pos)) || sql.charAt(pos) == '.'))
+				pos++;
+			if (pos < sql.length() && (sql.charAt(pos) == 'e' || sql.charAt(pos) == 'E')) {
+				pos++;
+				if (pos < sql.length() && (sql.charAt(pos) == '-' || sql.charAt(pos) == '+'))
+					pos++;
+				while (pos < sql.length() && Character.isDigit(sql.charAt(pos)))
+					pos++;
+			}
+			try {
+				return Double.valueOf(sql.substring(start, pos));
+			} catch (NumberFormatException e) {
+				pos = start;
+				throw error("Expected a literal");
+			}
+		}
+
+		private String identifier() {
+			skipSpace();
+			if (pos < sql.length() && sql.charAt(pos) == '"')
+				return quoted('"');
+			int start = pos;
+			while (pos < sql.length() && (Character.isLetterOrDigit(sql.charAt(pos)) || sql.charAt(pos) == '_'))
+				pos++;
+			if (pos == start || Character.isDigit(sql.charAt(start)))
+				throw error("Expected a column name");
+			return sql.substring(start, pos);
+		}
+
+		/**
+		 * A quoted string or everything up to the next blank.
+		 */
+		private String path() {
+			skipSpace();
+			if (pos < sql.length() && (sql.charAt(pos) == '\'' || sql.charAt(pos) == '"'))
+				return quoted(sql.charAt(pos));
+			int start = pos;
+			while (pos < sql.length() && !Character.isWhitespace(sql.charAt(pos)) && sql.charAt(pos) != ';')
+				pos++;
+			if (pos == start)
+				throw error("Expected a file name");
+			return sql.substring(start, pos);
+		}
+
+		/**
+		 * Text between quotes, a doubled quote standing for one.
+		 */
+		private String quoted(char quote) {
+			StringBuilder sb = new StringBuilder();
+			int start = pos++;
+			while (true) {
+				if (pos >= sql.length()) {
+					pos = start;
+					throw error("Unterminated quote");
+				}
+				char c = sql.charAt(pos++);
+				if (c == quote) {
+					if (pos < sql.length() && sql.charAt(pos) == quote) {
+						sb.append(quote);
+						pos++;
+						continue;
+					}
+					return sb.toString();
+				}
+				sb.append(c);
+			}
+		}
+
+		private boolean keyword(String keyword) {
+			skipSpace();
+			int end = pos + keyword.length();
+			if (end > sql.length() || !sql.regionMatches(true, pos, keyword, 0, keyword.length()))
+				return false;
+			if (end < sql.length() && (Character.isLetterOrDigit(sql.charAt(end)) || sql.charAt(end) == '_'))
+				return false;
+			pos = end;
+			return true;
+		}
+
+		private void expectKeyword(String keyword) {
+			if (!keyword(keyword))
+				throw error("Expected " + keyword);
+		}
+
+		private boolean symbol(String symbol) {
+			skipSpace();
+			if (!sql.startsWith(symbol, pos))
+				return false;
+			pos += symbol.length();
+			return true;
+		}
+
+		private void expectSymbol(String symbol) {
+			if (!symbol(symbol))
+				throw error("Expected '" + symbol + "'");
+		}
+
+		private void skipSpace() {
+			while (pos < sql.length() && Character.isWhitespace(sql.charAt(pos)))
+				pos++;
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at position " + pos + " of: " + sql);
+		}
+	}
+}
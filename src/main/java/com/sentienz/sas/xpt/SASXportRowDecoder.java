@@ -0,0 +1,254 @@
+package com.sentienz.sas.xpt;
+
+import java.util.List;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatValue;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.IO;
+import com.sentienz.sas.xpt.utils.MissingValues;
+import com.sentienz.sas.xpt.utils.PrimitiveUtils;
+import com.sentienz.sas.xpt.utils.XPTReaderUtils;
+
+/**
+ * Row decoder compiled once per dataset layout. Every column gets a decoder
+ * object with its offset, width and conversion fixed, picked from a small set
+ * of final classes, so decoding a row is a straight walk over a flat array with
+ * no per cell checks of type, width or format.
+ */
+public class SASXportRowDecoder {
+
+	private final ColumnDecoder[] columns;
+
+	private SASXportRowDecoder(ColumnDecoder[] columns) {
+		this.columns = columns;
+	}
+
+	/**
+	 * @param convertDates render numerics with a DATE format as dates, like
+	 *                     {@link SASXportConverter} does by default
+	 */
+	public static SASXportRowDecoder compile(XPTContext ctx, boolean convertDates) {
+		ColumnDecoder[] columns = new ColumnDecoder[ctx.var_count];
+		for (int i = 0; i < ctx.var_count; i++) {
+			columns[i] = compile(ctx.variables[i], convertDates);
+		}
+		return new SASXportRowDecoder(columns);
+	}
+
+	private static ColumnDecoder compile(ReadStatVariable variable, boolean convertDates) {
+		if (variable.type == ReadstatType.READSTAT_TYPE_STRING)
+			return new StringDecoder(variable);
+		if (variable.storage_width > XPTTypes.XPORT_MAX_DOUBLE_SIZE
+				|| variable.storage_width < XPTTypes.XPORT_MIN_DOUBLE_SIZE)
+			return new InvalidNumericDecoder(variable);
+		String format = variable.format == null ? "" : variable.format.toLowerCase();
+		if (convertDates && format.contains("date"))
+			return new DateDecoder(variable, format);
+		if (variable.storage_width == 8)
+			return new Double8Decoder(variable);
+		return new DoubleDecoder(variable);
+	}
+
+	/**
+	 * Decodes all columns of the row starting at <code>base</code>.
+	 *
+	 * @param primitiveRecord may be null when only the string values are needed
+	 */
+	public void decode(byte[] row, int base, List<String> record, List<ReadstatValue> primitiveRecord) {
+		ColumnDecoder[] columns = this.columns;
+		if (primitiveRecord == null) {
+			for (int i = 0; i < columns.length; i++) {
+				record.add(columns[i].decode(row, base, null));
+			}
+		} else {
+			for (int i = 0; i < columns.length; i++) {
+				ReadstatValue value = new ReadstatValue();
+				record.add(columns[i].decode(row, base, value));
+				primitiveRecord.add(value);
+			}
+		}
+	}
+
+	/**
+	 * Decodes a single column of the row starting at <code>base</code>.
+	 */
+	public String decode(byte[] row, int base, int col) {
+		return columns[col].decode(row, base, null);
+	}
+
+	/**
+	 * @param columns variable indexes to visit, or null for all of them
+	 */
+	public void visit(byte[] row, int base, long rowIndex, int[] columns, SASXportRowVisitor visitor) {
+		ColumnDecoder[] decoders = this.columns;
+		visitor.onRowStart(rowIndex);
+		if (columns == null) {
+			for (int i = 0; i < decoders.length; i++) {
+				decoders[i].visit(row, base, visitor);
+			}
+		} else {
+			for (int i = 0; i < columns.length; i++) {
+				decoders[columns[i]].visit(row, base, visitor);
+			}
+		}
+		visitor.onRowEnd(rowIndex);
+	}
+
+	private static abstract class ColumnDecoder {
+
+		final int index;
+		final int offset;
+		final int width;
+
+		ColumnDecoder(ReadStatVariable variable) {
+			this.index = variable.index;
+			this.offset = variable.offset;
+			this.width = variable.storage_width;
+		}
+
+		/**
+		 * @param value filled in when not null
+		 */
+		abstract String decode(byte[] row, int base, ReadstatValue value);
+
+		abstract void visit(byte[] row, int base, SASXportRowVisitor visitor);
+	}
+
+	private static final class StringDecoder extends ColumnDecoder {
+
+		StringDecoder(ReadStatVariable variable) {
+			super(variable);
+		}
+
+		String decode(byte[] row, int base, ReadstatValue value) {
+			String string = IO.readString(row, base + offset, width);
+			if (value != null) {
+				value.type = ReadstatType.READSTAT_TYPE_STRING;
+				value.tvalue = string;
+			}
+			return string;
+		}
+
+		void visit(byte[] row, int base, SASXportRowVisitor visitor) {
+			int pos = base + offset;
+			int len = width;
+			while (len > 0 && row[pos + len - 1] == ' ') {
+				len--;
+			}
+			visitor.onString(index, row, pos, len);
+		}
+	}
+
+	private static class DoubleDecoder extends ColumnDecoder {
+
+		DoubleDecoder(ReadStatVariable variable) {
+			super(variable);
+		}
+
+		double load(byte[] row, int pos) {
+			return PrimitiveUtils.xpt2ieee(row, pos, width);
+		}
+
+		/**
+		 * Sets the missing flags and returns the {@link MissingValues} NaN, or
+		 * returns the value.
+		 */
+		final double value(byte[] row, int pos, ReadstatValue value) {
+			if (SASXportConverter.isMissingValue(row, pos, width)) {
+				if (value != null) {
+					if (row[pos] == '.') {
+						value.is_system_missing = 1;
+					} else {
+						value.tag = row[pos];
+						value.is_tagged_missing = 1;
+					}
+				}
+				return MissingValues.missing(row[pos]);
+			}
+			return load(row, pos);
+		}
+
+		String decode(byte[] row, int base, ReadstatValue value) {
+			double dval = value(row, base + offset, value);
+			if (value != null) {
+				value.type = ReadstatType.READSTAT_TYPE_DOUBLE;
+				value.value = dval;
+			}
+			return text(dval);
+		}
+
+		final void visit(byte[] row, int base, SASXportRowVisitor visitor) {
+			int pos = base + offset;
+			if (SASXportConverter.isMissingValue(row, pos, width))
+				visitor.onMissing(index, row[pos]);
+			else
+				visitor.onDouble(index, load(row, pos));
+		}
+	}
+
+	private static final class Double8Decoder extends DoubleDecoder {
+
+		Double8Decoder(ReadStatVariable variable) {
+			super(variable);
+		}
+
+		@Override
+		double load(byte[] row, int p) {
+			long ibm = (row[p] & 0xffl) << 56 | (row[p + 1] & 0xffl) << 48 | (row[p + 2] & 0xffl) << 40
+					| (row[p + 3] & 0xffl) << 32 | (row[p + 4] & 0xffl) << 24 | (row[p + 5] & 0xffl) << 16
+					| (row[p + 6] & 0xffl) << 8 | (row[p + 7] & 0xffl);
+			return PrimitiveUtils.ibm2ieee(ibm);
+		}
+	}
+
+	private static final class DateDecoder extends DoubleDecoder {
+
+		final String format;
+
+		DateDecoder(ReadStatVariable variable, String format) {
+			super(variable);
+			this.format = format;
+		}
+
+		@Override
+		String decode(byte[] row, int base, ReadstatValue value) {
+			double dval = value(row, base + offset, value);
+			if (value != null) {
+				value.type = ReadstatType.READSTAT_TYPE_DOUBLE;
+				value.value = dval;
+			}
+			return dval != 0 && dval == dval ? XPTReaderUtils.convertSASDate9ToString(format, dval) : text(dval);
+		}
+	}
+
+	/**
+	 * Missing values keep reading as 0 in the string form.
+	 */
+	private static String text(double value) {
+		return value == value || !MissingValues.isTagged(value) ? "" + value : "" + 0.0d;
+	}
+
+	/**
+	 * Numerics outside the 3 to 8 byte range can not be converted and read as 0.
+	 */
+	private static final class InvalidNumericDecoder extends ColumnDecoder {
+
+		InvalidNumericDecoder(ReadStatVariable variable) {
+			super(variable);
+		}
+
+		String decode(byte[] row, int base, ReadstatValue value) {
+			if (value != null) {
+				value.type = ReadstatType.READSTAT_TYPE_DOUBLE;
+				value.value = 0.0d;
+			}
+			return "" + 0.0d;
+		}
+
+		void visit(byte[] row, int base, SASXportRowVisitor visitor) {
+			visitor.onDouble(index, 0.0d);
+		}
+	}
+}
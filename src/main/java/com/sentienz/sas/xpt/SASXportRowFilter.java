@@ -0,0 +1,16 @@
+package com.sentienz.sas.xpt;
+
+/**
+ * Decides on raw row bytes whether a row is kept, see {@link SASXportTransform}.
+ * Cells can be read with the offsets and widths of the variables, or decoded
+ * with {@link SASXportPositionalReader#decodeRecord(byte[], int)} where speed
+ * matters less.
+ */
+public interface SASXportRowFilter {
+
+	/**
+	 * @param row zero based index of the row in the member
+	 * @param buffer holds the row at <code>off</code>; only valid during the call
+	 */
+	boolean accept(long row, byte[] buffer, int off);
+}
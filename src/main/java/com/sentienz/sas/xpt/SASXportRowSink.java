@@ -0,0 +1,37 @@
+package com.sentienz.sas.xpt;
+
+import java.util.List;
+
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+
+/**
+ * Receives decoded row batches from {@link SASXportIngestor}. Batches of the
+ * same file may arrive out of order and from several worker threads at once, so
+ * implementations must be thread safe.
+ */
+public interface SASXportRowSink {
+
+	/**
+	 * @param fileName file the rows were read from
+	 * @param meta     parsed metadata of that file
+	 * @param firstRow zero based index of the first row of the batch
+	 * @param rows     decoded rows, blank rows excluded
+	 */
+	void accept(String fileName, XPTContext meta, long firstRow, List<List<String>> rows) throws Exception;
+
+	/**
+	 * Called in incremental mode before {@link #fileCompleted}, with the row
+	 * ranges whose content changed since the last run. Rows in these ranges
+	 * that were stored before should be replaced by the rows just accepted; a
+	 * range may extend past the current end of the file when rows were removed.
+	 */
+	default void rangesChanged(String fileName, XPTContext meta, List<SASXportManifest.Range> changed)
+			throws Exception {
+	}
+
+	/**
+	 * Called once after every batch of a file has been accepted.
+	 */
+	default void fileCompleted(String fileName, XPTContext meta) throws Exception {
+	}
+}
@@ -0,0 +1,32 @@
+package com.sentienz.sas.xpt;
+
+/**
+ * Push style access to rows. The reader calls back once per selected column of
+ * every row, straight from the raw row bytes, without creating any objects per
+ * cell. Columns are reported in the order they were selected.
+ */
+public interface SASXportRowVisitor {
+
+	/**
+	 * @param row zero based index of the row in the file
+	 */
+	default void onRowStart(long row) {
+	}
+
+	void onDouble(int col, double value);
+
+	/**
+	 * @param tag '.' for a system missing value, '_' or 'A' to 'Z' for special
+	 *            missing values
+	 */
+	void onMissing(int col, byte tag);
+
+	/**
+	 * The bytes belong to the reader's row buffer and are only valid during the
+	 * call. Trailing blanks are not included.
+	 */
+	void onString(int col, byte[] bytes, int off, int len);
+
+	default void onRowEnd(long row) {
+	}
+}
@@ -0,0 +1,238 @@
+package com.sentienz.sas.xpt;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Chooses which rows of a member to read: all of them, every Nth one, each
+ * with a given probability, or a fixed size uniform sample. The choice is
+ * made on row slot numbers alone, so skipped rows are never decoded and a
+ * random access reader does not read them at all. The same options and seed
+ * select the same rows in every reader.
+ *
+ * <pre>
+ * reader.readSample(SASXportSampling.stride(1000).offset(10).limit(500));
+ * new SASXportFileIterator(fileName, SASXportSampling.bernoulli(0.01, 42));
+ * reader.readSample(SASXportSampling.reservoir(10000, 42));
+ * </pre>
+ */
+public class SASXportSampling {
+
+	public static enum Mode {
+		ALL, STRIDE, BERNOULLI, RESERVOIR
+	}
+
+	public Mode mode = Mode.ALL;
+
+	/** row slots passed over before the selection starts */
+	public long offset = 0;
+
+	/** most rows returned, 0 for no limit */
+	public long limit = 0;
+
+	/** distance between selected rows in {@link Mode#STRIDE} */
+	public long stride = 1;
+
+	/** probability of each row being selected in {@link Mode#BERNOULLI} */
+	public double fraction = 1.0d;
+
+	/** sample size in {@link Mode#RESERVOIR} */
+	public int size = 0;
+
+	public long seed = 0;
+
+	public static SASXportSampling all() {
+		return new SASXportSampling();
+	}
+
+	public static SASXportSampling stride(long stride) {
+		if (stride < 1)
+			throw new IllegalArgumentException("Stride must be positive: " + stride);
+		SASXportSampling sampling = new SASXportSampling();
+		sampling.mode = Mode.STRIDE;
+		sampling.stride = stride;
+		return sampling;
+	}
+
+	public static SASXportSampling bernoulli(double fraction, long seed) {
+		if (!(fraction >= 0.0d && fraction <= 1.0d))
+			throw new IllegalArgumentException("Fraction must be between 0 and 1: " + fraction);
+		SASXportSampling sampling = new SASXportSampling();
+		sampling.mode = Mode.BERNOULLI;
+		sampling.fraction = fraction;
+		sampling.seed = seed;
+		return sampling;
+	}
+
+	/**
+	 * Uniform sample of <code>size</code> rows, returned in row order. Needs the
+	 * row count, so only random access readers support it.
+	 */
+	public static SASXportSampling reservoir(int size, long seed) {
+		if (size < 0)
+			throw new IllegalArgumentException("Sample size must not be negative: " + size);
+		SASXportSampling sampling = new SASXportSampling();
+		sampling.mode = Mode.RESERVOIR;
+		sampling.size = size;
+		sampling.seed = seed;
+		return sampling;
+	}
+
+	public SASXportSampling offset(long offset) {
+		if (offset < 0)
+			throw new IllegalArgumentException("Offset must not be negative: " + offset);
+		this.offset = offset;
+		return this;
+	}
+
+	public SASXportSampling limit(long limit) {
+		if (limit < 0)
+			throw new IllegalArgumentException("Limit must not be negative: " + limit);
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * Selected row slots below <code>rowCount</code>, in ascending order.
+	 *
+	 * @param rowCount number of row slots, or {@link Long#MAX_VALUE} if unknown
+	 */
+	Selector selector(long rowCount) {
+		switch (mode) {
+		case STRIDE:
+			return new StrideSelector(offset, stride, rowCount);
+		case BERNOULLI:
+			return new BernoulliSelector(offset, fraction, seed, rowCount);
+		case RESERVOIR:
+			if (rowCount == Long.MAX_VALUE)
+				throw new IllegalArgumentException("Reservoir sampling needs the row count, use a random access reader");
+			return new ArraySelector(reservoirSample(offset, rowCount, size, seed));
+		default:
+			return new StrideSelector(offset, 1, rowCount);
+		}
+	}
+
+	/**
+	 * Source of selected row slots.
+	 */
+	static abstract class Selector {
+
+		/**
+		 * @return the next selected slot, or {@link Long#MAX_VALUE} when there are
+		 *         no more
+		 */
+		abstract long next();
+	}
+
+	private static class StrideSelector extends Selector {
+		private final long stride;
+		private final long end;
+		private long slot;
+
+		StrideSelector(long offset, long stride, long end) {
+			this.slot = offset;
+			this.stride = stride;
+			this.end = end;
+		}
+
+		long next() {
+			if (slot >= end)
+				return Long.MAX_VALUE;
+			long selected = slot;
+			slot = stride > end - slot ? end : slot + stride;
+			return selected;
+		}
+	}
+
+	/**
+	 * Draws the gap to the next selected row from the geometric distribution
+	 * instead of one coin per row.
+	 */
+	private static class BernoulliSelector extends Selector {
+		private final Random random;
+		private final double logMiss;
+		private final long end;
+		private long slot;
+
+		BernoulliSelector(long offset, double fraction, long seed, long end) {
+			this.random = new Random(seed);
+			this.logMiss = Math.log(1.0d - fraction);
+			this.slot = fraction <= 0.0d ? end : offset;
+			this.end = end;
+		}
+
+		long next() {
+			if (slot < end && logMiss != 0.0d) {
+				double gap = Math.floor(Math.log(1.0d - random.nextDouble()) / logMiss);
+				slot = gap >= end - slot ? end : slot + (long) gap;
+			}
+			if (slot >= end)
+				return Long.MAX_VALUE;
+			return slot++;
+		}
+	}
+
+	private static class ArraySelector extends Selector {
+		private final long[] slots;
+		private int i = 0;
+
+		ArraySelector(long[] slots) {
+			this.slots = slots;
+		}
+
+		long next() {
+			return i < slots.length ? slots[i++] : Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Reservoir sampling of the slots from <code>offset</code> to
+	 * <code>end</code> with Li's algorithm L, which draws the distance to the
+	 * next replacement and so costs time in the sample size rather than the
+	 * row count.
+	 *
+	 * @return the sampled slots in ascending order
+	 */
+	static long[] reservoirSample(long offset, long end, int size, long seed) {
+		long population = Math.max(0, end - offset);
+		if (population <= size) {
+			long[] all = new long[(int) population];
+			for (int i = 0; i < all.length; i++) {
+				all[i] = offset + i;
+			}
+			return all;
+		}
+		long[] sample = new long[size];
+		for (int i = 0; i < size; i++) {
+			sample[i] = offset + i;
+		}
+		if (size > 0) {
+			Random random = new Random(seed);
+			double w = Math.exp(Math.log(uniform(random)) / size);
+			long slot = offset + size - 1;
+			while (true) {
+				double gap = Math.floor(Math.log(uniform(random)) / Math.log(1.0d - w));
+				if (gap >= end - slot - 1)
+					break;
+				slot += (long) gap + 1;
+				sample[random.nextInt(size)] = slot;
+				w *= Math.exp(Math.log(uniform(random)) / size);
+			}
+		}
+		Arrays.sort(sample);
+		return sample;
+	}
+
+	/**
+	 * Uniform on (0, 1], so that its logarithm is finite.
+	 */
+	private static double uniform(Random random) {
+		return 1.0d - random.nextDouble();
+	}
+
+	@Override
+	public String toString() {
+		return mode + " offset=" + offset + " limit=" + limit + " stride=" + stride + " fraction=" + fraction
+				+ " size=" + size + " seed=" + seed;
+	}
+}
@@ -0,0 +1,241 @@
+package com.sentienz.sas.xpt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.utils.IO;
+import com.sentienz.sas.xpt.utils.KeyEncoder;
+import com.sentienz.sas.xpt.utils.PrimitiveUtils;
+
+/**
+ * Finds the rows with a given key in a file sorted by that key, by binary
+ * search over the row slots. Rows have a fixed width, so every probe is a
+ * single small positional read of the key columns; a lookup on a 100M row
+ * file takes about 27 of them.
+ *
+ * The sort order must either be verified with {@link #verify(int)}, one
+ * parallel pass over the key columns, or declared with {@link #declare()}.
+ * Keys compare like SAS sorts them: strings byte by byte, numerics by value
+ * with missing values first, ._ before . before .A to .Z.
+ *
+ * <pre>
+ * SASXportSortedLookup lookup = new SASXportSortedLookup(reader, "STUDYID", "USUBJID", "AESEQ");
+ * lookup.verify(4);
+ * Range range = lookup.find("CDISC01", "01-701-1015");
+ * reader.readRecords(range.firstRow, range.getRowCount(), buffer);
+ * </pre>
+ */
+public class SASXportSortedLookup {
+
+	/**
+	 * Rows <code>firstRow</code> up to, excluding, <code>endRow</code>.
+	 */
+	public static class Range {
+		public long firstRow;
+		public long endRow;
+
+		public long getRowCount() {
+			return endRow - firstRow;
+		}
+
+		public boolean isEmpty() {
+			return endRow <= firstRow;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + firstRow + ", " + endRow + ")";
+		}
+	}
+
+	private final SASXportPositionalReader reader;
+	private final ReadStatVariable[] keys;
+	private final int rowLength;
+
+	/** part of a row covering all key columns */
+	private final int spanStart;
+	private final int spanLength;
+
+	private boolean sorted = false;
+	private long rowCount = -1;
+
+	public SASXportSortedLookup(SASXportPositionalReader reader, String... keyColumns) {
+		this.reader = reader;
+		this.rowLength = reader.getRowLength();
+		this.keys = new ReadStatVariable[keyColumns.length];
+		int start = Integer.MAX_VALUE, end = 0;
+		for (int i = 0; i < keyColumns.length; i++) {
+			int col = reader.getVariableIndex(keyColumns[i]);
+			if (col < 0)
+				throw new IllegalArgumentException("Unknown variable: " + keyColumns[i]);
+			keys[i] = reader.getMetaData().variables[col];
+			start = Math.min(start, keys[i].offset);
+			end = Math.max(end, keys[i].offset + keys[i].storage_width);
+		}
+		this.spanStart = keyColumns.length == 0 ? 0 : start;
+		this.spanLength = end - spanStart;
+	}
+
+	/**
+	 * Accepts the sort order without checking it, for files whose order is
+	 * guaranteed by how they were produced. Lookups on a file that is not
+	 * actually sorted return wrong ranges. In a file with several members the
+	 * first member's row count is only known once a read has reached the next
+	 * one, so use {@link #verify(int)} there.
+	 */
+	public void declare() throws IOException {
+		rowCount = reader.dataRowCount();
+		sorted = true;
+	}
+
+	/**
+	 * Checks that every row's key is not smaller than the previous one's,
+	 * comparing chunks in parallel and then the chunk boundaries.
+	 *
+	 * @return whether the file is sorted; lookups are only possible if so
+	 */
+	public boolean verify(int threads) throws Exception {
+
+		List<byte[][]> chunks = SASXportChunkRunner.run(reader, threads, (firstRow, count) -> {
+			long end = firstRow + count;
+			byte[] buffer = new byte[Math.max(rowLength, 64 * 1024 / rowLength * rowLength)];
+			byte[] previous = null;
+			byte[] first = null;
+			ByteBuffer bb = ByteBuffer.wrap(buffer);
+			for (long row = firstRow; row < end;) {
+				bb.clear();
+				bb.limit((int) Math.min(buffer.length / rowLength, end - row) * rowLength);
+				int n = reader.readRows(row, bb);
+				if (n == 0)
+					break;
+				for (int r = 0; r < n; r++) {
+					int off = r * rowLength;
+					if (reader.isBlankRow(buffer, off))
+						continue;
+					if (previous != null && compare(previous, 0, buffer, off, keys.length) > 0)
+						return null;
+					if (previous == null)
+						previous = new byte[rowLength];
+					System.arraycopy(buffer, off, previous, 0, rowLength);
+					if (first == null)
+						first = previous.clone();
+				}
+				row += n;
+			}
+			return first == null ? new byte[0][] : new byte[][] { first, previous };
+		});
+
+		byte[] last = null;
+		for (byte[][] chunk : chunks) {
+			if (chunk == null)
+				return sorted = false;
+			if (chunk.length == 0)
+				continue;
+			if (last != null && compare(last, 0, chunk[0], 0, keys.length) > 0)
+				return sorted = false;
+			last = chunk[1];
+		}
+		rowCount = reader.dataRowCount();
+		return sorted = true;
+	}
+
+	public boolean isSorted() {
+		return sorted;
+	}
+
+	/**
+	 * Rows whose leading key columns equal the given values. Fewer values than
+	 * key columns match on a prefix of the key, e.g. all records of a subject.
+	 *
+	 * @param values String for string columns, Number for numerics, null for a
+	 *               missing numeric
+	 */
+	public Range find(Object... values) throws IOException {
+		if (!sorted)
+			throw new IllegalStateException("Sort order neither verified nor declared");
+		if (values.length > keys.length)
+			throw new IllegalArgumentException("More values than key columns: " + values.length);
+
+		byte[] key = encode(values);
+		byte[] probe = new byte[rowLength];
+
+		Range range = new Range();
+		range.firstRow = search(key, values.length, probe, false);
+		range.endRow = search(key, values.length, probe, true);
+		return range;
+	}
+
+	/**
+	 * @param after find the first row greater than the key rather than the first
+	 *              one not smaller
+	 */
+	private long search(byte[] key, int columns, byte[] probe, boolean after) throws IOException {
+		long lo = 0, hi = rowCount;
+		ByteBuffer bb = ByteBuffer.wrap(probe, spanStart, spanLength);
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			bb.clear().position(spanStart).limit(spanStart + spanLength);
+			reader.readFully(bb, reader.rowOffset(mid) + spanStart);
+			int c = compare(probe, 0, key, 0, columns);
+			if (c < 0 || (after && c == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Lays the key values out like a row, at the offsets of their columns.
+	 */
+	private byte[] encode(Object[] values) {
+		byte[] row = new byte[rowLength];
+		for (int i = 0; i < values.length; i++) {
+			ReadStatVariable variable = keys[i];
+			int pos = variable.offset;
+			int width = variable.storage_width;
+			Object value = values[i];
+			if (variable.type == ReadstatType.READSTAT_TYPE_STRING) {
+				Arrays.fill(row, pos, pos + width, (byte) ' ');
+				if (value != null) {
+					byte[] bytes = value.toString().getBytes(IO.CHARSET);
+					System.arraycopy(bytes, 0, row, pos, Math.min(width, bytes.length));
+				}
+			} else if (value == null) {
+				row[pos] = '.';
+			} else if (value instanceof Number) {
+				PrimitiveUtils.ieee2xpt(((Number) value).doubleValue(), row, pos, width);
+			} else {
+				PrimitiveUtils.ieee2xpt(Double.parseDouble(value.toString()), row, pos, width);
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Compares the first <code>columns</code> key columns of two rows.
+	 */
+	private int compare(byte[] a, int aoff, byte[] b, int boff, int columns) {
+		for (int i = 0; i < columns; i++) {
+			ReadStatVariable variable = keys[i];
+			int pa = aoff + variable.offset, pb = boff + variable.offset;
+			int width = variable.storage_width;
+			int c;
+			if (variable.type == ReadstatType.READSTAT_TYPE_STRING) {
+				c = 0;
+				for (int j = 0; j < width && c == 0; j++) {
+					c = (a[pa + j] & 0xff) - (b[pb + j] & 0xff);
+				}
+			} else {
+				c = KeyEncoder.compareNumeric(a, pa, b, pb, width);
+			}
+			if (c != 0)
+				return c;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,559 @@
+package com.sentienz.sas.xpt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.KeyEncoder;
+import com.sentienz.sas.xpt.utils.RecordSorter;
+import com.sentienz.sas.xpt.utils.XPTReaderUtils;
+import com.sentienz.sas.xpt.utils.XPTWriterUtils;
+
+/**
+ * Sorts the rows of an XPT member by key columns within a fixed memory budget,
+ * so files many times larger than the heap can be sorted.
+ *
+ * Rows are read in parallel, row aligned runs that each fill a share of the
+ * budget. A run sorts small entries of the {@link KeyEncoder encoded} key and
+ * row number with {@link RecordSorter}, leaving the rows themselves in place.
+ * When the whole member fits into the budget the runs stay in memory.
+ * Otherwise each run is written to a temporary file as key, row number and
+ * row bytes in sorted order. The runs are then merged, in several passes if
+ * there are too many to merge at once. The row number breaks ties, so rows
+ * with equal keys keep their input order, as PROC SORT does by default.
+ *
+ * <pre>
+ * SASXportSorter sorter = new SASXportSorter("USUBJID", "PARAMCD", "ADT");
+ * sorter.setMemoryBytes(512L * 1024 * 1024);
+ * sorter.sort("adlb.xpt", "adlb_sorted.xpt");
+ * </pre>
+ */
+public class SASXportSorter {
+
+	public static final long DEFAULT_MEMORY_BYTES = 256 * 1024 * 1024;
+
+	/** most runs merged in one pass */
+	private static final int MAX_FAN_IN = 128;
+
+	private static final int IO_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Receives the sorted rows.
+	 */
+	public interface RowWriter {
+
+		/**
+		 * @param buffer holds the raw row at <code>off</code>; only valid during
+		 *               the call
+		 */
+		void write(byte[] buffer, int off) throws IOException;
+	}
+
+	private final String[] keyColumns;
+	private long memoryBytes = DEFAULT_MEMORY_BYTES;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private Path tempDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+
+	private int runCount;
+	private int mergePasses;
+
+	public SASXportSorter(String... keyColumns) {
+		if (keyColumns.length == 0)
+			throw new IllegalArgumentException("No key columns");
+		this.keyColumns = keyColumns.clone();
+	}
+
+	/**
+	 * Sorts the first member of a file into a new XPT file with the same
+	 * variables.
+	 *
+	 * @return the number of rows written
+	 */
+	public long sort(String inFile, String outFile) throws Exception {
+		try (SASXportPositionalReader reader = new SASXportPositionalReader(inFile);
+				FileChannel out = FileChannel.open(Paths.get(outFile), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			XPTContext meta = reader.getMetaData();
+			XPTContext layout = SASXportTransform.layout(meta, SASXportTransform.allColumns(meta));
+			final int rowLength = meta.row_length;
+			final ByteBuffer output = ByteBuffer.allocate(Math.max(rowLength, IO_BUFFER_SIZE / rowLength * rowLength));
+			write(out, ByteBuffer.wrap(XPTWriterUtils.libraryHeader(layout)));
+			write(out, ByteBuffer.wrap(XPTWriterUtils.memberHeader(layout)));
+			long rows = sort(reader, (buffer, off) -> {
+				if (output.remaining() < rowLength) {
+					output.flip();
+					write(out, output);
+					output.clear();
+				}
+				output.put(buffer, off, rowLength);
+			});
+			output.flip();
+			write(out, output);
+			write(out, ByteBuffer.wrap(XPTWriterUtils.padding(rows * rowLength)));
+			return rows;
+		}
+	}
+
+	/**
+	 * Sorts the reader's member, passing the rows in order to the writer. Blank
+	 * rows are left out.
+	 *
+	 * @return the number of rows written
+	 */
+	public long sort(final SASXportPositionalReader reader, RowWriter writer) throws Exception {
+		XPTContext meta = reader.getMetaData();
+		final ReadStatVariable[] keys = new ReadStatVariable[keyColumns.length];
+		for (int i = 0; i < keys.length; i++) {
+			int col = XPTReaderUtils.getVariableIndex(meta, keyColumns[i]);
+			if (col < 0)
+				throw new IllegalArgumentException("Unknown variable: " + keyColumns[i]);
+			keys[i] = meta.variables[col];
+		}
+		final Layout layout = new Layout(KeyEncoder.width(keys), meta.row_length);
+
+		long rows = reader.settleRowCount();
+		long bytesPerRow = layout.entryLength + layout.rowLength;
+		final boolean spill = rows * bytesPerRow > memoryBytes;
+		long runRows = spill ? memoryBytes / Math.max(1, threads) / bytesPerRow
+				: (rows + Math.max(1, threads) - 1) / Math.max(1, threads);
+		runRows = Math.max(1, Math.min(runRows, (Integer.MAX_VALUE - 8) / bytesPerRow));
+
+		// every spilled run is listed as soon as it exists, so that none is left
+		// behind when another task fails
+		final List<Run> spilled = Collections.synchronizedList(new ArrayList<Run>());
+		List<Run> runs = new ArrayList<Run>();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			runs.addAll(SASXportChunkRunner.run(rows, runRows, pool, (firstRow, count) -> {
+				Run run = createRun(reader, keys, layout, firstRow, (int) count);
+				if (!spill)
+					return run;
+				run = spill(run, layout);
+				spilled.add(run);
+				return run;
+			}));
+
+			runCount = runs.size();
+			mergePasses = 1;
+			while (runs.size() > MAX_FAN_IN) {
+				runs = mergePass(runs, layout);
+				mergePasses++;
+			}
+			return merge(runs, layout, writer);
+		} finally {
+			// tasks still running after a failure may yet spill a run
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			for (Run run : runs) {
+				run.delete();
+			}
+			synchronized (spilled) {
+				for (Run run : spilled) {
+					run.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs built by the last sort.
+	 */
+	public int getRunCount() {
+		return runCount;
+	}
+
+	/**
+	 * Merge passes of the last sort, 1 unless there were more than
+	 * {@link #MAX_FAN_IN} runs.
+	 */
+	public int getMergePasses() {
+		return mergePasses;
+	}
+
+	public long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	/**
+	 * Bytes of rows and sort entries held at once, shared by the threads; merge
+	 * buffers come out of the same budget.
+	 */
+	public void setMemoryBytes(long memoryBytes) {
+		if (memoryBytes <= 0)
+			throw new IllegalArgumentException("Memory must be positive: " + memoryBytes);
+		this.memoryBytes = memoryBytes;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public Path getTempDirectory() {
+		return tempDirectory;
+	}
+
+	public void setTempDirectory(Path tempDirectory) {
+		this.tempDirectory = tempDirectory;
+	}
+
+	/**
+	 * Sizes of the parts of a sort entry and of a spilled record.
+	 */
+	private static class Layout {
+		final int keyLength;
+		/** key and row number, which decide the order */
+		final int compareLength;
+		/** key, row number and slot of the row in its run */
+		final int entryLength;
+		final int rowLength;
+		/** spilled: key, row number and the row */
+		final int recordLength;
+
+		Layout(int keyLength, int rowLength) {
+			this.keyLength = keyLength;
+			this.compareLength = keyLength + 8;
+			this.entryLength = compareLength + 4;
+			this.rowLength = rowLength;
+			this.recordLength = compareLength + rowLength;
+		}
+	}
+
+	/**
+	 * Reads and sorts one run in memory.
+	 */
+	private static Run createRun(SASXportPositionalReader reader, ReadStatVariable[] keys, Layout layout,
+			long firstRow, int count) throws IOException {
+		int rowLength = layout.rowLength;
+		byte[] rows = new byte[count * rowLength];
+		int n = 0;
+		for (long row = firstRow; row < firstRow + count;) {
+			ByteBuffer bb = ByteBuffer.wrap(rows, (int) (row - firstRow) * rowLength,
+					(int) Math.min(IO_BUFFER_SIZE / rowLength + 1, firstRow + count - row) * rowLength);
+			int read = reader.readRows(row, bb);
+			if (read == 0)
+				break;
+			row += read;
+			n = (int) (row - firstRow);
+		}
+
+		byte[] entries = new byte[n * layout.entryLength];
+		int kept = 0;
+		for (int slot = 0; slot < n; slot++) {
+			if (reader.isBlankRow(rows, slot * rowLength))
+				continue;
+			int off = KeyEncoder.encode(keys, rows, slot * rowLength, entries, kept * layout.entryLength);
+			putLong(entries, off, firstRow + slot);
+			putInt(entries, off + 8, slot);
+			kept++;
+		}
+		RecordSorter.sort(entries, layout.entryLength, layout.compareLength, kept);
+		return new MemoryRun(entries, rows, kept, layout);
+	}
+
+	/**
+	 * Writes a run to a temporary file in sorted order.
+	 */
+	private Run spill(Run run, Layout layout) throws IOException {
+		Path file = Files.createTempFile(tempDirectory, "xptsort", ".run");
+		try (SpillWriter out = new SpillWriter(file, layout)) {
+			while (run.next()) {
+				out.write(run);
+			}
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+		return new FileRun(file, run.count, layout);
+	}
+
+	/**
+	 * Merges groups of {@link #MAX_FAN_IN} runs into fewer, longer runs.
+	 */
+	private List<Run> mergePass(List<Run> runs, Layout layout) throws IOException {
+		List<Run> merged = new ArrayList<Run>();
+		try {
+			for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+				List<Run> group = new ArrayList<Run>(runs.subList(i, Math.min(runs.size(), i + MAX_FAN_IN)));
+				for (Run run : group) {
+					run.open(mergeBufferBytes(layout, group.size()));
+				}
+				Path file = Files.createTempFile(tempDirectory, "xptsort", ".run");
+				long count = 0;
+				try (SpillWriter out = new SpillWriter(file, layout)) {
+					PriorityQueue<Run> queue = queue(group, layout);
+					while (!queue.isEmpty()) {
+						Run run = queue.poll();
+						out.write(run);
+						count++;
+						if (run.next())
+							queue.add(run);
+					}
+				} catch (IOException | RuntimeException e) {
+					Files.deleteIfExists(file);
+					throw e;
+				}
+				merged.add(new FileRun(file, count, layout));
+				for (Run run : group) {
+					run.delete();
+				}
+			}
+			return merged;
+		} catch (IOException | RuntimeException e) {
+			for (Run run : merged) {
+				run.delete();
+			}
+			throw e;
+		}
+	}
+
+	private long merge(List<Run> runs, Layout layout, RowWriter writer) throws IOException {
+		for (Run run : runs) {
+			run.open(mergeBufferBytes(layout, runs.size()));
+		}
+		PriorityQueue<Run> queue = queue(runs, layout);
+		long written = 0;
+		while (!queue.isEmpty()) {
+			Run run = queue.poll();
+			writer.write(run.rowData(), run.rowOffset());
+			written++;
+			if (run.next())
+				queue.add(run);
+		}
+		return written;
+	}
+
+	/**
+	 * Queue of the runs positioned on their first record.
+	 */
+	private static PriorityQueue<Run> queue(List<Run> runs, final Layout layout) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, runs.size()),
+				(a, b) -> KeyEncoder.compare(a.keyData(), a.keyOffset(), b.keyData(), b.keyOffset(),
+						layout.compareLength));
+		for (Run run : runs) {
+			if (run.next())
+				queue.add(run);
+		}
+		return queue;
+	}
+
+	/**
+	 * Read buffer of each file run when <code>runs</code> are merged at once.
+	 */
+	private int mergeBufferBytes(Layout layout, int runs) {
+		long bytes = Math.max(64 * 1024, Math.min(IO_BUFFER_SIZE * 8l, memoryBytes / (runs + 1)));
+		return (int) Math.max(layout.recordLength, bytes / layout.recordLength * layout.recordLength);
+	}
+
+	/**
+	 * Sorted records read one at a time. The key and row number of the current
+	 * record are at {@link #keyOffset()} and its row at {@link #rowOffset()}.
+	 */
+	private static abstract class Run {
+		final long count;
+
+		Run(long count) {
+			this.count = count;
+		}
+
+		void open(int bufferBytes) throws IOException {
+		}
+
+		/**
+		 * Moves to the next record.
+		 *
+		 * @return false once the run is exhausted
+		 */
+		abstract boolean next() throws IOException;
+
+		abstract byte[] keyData();
+
+		abstract int keyOffset();
+
+		abstract byte[] rowData();
+
+		abstract int rowOffset();
+
+		void delete() throws IOException {
+		}
+	}
+
+	private static class MemoryRun extends Run {
+		final byte[] entries;
+		final byte[] rows;
+		final Layout layout;
+		int position = -1;
+
+		MemoryRun(byte[] entries, byte[] rows, int count, Layout layout) {
+			super(count);
+			this.entries = entries;
+			this.rows = rows;
+			this.layout = layout;
+		}
+
+		boolean next() {
+			return ++position < count;
+		}
+
+		byte[] keyData() {
+			return entries;
+		}
+
+		int keyOffset() {
+			return position * layout.entryLength;
+		}
+
+		byte[] rowData() {
+			return rows;
+		}
+
+		int rowOffset() {
+			return getInt(entries, keyOffset() + layout.compareLength) * layout.rowLength;
+		}
+	}
+
+	private static class FileRun extends Run {
+		final Path file;
+		final Layout layout;
+		FileChannel channel;
+		ByteBuffer buffer;
+		long remaining;
+		int position;
+
+		FileRun(Path file, long count, Layout layout) {
+			super(count);
+			this.file = file;
+			this.layout = layout;
+		}
+
+		@Override
+		void open(int bufferBytes) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			buffer = ByteBuffer.allocate(bufferBytes);
+			buffer.limit(0);
+			remaining = count;
+			position = -layout.recordLength;
+		}
+
+		boolean next() throws IOException {
+			if (remaining == 0)
+				return false;
+			remaining--;
+			position += layout.recordLength;
+			if (position >= buffer.limit()) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), (remaining + 1) * layout.recordLength));
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0)
+						throw new IOException("Run ended early: " + file);
+				}
+				buffer.flip();
+				position = 0;
+			}
+			return true;
+		}
+
+		byte[] keyData() {
+			return buffer.array();
+		}
+
+		int keyOffset() {
+			return position;
+		}
+
+		byte[] rowData() {
+			return buffer.array();
+		}
+
+		int rowOffset() {
+			return position + layout.compareLength;
+		}
+
+		@Override
+		void delete() throws IOException {
+			if (channel != null)
+				channel.close();
+			channel = null;
+			buffer = null;
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Appends records to a run file.
+	 */
+	private static class SpillWriter implements AutoCloseable {
+		final FileChannel channel;
+		final ByteBuffer buffer;
+		final Layout layout;
+
+		SpillWriter(Path file, Layout layout) throws IOException {
+			this.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			this.buffer = ByteBuffer.allocate(Math.max(layout.recordLength,
+					IO_BUFFER_SIZE / layout.recordLength * layout.recordLength));
+			this.layout = layout;
+		}
+
+		void write(Run run) throws IOException {
+			if (buffer.remaining() < layout.recordLength)
+				flush();
+			buffer.put(run.keyData(), run.keyOffset(), layout.compareLength);
+			buffer.put(run.rowData(), run.rowOffset(), layout.rowLength);
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			SASXportSorter.write(channel, buffer);
+			buffer.clear();
+		}
+
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+	private static void write(FileChannel out, ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining())
+			out.write(bb);
+	}
+
+	private static void putLong(byte[] dst, int off, long value) {
+		for (int i = 0; i < 8; i++) {
+			dst[off + i] = (byte) (value >>> (56 - 8 * i));
+		}
+	}
+
+	private static void putInt(byte[] dst, int off, int value) {
+		for (int i = 0; i < 4; i++) {
+			dst[off + i] = (byte) (value >>> (24 - 8 * i));
+		}
+	}
+
+	private static int getInt(byte[] src, int off) {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (src[off + i] & 0xff);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,45 @@
+package com.sentienz.sas.xpt;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Source of positional byte range reads that {@link SASXportPositionalReader}
+ * works on, for files on local disk as well as behind a remote store. Header
+ * parsing, row reads and parallel chunk reads all go through
+ * {@link #read(ByteBuffer, long)}, so only the ranges needed are fetched.
+ * Wrap slow sources in a {@link SASXportBlockCache}.
+ *
+ * Implementations must allow concurrent reads from several threads.
+ */
+public interface SASXportStorage extends Closeable {
+
+	/**
+	 * Current size of the file in bytes.
+	 */
+	long size() throws IOException;
+
+	/**
+	 * Reads up to the remaining bytes of <code>dst</code> starting at the given
+	 * position, advancing the buffer's position.
+	 *
+	 * @return the number of bytes read, or -1 if the position is at or past the
+	 *         end
+	 */
+	int read(ByteBuffer dst, long position) throws IOException;
+
+	/**
+	 * Fills the remaining bytes of <code>dst</code>.
+	 *
+	 * @throws EOFException if the file ends first
+	 */
+	default void readFully(ByteBuffer dst, long position) throws IOException {
+		long start = position - dst.position();
+		while (dst.hasRemaining()) {
+			if (read(dst, start + dst.position()) < 0)
+				throw new EOFException("Reached EOF at offset " + (start + dst.position()));
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package com.sentienz.sas.xpt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+
+/**
+ * Follows an XPT file that is still being written and hands every newly
+ * completed row to a sink. Rows are fixed width and start at
+ * <code>obs_start + n * row_length</code>, so the tailer only has to remember
+ * the next row number; after a restart it continues from the persisted
+ * checkpoint without rescanning.
+ *
+ * Growth is detected with a {@link WatchService} on the parent directory,
+ * falling back to polling every {@link #setPollInterval(long) poll interval}
+ * where watching is not supported or events are missed.
+ */
+public class SASXportTailer implements Closeable {
+
+	private final Path file;
+	private final Path checkpoint;
+	private final SASXportRowSink sink;
+
+	private long pollInterval = 1000;
+	private long idleTimeout = 0;
+	private int batchRows = 1024;
+
+	private SASXportPositionalReader reader;
+	private long nextRow = 0;
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param checkpoint file the position is saved to after every batch, or null
+	 *                   to start from the first row every time
+	 */
+	public SASXportTailer(String fileName, String checkpoint, SASXportRowSink sink) {
+		this.file = Paths.get(fileName).toAbsolutePath();
+		this.checkpoint = checkpoint == null ? null : Paths.get(checkpoint);
+		this.sink = sink;
+	}
+
+	/**
+	 * Tails until {@link #stop()} is called, or until the file has not grown for
+	 * the {@link #setIdleTimeout(long) idle timeout}, if one is set.
+	 */
+	public void run() throws Exception {
+
+		WatchService watcher = null;
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_CREATE);
+		} catch (IOException | UnsupportedOperationException e) {
+			if (watcher != null)
+				watcher.close();
+			watcher = null;
+		}
+
+		try {
+			long lastGrowth = System.currentTimeMillis();
+			while (!stopped) {
+				if (poll() > 0) {
+					lastGrowth = System.currentTimeMillis();
+					continue;
+				}
+				if (idleTimeout > 0 && System.currentTimeMillis() - lastGrowth >= idleTimeout)
+					break;
+				awaitChange(watcher);
+			}
+		} finally {
+			if (watcher != null)
+				watcher.close();
+		}
+	}
+
+	private void awaitChange(WatchService watcher) throws InterruptedException {
+		if (watcher == null) {
+			Thread.sleep(pollInterval);
+			return;
+		}
+		WatchKey key = watcher.poll(pollInterval, TimeUnit.MILLISECONDS);
+		if (key != null) {
+			for (WatchEvent<?> event : key.pollEvents()) {
+				// any event wakes us up, poll() checks the size itself
+				event.kind();
+			}
+			key.reset();
+		}
+	}
+
+	/**
+	 * Emits the rows completed since the last call.
+	 *
+	 * @return the number of row slots consumed, 0 if the file has not grown or
+	 *         its header is not complete yet
+	 */
+	public long poll() throws Exception {
+
+		if (reader == null && !open())
+			return 0;
+
+		long available = reader.refreshRowCount();
+		long start = nextRow;
+		XPTContext meta = reader.getMetaData();
+		byte[] buffer = new byte[batchRows * meta.row_length];
+
+		while (nextRow < Math.min(available, reader.getRowCount()) && !stopped) {
+			long count = Math.min(batchRows, available - nextRow);
+			List<List<String>> rows = reader.readRecords(nextRow, count, buffer);
+			if (!rows.isEmpty())
+				sink.accept(file.toString(), meta, nextRow, rows);
+			// the row count shrinks when the read ran into a second member
+			nextRow = Math.min(nextRow + count, reader.getRowCount());
+			saveCheckpoint();
+		}
+		return nextRow - start;
+	}
+
+	/**
+	 * Opens the reader once the header is complete and restores the checkpoint.
+	 */
+	private boolean open() throws IOException {
+		if (!Files.exists(file))
+			return false;
+		try {
+			reader = new SASXportPositionalReader(file.toString());
+		} catch (Exception e) {
+			// header still being written
+			return false;
+		}
+		nextRow = loadCheckpoint();
+		return true;
+	}
+
+	private String fileIdentity() throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		Object key = attrs.fileKey();
+		return key != null ? key.toString() : attrs.creationTime().toString();
+	}
+
+	/**
+	 * @return the row to resume from, 0 if there is no checkpoint or it was
+	 *         written for a different file or layout
+	 */
+	private long loadCheckpoint() throws IOException {
+		if (checkpoint == null || !Files.exists(checkpoint))
+			return 0;
+
+		Properties props = new Properties();
+		try (InputStream in = Files.newInputStream(checkpoint)) {
+			props.load(in);
+		}
+		XPTContext meta = reader.getMetaData();
+		if (!file.toString().equals(props.getProperty("file"))
+				|| !fileIdentity().equals(props.getProperty("identity"))
+				|| !String.valueOf(meta.obs_start).equals(props.getProperty("obs_start"))
+				|| !String.valueOf(meta.row_length).equals(props.getProperty("row_length")))
+			return 0;
+		return Long.parseLong(props.getProperty("next_row", "0"));
+	}
+
+	/**
+	 * Written to a temporary file and moved into place, so a crash never leaves
+	 * a torn checkpoint.
+	 */
+	private void saveCheckpoint() throws IOException {
+		if (checkpoint == null)
+			return;
+
+		XPTContext meta = reader.getMetaData();
+		Properties props = new Properties();
+		props.setProperty("file", file.toString());
+		props.setProperty("identity", fileIdentity());
+		props.setProperty("obs_start", String.valueOf(meta.obs_start));
+		props.setProperty("row_length", String.valueOf(meta.row_length));
+		props.setProperty("next_row", String.valueOf(nextRow));
+
+		Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(tmp)) {
+			props.store(out, "SAS XPT tail checkpoint");
+		}
+		Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Makes {@link #run()} return after the current batch. May be called from any
+	 * thread.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Next row that will be emitted.
+	 */
+	public long getNextRow() {
+		return nextRow;
+	}
+
+	public long getPollInterval() {
+		return pollInterval;
+	}
+
+	public void setPollInterval(long pollInterval) {
+		this.pollInterval = pollInterval;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout milliseconds without growth after which {@link #run()}
+	 *                    returns, 0 to tail forever
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public int getBatchRows() {
+		return batchRows;
+	}
+
+	public void setBatchRows(int batchRows) {
+		this.batchRows = batchRows;
+	}
+
+	public void close() throws IOException {
+		stop();
+		if (reader != null)
+			reader.close();
+	}
+}
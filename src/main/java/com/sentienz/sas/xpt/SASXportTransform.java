@@ -0,0 +1,281 @@
+package com.sentienz.sas.xpt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.XPTReaderUtils;
+import com.sentienz.sas.xpt.utils.XPTWriterUtils;
+
+/**
+ * Writes subsets and concatenations of XPT files without decoding a single
+ * cell. Rows are fixed width byte records, so keeping columns means copying
+ * their byte ranges from input rows to output rows, and keeping whole rows
+ * means handing the byte range to {@link FileChannel#transferTo} so that it
+ * never passes through the heap. Only the headers and the final padding are
+ * written anew.
+ *
+ * Each input contributes its first member. Before whole rows are transferred
+ * the member is checked once for a following member header, so that no bytes
+ * of a later member are copied.
+ *
+ * <pre>
+ * SASXportTransform.subset("ae.xpt", "ae_small.xpt", new String[] { "USUBJID", "AETERM" }, null);
+ * SASXportTransform.dropColumns("ae.xpt", "ae_public.xpt", "AEBODSYS");
+ * SASXportTransform.concat("ae_all.xpt", "ae_site1.xpt", "ae_site2.xpt");
+ * </pre>
+ */
+public class SASXportTransform {
+
+	private static final int COPY_BUFFER_SIZE = 8 * 1024 * 1024;
+
+	private SASXportTransform() {
+		// prevent instantiation
+	}
+
+	/**
+	 * Copies the given columns of the rows the filter accepts.
+	 *
+	 * @param columns names of the columns kept, in output order, or null for all
+	 * @param filter  rows kept, or null for all of them
+	 * @return the number of rows written
+	 */
+	public static long subset(String inFile, String outFile, String[] columns, SASXportRowFilter filter)
+			throws Exception {
+		try (SASXportPositionalReader reader = new SASXportPositionalReader(inFile)) {
+			XPTContext meta = reader.getMetaData();
+			int[] selected = columns == null ? allColumns(meta) : resolve(meta, columns);
+			if (selected.length == 0)
+				throw new IllegalArgumentException("No columns kept");
+			XPTContext layout = layout(meta, selected);
+
+			try (FileChannel out = create(outFile)) {
+				write(out, XPTWriterUtils.libraryHeader(layout));
+				write(out, XPTWriterUtils.memberHeader(layout));
+				long rows;
+				if (filter == null && isIdentity(meta, selected)) {
+					reader.settleRowCount();
+					rows = reader.dataRowCount();
+					try (FileChannel in = FileChannel.open(Paths.get(inFile), StandardOpenOption.READ)) {
+						transfer(in, reader.rowOffset(0), rows * meta.row_length, out);
+					}
+				} else {
+					rows = copy(reader, selected, layout, filter, out);
+				}
+				write(out, XPTWriterUtils.padding(rows * layout.row_length));
+				return rows;
+			}
+		}
+	}
+
+	/**
+	 * Copies every row without the given columns.
+	 *
+	 * @return the number of rows written
+	 */
+	public static long dropColumns(String inFile, String outFile, String... dropped) throws Exception {
+		List<String> kept = new ArrayList<String>();
+		try (SASXportPositionalReader reader = new SASXportPositionalReader(inFile)) {
+			XPTContext meta = reader.getMetaData();
+			int[] drop = resolve(meta, dropped);
+			for (int c = 0; c < meta.var_count; c++) {
+				boolean keep = true;
+				for (int d : drop) {
+					keep &= d != c;
+				}
+				if (keep)
+					kept.add(meta.variables[c].name);
+			}
+		}
+		return subset(inFile, outFile, kept.toArray(new String[kept.size()]), null);
+	}
+
+	/**
+	 * Writes the rows of all inputs one after the other. The inputs must have the
+	 * same variables at the same offsets; the header is taken from the first.
+	 *
+	 * @return the number of rows written
+	 */
+	public static long concat(String outFile, String... inFiles) throws Exception {
+		if (inFiles.length == 0)
+			throw new IllegalArgumentException("Nothing to concatenate");
+
+		long total = 0;
+		try (FileChannel out = create(outFile)) {
+			XPTContext layout = null;
+			for (String inFile : inFiles) {
+				try (SASXportPositionalReader reader = new SASXportPositionalReader(inFile)) {
+					XPTContext meta = reader.getMetaData();
+					if (layout == null) {
+						layout = layout(meta, allColumns(meta));
+						write(out, XPTWriterUtils.libraryHeader(layout));
+						write(out, XPTWriterUtils.memberHeader(layout));
+					} else {
+						checkSameLayout(layout, meta, inFile);
+					}
+					reader.settleRowCount();
+					long rows = reader.dataRowCount();
+					try (FileChannel in = FileChannel.open(Paths.get(inFile), StandardOpenOption.READ)) {
+						transfer(in, reader.rowOffset(0), rows * meta.row_length, out);
+					}
+					total += rows;
+				}
+			}
+			write(out, XPTWriterUtils.padding(total * layout.row_length));
+		}
+		return total;
+	}
+
+	/**
+	 * Copies rows through the heap, moving the selected column ranges. Adjacent
+	 * columns kept in their order are copied as one range.
+	 */
+	private static long copy(SASXportPositionalReader reader, int[] selected, XPTContext layout,
+			SASXportRowFilter filter, FileChannel out) throws IOException {
+		XPTContext meta = reader.getMetaData();
+		int inLength = meta.row_length;
+		int outLength = layout.row_length;
+
+		// source offset, target offset and length of each range
+		List<int[]> ranges = new ArrayList<int[]>();
+		for (int i = 0; i < selected.length; i++) {
+			ReadStatVariable from = meta.variables[selected[i]];
+			ReadStatVariable to = layout.variables[i];
+			int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+			if (last != null && last[0] + last[2] == from.offset && last[1] + last[2] == to.offset)
+				last[2] += from.storage_width;
+			else
+				ranges.add(new int[] { from.offset, to.offset, from.storage_width });
+		}
+		int[][] plan = ranges.toArray(new int[ranges.size()][]);
+
+		byte[] input = new byte[Math.max(inLength, COPY_BUFFER_SIZE / inLength * inLength)];
+		int rowsPerBuffer = input.length / inLength;
+		ByteBuffer output = ByteBuffer.allocate(Math.max(1, rowsPerBuffer) * outLength);
+		byte[] target = output.array();
+		ByteBuffer bb = ByteBuffer.wrap(input);
+
+		long written = 0;
+		for (long row = 0; row < reader.getRowCount();) {
+			bb.clear();
+			int n = reader.readRows(row, bb);
+			if (n == 0)
+				break;
+			int w = 0;
+			for (int r = 0; r < n; r++) {
+				int off = r * inLength;
+				if (reader.isBlankRow(input, off) || (filter != null && !filter.accept(row + r, input, off)))
+					continue;
+				int dst = w * outLength;
+				for (int[] range : plan) {
+					System.arraycopy(input, off + range[0], target, dst + range[1], range[2]);
+				}
+				w++;
+			}
+			output.clear();
+			output.limit(w * outLength);
+			write(out, output);
+			written += w;
+			row += n;
+		}
+		return written;
+	}
+
+	private static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+		long done = 0;
+		while (done < count) {
+			long n = in.transferTo(position + done, count - done, out);
+			if (n <= 0)
+				throw new IOException("Input ended at offset " + (position + done));
+			done += n;
+		}
+	}
+
+	/**
+	 * Output layout of the selected variables, packed in the given order.
+	 */
+	static XPTContext layout(XPTContext meta, int[] selected) {
+		ReadStatVariable[] variables = new ReadStatVariable[selected.length];
+		for (int i = 0; i < selected.length; i++) {
+			variables[i] = copyOf(meta.variables[selected[i]]);
+		}
+		XPTContext layout = XPTWriterUtils.newContext(meta.table_name, variables);
+		layout.version = meta.version;
+		layout.file_label = meta.file_label;
+		layout.timestamp = meta.timestamp;
+		return layout;
+	}
+
+	static ReadStatVariable copyOf(ReadStatVariable variable) {
+		ReadStatVariable copy = new ReadStatVariable();
+		copy.type = variable.type;
+		copy.name = variable.name;
+		copy.format = variable.format;
+		copy.label = variable.label;
+		copy.storage_width = variable.storage_width;
+		copy.user_width = variable.user_width;
+		copy.alignment = variable.alignment;
+		copy.display_width = variable.display_width;
+		copy.decimals = variable.decimals;
+		return copy;
+	}
+
+	private static boolean isIdentity(XPTContext meta, int[] selected) {
+		if (selected.length != meta.var_count)
+			return false;
+		for (int i = 0; i < selected.length; i++) {
+			if (selected[i] != i)
+				return false;
+		}
+		return true;
+	}
+
+	private static void checkSameLayout(XPTContext expected, XPTContext meta, String fileName) throws IOException {
+		boolean same = expected.var_count == meta.var_count && expected.row_length == meta.row_length;
+		for (int i = 0; same && i < meta.var_count; i++) {
+			ReadStatVariable a = expected.variables[i], b = meta.variables[i];
+			same = a.name.equalsIgnoreCase(b.name) && a.type == b.type && a.offset == b.offset
+					&& a.storage_width == b.storage_width;
+		}
+		if (!same)
+			throw new IOException("Variables of " + fileName + " differ from the first input");
+	}
+
+	static int[] allColumns(XPTContext meta) {
+		int[] columns = new int[meta.var_count];
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = i;
+		}
+		return columns;
+	}
+
+	private static int[] resolve(XPTContext meta, String[] names) {
+		int[] columns = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			columns[i] = XPTReaderUtils.getVariableIndex(meta, names[i]);
+			if (columns[i] < 0)
+				throw new IllegalArgumentException("Unknown variable: " + names[i]);
+		}
+		return columns;
+	}
+
+	private static FileChannel create(String fileName) throws IOException {
+		return FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	private static void write(FileChannel out, byte[] bytes) throws IOException {
+		write(out, ByteBuffer.wrap(bytes));
+	}
+
+	private static void write(FileChannel out, ByteBuffer bb) throws IOException {
+		while (bb.hasRemaining())
+			out.write(bb);
+	}
+}
@@ -0,0 +1,53 @@
+package com.sentienz.sas.xpt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads XPT members of a zip archive, such as a submission package, in place
+ * without extracting them. Entries may themselves be gzip or zstd compressed.
+ */
+public class SASXportZipArchive implements Closeable {
+
+	private final ZipFile zip;
+
+	public SASXportZipArchive(String fileName) throws IOException {
+		this.zip = new ZipFile(fileName);
+	}
+
+	/**
+	 * Names of the entries that look like XPT files, by extension.
+	 */
+	public List<String> getEntryNames() {
+		List<String> names = new ArrayList<String>();
+		Enumeration<? extends ZipEntry> entries = zip.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry entry = entries.nextElement();
+			String name = entry.getName().toLowerCase();
+			if (!entry.isDirectory() && (name.endsWith(".xpt") || name.endsWith(".xport")
+					|| name.endsWith(".xpt.gz") || name.endsWith(".xpt.zst")))
+				names.add(entry.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * Opens an iterator over one entry. Entries can be read at the same time,
+	 * each iterator must be closed by the caller.
+	 */
+	public SASXportFileIterator open(String entryName) throws Exception {
+		ZipEntry entry = zip.getEntry(entryName);
+		if (entry == null)
+			throw new IOException("No such entry: " + entryName);
+		return new SASXportFileIterator(SASXportInputs.open(zip.getInputStream(entry)));
+	}
+
+	public void close() throws IOException {
+		zip.close();
+	}
+}
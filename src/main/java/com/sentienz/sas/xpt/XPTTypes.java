@@ -64,12 +64,18 @@ public class XPTTypes {
 
     public long file_size;
     public long timestamp;
-
-    public int obs_count;
+    // byte offset of the member header
+    public long member_offset;
+    // byte offset of the first observation
+    public long obs_start;
+    // position of the member in the file, from 0
+    public int member_index;
+
+    public long obs_count;
     public int var_count;
-    public int row_limit;
+    public long row_limit;
     public int row_length;
-    public int parsed_row_count;
+    public long parsed_row_count;
 
     // size 40*4 +1
     public String file_label;
@@ -131,6 +137,24 @@ public class XPTTypes {
     byte tag;
     int is_system_missing;
     int is_tagged_missing;
+
+    /**
+     * Numeric value, the {@link com.sentienz.sas.xpt.utils.MissingValues} NaN of a missing one.
+     */
+    public double getValue() {
+      return value;
+    }
+
+    public String getString() {
+      return tvalue;
+    }
+
+    /**
+     * '.', '_' or 'A' to 'Z' for a missing numeric, 0 otherwise.
+     */
+    public byte getMissingTag() {
+      return is_system_missing != 0 ? (byte) '.' : is_tagged_missing != 0 ? tag : 0;
+    }
   };
 
   public static class ReadstatLabelSet {
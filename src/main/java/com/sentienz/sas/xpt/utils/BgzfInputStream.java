@@ -0,0 +1,159 @@
+package com.sentienz.sas.xpt.utils;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses blocked gzip (BGZF, as written by bgzip) on several threads.
+ * Every block is an independent gzip member that records its compressed size
+ * in the BC extra field, so blocks can be cut out of the stream without
+ * inflating them and inflated in parallel. Output keeps the input order.
+ * Ordinary gzip has no such boundaries and can only be inflated sequentially.
+ */
+public class BgzfInputStream extends InputStream {
+
+	private static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+	private final DataInputStream in;
+	private final ExecutorService pool;
+	private final int maxPending;
+	private final Queue<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+	private boolean eof = false;
+	private byte[] current = new byte[0];
+	private int position = 0;
+
+	public BgzfInputStream(InputStream in, int threads) {
+		this.in = new DataInputStream(in);
+		this.maxPending = threads * 4;
+		this.pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "xpt-bgzf");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * @param header the first 18 bytes of a gzip member
+	 * @return true if it carries a BGZF block size
+	 */
+	public static boolean isBgzf(byte[] header) {
+		return header.length >= 18 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8
+				&& (header[3] & 0x04) != 0 && header[10] == 6 && header[12] == 'B' && header[13] == 'C'
+				&& header[14] == 2;
+	}
+
+	private void fill() throws IOException {
+		while (!eof && pending.size() < maxPending) {
+			byte[] header = new byte[18];
+			int n = 0;
+			while (n < header.length) {
+				int r = in.read(header, n, header.length - n);
+				if (r < 0)
+					break;
+				n += r;
+			}
+			if (n == 0) {
+				eof = true;
+				break;
+			}
+			if (n < header.length || !isBgzf(header))
+				throw new IOException("Not a BGZF block");
+
+			int blockSize = ((header[16] & 0xff) | (header[17] & 0xff) << 8) + 1;
+			final byte[] block = new byte[blockSize];
+			System.arraycopy(header, 0, block, 0, header.length);
+			in.readFully(block, header.length, blockSize - header.length);
+			pending.add(pool.submit(() -> inflate(block)));
+		}
+	}
+
+	private static byte[] inflate(byte[] block) throws IOException {
+		int len = block.length;
+		int size = (block[len - 4] & 0xff) | (block[len - 3] & 0xff) << 8 | (block[len - 2] & 0xff) << 16
+				| (block[len - 1] & 0xff) << 24;
+		int crc = (block[len - 8] & 0xff) | (block[len - 7] & 0xff) << 8 | (block[len - 6] & 0xff) << 16
+				| (block[len - 5] & 0xff) << 24;
+		if (size < 0 || size > MAX_BLOCK_SIZE)
+			throw new IOException("Invalid BGZF block size " + size);
+
+		byte[] out = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(block, 18, len - 26);
+			int n = 0;
+			while (n < size && !inflater.finished()) {
+				int r = inflater.inflate(out, n, size - n);
+				if (r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new EOFException("Truncated BGZF block");
+				n += r;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+
+		CRC32 crc32 = new CRC32();
+		crc32.update(out, 0, size);
+		if ((int) crc32.getValue() != crc)
+			throw new IOException("BGZF block CRC mismatch");
+		return out;
+	}
+
+	private boolean nextBlock() throws IOException {
+		fill();
+		Future<byte[]> future = pending.poll();
+		if (future == null)
+			return false;
+		try {
+			current = future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+		position = 0;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		while (position == current.length) {
+			if (!nextBlock())
+				return -1;
+		}
+		int n = Math.min(len, current.length - position);
+		System.arraycopy(current, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		pool.shutdownNow();
+		in.close();
+	}
+}
@@ -0,0 +1,106 @@
+package com.sentienz.sas.xpt.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from fixed length byte keys to dense int ids
+ * (0, 1, 2, ... in insertion order). Keys are copied into one flat array, so a
+ * lookup or insert allocates nothing; callers keep their per key state in
+ * arrays indexed by the id.
+ */
+public class ByteKeyHashMap {
+
+	private final int keyLength;
+
+	private byte[] keys;
+	private long[] hashes;
+	private int[] table;
+	private int mask;
+	private int size = 0;
+
+	public ByteKeyHashMap(int keyLength) {
+		this(keyLength, 64);
+	}
+
+	public ByteKeyHashMap(int keyLength, int expectedSize) {
+		this.keyLength = keyLength;
+		int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+		table = new int[capacity];
+		mask = capacity - 1;
+		keys = new byte[Math.max(1, expectedSize) * keyLength];
+		hashes = new long[Math.max(1, expectedSize)];
+	}
+
+	/**
+	 * @return the id of the key, or -1 if it is not in the map
+	 */
+	public int get(byte[] key, int off) {
+		long hash = XXHash64.hash(key, off, keyLength);
+		for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+			int id = table[slot] - 1;
+			if (id < 0)
+				return -1;
+			if (hashes[id] == hash && PrimitiveUtils.memcmp(keys, id * keyLength, key, off, keyLength))
+				return id;
+		}
+	}
+
+	/**
+	 * @return the id of the key, adding it first if needed
+	 */
+	public int getOrAdd(byte[] key, int off) {
+		long hash = XXHash64.hash(key, off, keyLength);
+		int slot = (int) hash & mask;
+		for (;; slot = (slot + 1) & mask) {
+			int id = table[slot] - 1;
+			if (id < 0)
+				break;
+			if (hashes[id] == hash && PrimitiveUtils.memcmp(keys, id * keyLength, key, off, keyLength))
+				return id;
+		}
+
+		int id = size++;
+		if (id == hashes.length) {
+			hashes = Arrays.copyOf(hashes, id * 2);
+			keys = Arrays.copyOf(keys, id * 2 * keyLength);
+		}
+		hashes[id] = hash;
+		System.arraycopy(key, off, keys, id * keyLength, keyLength);
+		table[slot] = id + 1;
+
+		if (size * 2 > table.length)
+			rehash();
+		return id;
+	}
+
+	private void rehash() {
+		table = new int[table.length * 2];
+		mask = table.length - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = (int) hashes[id] & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id + 1;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getKeyLength() {
+		return keyLength;
+	}
+
+	/**
+	 * The flat key storage; the key of an id starts at {@link #keyOffset(int)}.
+	 */
+	public byte[] getKeys() {
+		return keys;
+	}
+
+	public int keyOffset(int id) {
+		return id * keyLength;
+	}
+}
@@ -0,0 +1,153 @@
+package com.sentienz.sas.xpt.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Sequential reader that pulls large blocks from a channel into one reusable
+ * direct buffer and hands out small pieces of it, so that reading a narrow row
+ * costs a memory copy instead of a system call. Meant for sources that can not
+ * be mapped, such as pipes, sockets and decompressors.
+ *
+ * End of input is reported through return values, never by exception.
+ */
+public class ChannelBlockReader implements Closeable {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+	public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+
+	private final ReadableByteChannel channel;
+	private final ByteBuffer buffer;
+	private boolean eof = false;
+	private long position = 0;
+
+	public ChannelBlockReader(ReadableByteChannel channel) {
+		this(channel, DEFAULT_BLOCK_SIZE);
+	}
+
+	public ChannelBlockReader(ReadableByteChannel channel, int blockSize) {
+		if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE)
+			throw new IllegalArgumentException("Block size out of range: " + blockSize);
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(blockSize);
+		this.buffer.flip();
+	}
+
+	/**
+	 * Moves the unread bytes to the front and reads until at least
+	 * <code>needed</code> bytes are buffered or the input ends. Reading stops
+	 * early rather than waiting for a full block, so slow sources are not held
+	 * up.
+	 */
+	private void fill(int needed) throws IOException {
+		buffer.compact();
+		while (buffer.position() < needed && !eof) {
+			if (channel.read(buffer) < 0)
+				eof = true;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Copies up to <code>len</code> bytes, blocking until they are all available
+	 * or the input ends.
+	 *
+	 * @return the number of bytes copied, less than <code>len</code> only at the
+	 *         end of the input
+	 */
+	public int readFully(byte[] dst, int off, int len) throws IOException {
+		int read = 0;
+		while (read < len) {
+			if (!buffer.hasRemaining()) {
+				fill(Math.min(len - read, buffer.capacity()));
+				if (!buffer.hasRemaining())
+					break;
+			}
+			int n = Math.min(len - read, buffer.remaining());
+			buffer.get(dst, off + read, n);
+			read += n;
+		}
+		position += read;
+		return read;
+	}
+
+	/**
+	 * Returns the next <code>len</code> bytes as a view of the internal buffer,
+	 * valid until the next call. A piece that straddles two blocks is moved to
+	 * the front of the buffer first.
+	 *
+	 * @return the slice, or null if fewer than <code>len</code> bytes are left
+	 */
+	public ByteBuffer slice(int len) throws IOException {
+		if (len > buffer.capacity())
+			throw new IllegalArgumentException("Slice larger than block size: " + len);
+		if (buffer.remaining() < len) {
+			fill(len);
+			if (buffer.remaining() < len)
+				return null;
+		}
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(slice.position() + len);
+		buffer.position(buffer.position() + len);
+		position += len;
+		return slice;
+	}
+
+	/**
+	 * Like {@link #slice(int)} but without consuming the bytes.
+	 */
+	public ByteBuffer peek(int len) throws IOException {
+		if (len > buffer.capacity())
+			throw new IllegalArgumentException("Peek larger than block size: " + len);
+		if (buffer.remaining() < len) {
+			fill(len);
+			if (buffer.remaining() < len)
+				return null;
+		}
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(slice.position() + len);
+		return slice;
+	}
+
+	/**
+	 * Skips forward, repositioning seekable channels instead of reading through.
+	 *
+	 * @return the number of bytes skipped, less than <code>n</code> only at the
+	 *         end of the input
+	 */
+	public long skip(long n) throws IOException {
+		long skipped = Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + (int) skipped);
+
+		if (skipped < n && channel instanceof SeekableByteChannel) {
+			SeekableByteChannel seekable = (SeekableByteChannel) channel;
+			long target = Math.min(seekable.size(), seekable.position() + n - skipped);
+			skipped += target - seekable.position();
+			seekable.position(target);
+		}
+		while (skipped < n) {
+			fill(1);
+			if (!buffer.hasRemaining())
+				break;
+			int step = (int) Math.min(n - skipped, buffer.remaining());
+			buffer.position(buffer.position() + step);
+			skipped += step;
+		}
+		position += skipped;
+		return skipped;
+	}
+
+	/**
+	 * Number of bytes consumed so far.
+	 */
+	public long position() {
+		return position;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
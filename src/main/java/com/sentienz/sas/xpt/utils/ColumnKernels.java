@@ -0,0 +1,206 @@
+package com.sentienz.sas.xpt.utils;
+
+import java.util.Arrays;
+
+/**
+ * Block decoders that convert one numeric column of K consecutive rows in a
+ * single pass. Every storage width has its own loop with the byte loads spelled
+ * out, so the loop body is branch free apart from the rare missing and zero
+ * cases and the JIT can unroll it.
+ *
+ * Missing values are reported in a bit set (bit r of <code>missing</code> set
+ * for row r) and, optionally, their tag byte ('.', '_' or 'A' to 'Z') in
+ * <code>tags</code>, which is 0 for present values. The value of a missing cell
+ * is the {@link MissingValues} NaN of its tag, so the vector alone is enough
+ * for callers that do not need the bit set.
+ */
+public class ColumnKernels {
+
+	private ColumnKernels() {
+		// prevent instantiation
+	}
+
+	/**
+	 * Decodes the IBM floats of one column for <code>rows</code> rows.
+	 *
+	 * @param buffer    rows laid out back to back
+	 * @param off       offset of the column in the first row
+	 * @param rowLength distance between two rows
+	 * @param width     storage width of the column, 3 to 8
+	 * @param values    receives the values, at least <code>rows</code> long
+	 * @param missing   receives the missing bit set, at least
+	 *                  <code>(rows + 63) / 64</code> long
+	 * @param tags      receives the missing tags, may be null
+	 */
+	public static void decodeDoubles(byte[] buffer, int off, int rowLength, int rows, int width, double[] values,
+			long[] missing, byte[] tags) {
+
+		Arrays.fill(missing, 0, (rows + 63) >>> 6, 0l);
+		switch (width) {
+		case 3:
+			decode3(buffer, off, rowLength, rows, values, missing, tags);
+			break;
+		case 4:
+			decode4(buffer, off, rowLength, rows, values, missing, tags);
+			break;
+		case 5:
+			decode5(buffer, off, rowLength, rows, values, missing, tags);
+			break;
+		case 6:
+			decode6(buffer, off, rowLength, rows, values, missing, tags);
+			break;
+		case 7:
+			decode7(buffer, off, rowLength, rows, values, missing, tags);
+			break;
+		case 8:
+			decode8(buffer, off, rowLength, rows, values, missing, tags);
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported numeric width: " + width);
+		}
+	}
+
+	/**
+	 * Decodes a numeric column that only holds integers into an int vector,
+	 * missing values reading as 0.
+	 *
+	 * @return false, with <code>values</code> partly filled, as soon as a value
+	 *         has a fraction or does not fit an int; the caller then falls back
+	 *         to {@link #decodeDoubles}
+	 */
+	public static boolean decodeInts(byte[] buffer, int off, int rowLength, int rows, int width, int[] values,
+			long[] missing, byte[] tags) {
+
+		Arrays.fill(missing, 0, (rows + 63) >>> 6, 0l);
+		for (int r = 0, p = off; r < rows; r++, p += rowLength) {
+			double d = convert(load(buffer, p, width), r, missing, tags);
+			if (d != d) {
+				values[r] = 0;
+				continue;
+			}
+			int i = (int) d;
+			if (i != d)
+				return false;
+			values[r] = i;
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes a numeric column into a float vector, missing values reading as
+	 * their {@link MissingValues} float NaN. Exact for storage widths up to 4,
+	 * whose IBM fraction fits a float.
+	 *
+	 * @return false as soon as a value is beyond the float range
+	 */
+	public static boolean decodeFloats(byte[] buffer, int off, int rowLength, int rows, int width, float[] values,
+			long[] missing, byte[] tags) {
+
+		Arrays.fill(missing, 0, (rows + 63) >>> 6, 0l);
+		for (int r = 0, p = off; r < rows; r++, p += rowLength) {
+			double d = convert(load(buffer, p, width), r, missing, tags);
+			float f = MissingValues.toFloat(d);
+			if (Float.isInfinite(f) || (f == 0 && d != 0))
+				return false;
+			values[r] = f;
+		}
+		return true;
+	}
+
+	/**
+	 * Loads an IBM float of 3 to 8 bytes into the top of a long.
+	 */
+	private static long load(byte[] buffer, int p, int width) {
+		long ibm = (buffer[p + 0] & 0xffl) << 56 | (buffer[p + 1] & 0xffl) << 48 | (buffer[p + 2] & 0xffl) << 40;
+		if (width > 3)
+			ibm |= (buffer[p + 3] & 0xffl) << 32;
+		if (width > 4)
+			ibm |= (buffer[p + 4] & 0xffl) << 24;
+		if (width > 5)
+			ibm |= (buffer[p + 5] & 0xffl) << 16;
+		if (width > 6)
+			ibm |= (buffer[p + 6] & 0xffl) << 8;
+		if (width > 7)
+			ibm |= (buffer[p + 7] & 0xffl);
+		return ibm;
+	}
+
+	public static boolean isMissing(long[] missing, int row) {
+		return (missing[row >>> 6] & (1l << row)) != 0;
+	}
+
+	private static double convert(long ibm, int r, long[] missing, byte[] tags) {
+		if ((ibm << 8) == 0) {
+			int tag = (int) (ibm >>> 56);
+			if (tag == 0) {
+				if (tags != null)
+					tags[r] = 0;
+				return 0.0d;
+			}
+			if (tag == '.' || tag == '_' || (tag >= 'A' && tag <= 'Z')) {
+				missing[r >>> 6] |= 1l << r;
+				if (tags != null)
+					tags[r] = (byte) tag;
+				return MissingValues.missing(tag);
+			}
+		}
+		if (tags != null)
+			tags[r] = 0;
+		return PrimitiveUtils.ibm2ieee(ibm);
+	}
+
+	private static void decode3(byte[] buffer, int off, int rowLength, int rows, double[] values, long[] missing,
+			byte[] tags) {
+		for (int r = 0, p = off; r < rows; r++, p += rowLength) {
+			long ibm = (buffer[p + 0] & 0xffl) << 56 | (buffer[p + 1] & 0xffl) << 48 | (buffer[p + 2] & 0xffl) << 40;
+			values[r] = convert(ibm, r, missing, tags);
+		}
+	}
+
+	private static void decode4(byte[] buffer, int off, int rowLength, int rows, double[] values, long[] missing,
+			byte[] tags) {
+		for (int r = 0, p = off; r < rows; r++, p += rowLength) {
+			long ibm = (buffer[p + 0] & 0xffl) << 56 | (buffer[p + 1] & 0xffl) << 48 | (buffer[p + 2] & 0xffl) << 40
+					| (buffer[p + 3] & 0xffl) << 32;
+			values[r] = convert(ibm, r, missing, tags);
+		}
+	}
+
+	private static void decode5(byte[] buffer, int off, int rowLength, int rows, double[] values, long[] missing,
+			byte[] tags) {
+		for (int r = 0, p = off; r < rows; r++, p += rowLength) {
+			long ibm = (buffer[p + 0] & 0xffl) << 56 | (buffer[p + 1] & 0xffl) << 48 | (buffer[p + 2] & 0xffl) << 40
+					| (buffer[p + 3] & 0xffl) << 32 | (buffer[p + 4] & 0xffl) << 24;
+			values[r] = convert(ibm, r, missing, tags);
+		}
+	}
+
+	private static void decode6(byte[] buffer, int off, int rowLength, int rows, double[] values, long[] missing,
+			byte[] tags) {
+		for (int r = 0, p = off; r < rows; r++, p += rowLength) {
+			long ibm = (buffer[p + 0] & 0xffl) << 56 | (buffer[p + 1] & 0xffl) << 48 | (buffer[p + 2] & 0xffl) << 40
+					| (buffer[p + 3] & 0xffl) << 32 | (buffer[p + 4] & 0xffl) << 24 | (buffer[p + 5] & 0xffl) << 16;
+			values[r] = convert(ibm, r, missing, tags);
+		}
+	}
+
+	private static void decode7(byte[] buffer, int off, int rowLength, int rows, double[] values, long[] missing,
+			byte[] tags) {
+		for (int r = 0, p = off; r < rows; r++, p += rowLength) {
+			long ibm = (buffer[p + 0] & 0xffl) << 56 | (buffer[p + 1] & 0xffl) << 48 | (buffer[p + 2] & 0xffl) << 40
+					| (buffer[p + 3] & 0xffl) << 32 | (buffer[p + 4] & 0xffl) << 24 | (buffer[p + 5] & 0xffl) << 16
+					| (buffer[p + 6] & 0xffl) << 8;
+			values[r] = convert(ibm, r, missing, tags);
+		}
+	}
+
+	private static void decode8(byte[] buffer, int off, int rowLength, int rows, double[] values, long[] missing,
+			byte[] tags) {
+		for (int r = 0, p = off; r < rows; r++, p += rowLength) {
+			long ibm = (buffer[p + 0] & 0xffl) << 56 | (buffer[p + 1] & 0xffl) << 48 | (buffer[p + 2] & 0xffl) << 40
+					| (buffer[p + 3] & 0xffl) << 32 | (buffer[p + 4] & 0xffl) << 24 | (buffer[p + 5] & 0xffl) << 16
+					| (buffer[p + 6] & 0xffl) << 8 | (buffer[p + 7] & 0xffl);
+			values[r] = convert(ibm, r, missing, tags);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.sentienz.sas.xpt.utils;
+
+/**
+ * HyperLogLog distinct count estimator over 64 bit hashes. With precision p it
+ * uses 2^p one byte registers and has a standard error of about
+ * 1.04 / sqrt(2^p), e.g. 1.6% for the default of 12. Sketches of the same
+ * precision can be merged, which makes them usable for partial aggregation.
+ */
+public class HyperLogLog {
+
+	public static final int DEFAULT_PRECISION = 12;
+
+	private final int precision;
+	private final byte[] registers;
+
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	public HyperLogLog(int precision) {
+		if (precision < 4 || precision > 18)
+			throw new IllegalArgumentException("Precision out of range [4, 18]: " + precision);
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+
+	public void add(long hash) {
+		int index = (int) (hash >>> (64 - precision));
+		long w = (hash << precision) | (1L << (precision - 1));
+		byte rank = (byte) (Long.numberOfLeadingZeros(w) + 1);
+		if (rank > registers[index])
+			registers[index] = rank;
+	}
+
+	public void addBytes(byte[] buffer, int off, int len) {
+		add(XXHash64.hash(buffer, off, len));
+	}
+
+	public void merge(HyperLogLog other) {
+		if (other.precision != precision)
+			throw new IllegalArgumentException("Precision mismatch: " + precision + " vs " + other.precision);
+		for (int i = 0; i < registers.length; i++) {
+			if (other.registers[i] > registers[i])
+				registers[i] = other.registers[i];
+		}
+	}
+
+	public long estimate() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (int i = 0; i < m; i++) {
+			sum += 1.0d / (1L << registers[i]);
+			if (registers[i] == 0)
+				zeros++;
+		}
+		double alpha;
+		if (m == 16)
+			alpha = 0.673;
+		else if (m == 32)
+			alpha = 0.697;
+		else if (m == 64)
+			alpha = 0.709;
+		else
+			alpha = 0.7213 / (1 + 1.079 / m);
+
+		double estimate = alpha * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0)
+			estimate = m * Math.log((double) m / zeros);
+		return Math.round(estimate);
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+}
@@ -4,6 +4,7 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 
 /**
@@ -16,6 +17,9 @@ public class IO {
 
 	private static final String CHARSET_NAME = "windows-1252";
 
+	/** the encoding of character data in XPT files */
+	public static final Charset CHARSET = Charset.forName(CHARSET_NAME);
+
 	private IO() {
 		// prevent instantiation
 	}
@@ -0,0 +1,132 @@
+package com.sentienz.sas.xpt.utils;
+
+import java.util.Arrays;
+
+import com.sentienz.sas.xpt.XPTTypes;
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+
+/**
+ * Turns cells into byte strings that compare, as unsigned bytes, in the order
+ * SAS sorts the values, so that sorting and searching never decode a value.
+ * Strings keep their blank padded bytes. Numerics become 8 bytes: missing
+ * values first, ._ then . then .A to .Z, followed by the numbers in ascending
+ * order in the usual sign flipped IEEE layout.
+ */
+public class KeyEncoder {
+
+	public static final int NUMERIC_WIDTH = 8;
+
+	private KeyEncoder() {
+		// prevent instantiation
+	}
+
+	/**
+	 * Number of bytes the column takes in an encoded key.
+	 */
+	public static int width(ReadStatVariable variable) {
+		return variable.type == ReadstatType.READSTAT_TYPE_STRING ? variable.storage_width : NUMERIC_WIDTH;
+	}
+
+	public static int width(ReadStatVariable[] variables) {
+		int width = 0;
+		for (ReadStatVariable variable : variables) {
+			width += width(variable);
+		}
+		return width;
+	}
+
+	/**
+	 * Encodes the cell at <code>pos</code> of a raw row.
+	 *
+	 * @return the offset after the encoded cell
+	 */
+	public static int encode(ReadStatVariable variable, byte[] row, int pos, byte[] dst, int off) {
+		int width = variable.storage_width;
+		if (variable.type == ReadstatType.READSTAT_TYPE_STRING) {
+			System.arraycopy(row, pos, dst, off, width);
+			return off + width;
+		}
+		long key = numericKey(row, pos, width);
+		for (int i = 0; i < NUMERIC_WIDTH; i++) {
+			dst[off + i] = (byte) (key >>> (56 - 8 * i));
+		}
+		return off + NUMERIC_WIDTH;
+	}
+
+	/**
+	 * Encodes all the given columns of a raw row one after the other.
+	 *
+	 * @param base offset of the row
+	 */
+	public static int encode(ReadStatVariable[] variables, byte[] row, int base, byte[] dst, int off) {
+		for (ReadStatVariable variable : variables) {
+			off = encode(variable, row, base + variable.offset, dst, off);
+		}
+		return off;
+	}
+
+	/**
+	 * Encodes a value given by the caller as it would be encoded once stored in
+	 * the column. Numerics are stored first, so a value that loses precision at
+	 * a short width still matches the cells holding it.
+	 *
+	 * @param value String for string columns, Number or a parseable String for
+	 *              numerics, null for a missing numeric
+	 */
+	public static int encodeValue(ReadStatVariable variable, Object value, byte[] dst, int off) {
+		int width = variable.storage_width;
+		byte[] cell = new byte[width];
+		if (variable.type == ReadstatType.READSTAT_TYPE_STRING) {
+			Arrays.fill(cell, (byte) ' ');
+			if (value != null) {
+				byte[] bytes = value.toString().getBytes(IO.CHARSET);
+				System.arraycopy(bytes, 0, cell, 0, Math.min(width, bytes.length));
+			}
+		} else if (value == null) {
+			cell[0] = '.';
+		} else if (width >= XPTTypes.XPORT_MIN_DOUBLE_SIZE && width <= XPTTypes.XPORT_MAX_DOUBLE_SIZE) {
+			double d = value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+			PrimitiveUtils.ieee2xpt(d, cell, 0, width);
+		}
+		return encode(variable, cell, 0, dst, off);
+	}
+
+	/**
+	 * Maps a double to a long whose unsigned order is the numeric order.
+	 */
+	public static long sortable(double value) {
+		long bits = Double.doubleToLongBits(value + 0.0d);
+		return bits < 0 ? ~bits : bits ^ 0x8000000000000000l;
+	}
+
+	/**
+	 * Unsigned comparison of two byte ranges of the same length.
+	 */
+	public static int compare(byte[] a, int aoff, byte[] b, int boff, int len) {
+		for (int i = 0; i < len; i++) {
+			int c = (a[aoff + i] & 0xff) - (b[boff + i] & 0xff);
+			if (c != 0)
+				return c;
+		}
+		return 0;
+	}
+
+	/**
+	 * Compares two numeric cells of the same width in SAS sort order, as their
+	 * encoded keys would compare.
+	 */
+	public static int compareNumeric(byte[] a, int pa, byte[] b, int pb, int width) {
+		return Long.compareUnsigned(numericKey(a, pa, width), numericKey(b, pb, width));
+	}
+
+	private static long numericKey(byte[] row, int pos, int width) {
+		if (width < XPTTypes.XPORT_MIN_DOUBLE_SIZE || width > XPTTypes.XPORT_MAX_DOUBLE_SIZE)
+			return sortable(0.0d);
+		if (MissingValues.isMissing(row, pos, width)) {
+			byte tag = row[pos];
+			return tag == '_' ? 0 : tag == '.' ? 1 : tag - 'A' + 2;
+		}
+		return sortable(PrimitiveUtils.xpt2ieee(row, pos, width));
+	}
+}
@@ -0,0 +1,133 @@
+package com.sentienz.sas.xpt.utils;
+
+/**
+ * SAS missing values kept in plain doubles and floats. Each of the 28 kinds,
+ * . and ._ and .A to .Z, is a quiet NaN with its own payload, so a
+ * <code>double[]</code> holds the values of a numeric column together with the
+ * kind of every missing one, without a side bitmap or a per cell object.
+ *
+ * <pre>
+ * double  0x7FF8 534153 0000 tt    quiet NaN, "SAS", zeros, tag byte
+ * float   0x7FC0 53 tt             quiet NaN, "S", tag byte
+ * </pre>
+ *
+ * The tag byte is the first byte of the missing value in the XPT file: '.',
+ * '_' or 'A' to 'Z'. The payload survives copies, array stores and
+ * {@link Double#doubleToRawLongBits} but not arithmetic, and
+ * {@link Double#doubleToLongBits} folds every NaN into one, so compare tags
+ * through {@link #missingTag(double)}. Any NaN counts as missing; a NaN
+ * without the payload, such as the result of arithmetic on a missing value,
+ * reads as the system missing value '.'.
+ */
+public class MissingValues {
+
+	private static final long DOUBLE_BASE = 0x7FF8534153000000l;
+	private static final long DOUBLE_MASK = 0xFFFFFFFFFFFFFF00l;
+
+	private static final int FLOAT_BASE = 0x7FC05300;
+	private static final int FLOAT_MASK = 0xFFFFFF00;
+
+	private static final double[] DOUBLES = new double[128];
+	private static final float[] FLOATS = new float[128];
+
+	static {
+		for (int tag = 0; tag < DOUBLES.length; tag++) {
+			if (isTag(tag)) {
+				DOUBLES[tag] = Double.longBitsToDouble(DOUBLE_BASE | tag);
+				FLOATS[tag] = Float.intBitsToFloat(FLOAT_BASE | tag);
+			}
+		}
+	}
+
+	/** the system missing value . */
+	public static final double MISSING = missing('.');
+
+	private MissingValues() {
+		// prevent instantiation
+	}
+
+	/**
+	 * Whether the byte tags a missing value: '.', '_' or 'A' to 'Z'.
+	 */
+	public static boolean isTag(int tag) {
+		return tag == '.' || tag == '_' || (tag >= 'A' && tag <= 'Z');
+	}
+
+	/**
+	 * The missing value with the given tag.
+	 */
+	public static double missing(int tag) {
+		if (!isTag(tag))
+			throw new IllegalArgumentException("Not a missing value tag: " + tag);
+		return DOUBLES[tag];
+	}
+
+	public static float missingFloat(int tag) {
+		if (!isTag(tag))
+			throw new IllegalArgumentException("Not a missing value tag: " + tag);
+		return FLOATS[tag];
+	}
+
+	/**
+	 * Whether the numeric cell at <code>pos</code> of a raw row holds a missing
+	 * value: a tag byte followed by zeros.
+	 */
+	public static boolean isMissing(byte[] row, int pos, int width) {
+		if (!isTag(row[pos]))
+			return false;
+		for (int i = pos + 1; i < pos + width; i++) {
+			if (row[i] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	public static boolean isMissing(double value) {
+		return value != value;
+	}
+
+	public static boolean isMissing(float value) {
+		return value != value;
+	}
+
+	/**
+	 * Whether the value is one of the encoded missing values, as opposed to a
+	 * number or a NaN without a tag.
+	 */
+	public static boolean isTagged(double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		return (bits & DOUBLE_MASK) == DOUBLE_BASE && isTag((int) bits & 0xff);
+	}
+
+	/**
+	 * @return the tag of a missing value, '.' for a NaN without one, or 0 for
+	 *         a number
+	 */
+	public static byte missingTag(double value) {
+		if (value == value)
+			return 0;
+		return isTagged(value) ? (byte) Double.doubleToRawLongBits(value) : (byte) '.';
+	}
+
+	public static byte missingTag(float value) {
+		if (value == value)
+			return 0;
+		int bits = Float.floatToRawIntBits(value);
+		return (bits & FLOAT_MASK) == FLOAT_BASE && isTag(bits & 0xff) ? (byte) bits : (byte) '.';
+	}
+
+	/**
+	 * Narrows to a float, keeping the tag of a missing value, which a plain cast
+	 * drops.
+	 */
+	public static float toFloat(double value) {
+		return value == value ? (float) value : FLOATS[missingTag(value)];
+	}
+
+	/**
+	 * Widens to a double, keeping the tag of a missing value.
+	 */
+	public static double toDouble(float value) {
+		return value == value ? value : DOUBLES[missingTag(value)];
+	}
+}
@@ -187,17 +187,39 @@ public class PrimitiveUtils {
 	}
 
 	public static double xpt2ieeeSimple(byte[] xport) {
-		long ibm = toLong(xport);
+		return ibm2ieee(toLong(xport));
+	}
+
+	/**
+	 * Converts an IBM float of 1 to 8 big endian bytes, as stored in an XPT row,
+	 * without copying it into a temporary buffer. Missing bytes are taken as 0.
+	 */
+	public static double xpt2ieee(byte[] buffer, int off, int len) {
+		long ibm = 0;
+		for (int i = 0; i < 8; i++) {
+			ibm <<= 8;
+			if (i < len)
+				ibm |= buffer[off + i] & 0xff;
+		}
+		return ibm2ieee(ibm);
+	}
+
+	/**
+	 * Converts an 8 byte IBM float. A zero fraction under a tag byte is a
+	 * missing value and comes back as its {@link MissingValues} NaN.
+	 */
+	public static double ibm2ieee(long ibm) {
 
 		long sign = ibm & 0x8000000000000000l;
 		long exponent = (ibm & 0x7f00000000000000l) >> 56;
 		long mantissa = ibm & 0x00ffffffffffffffl;
 
 		if (mantissa == 0) {
-			if (xport[0] == 0x00)
+			int tag = (int) (ibm >>> 56);
+			if (tag == 0x00)
 				return 0.0d;
 			else
-				return Double.NaN;
+				return MissingValues.isTag(tag) ? MissingValues.missing(tag) : Double.NaN;
 		}
 		int shift = 3;
 		if ((ibm & 0x0080000000000000l) != 0)
@@ -216,9 +238,51 @@ public class PrimitiveUtils {
 		exponent += shift + 1023;
 
 		long ieee = sign | (exponent << 52) | mantissa;
-		byte[] out = longToBytes(ieee);
+		return Double.longBitsToDouble(ieee);
+	}
+
+	/**
+	 * Converts to an 8 byte IBM float, the inverse of {@link #ibm2ieee(long)}.
+	 * The 56 bit IBM fraction holds every IEEE mantissa exactly; magnitudes
+	 * beyond the IBM range become the largest IBM value, tiny ones 0. NaN and
+	 * infinity have no IBM form and are rejected.
+	 */
+	public static long ieee2ibm(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			throw new IllegalArgumentException("No IBM representation for " + value);
+
+		long ieee = Double.doubleToRawLongBits(value);
+		long sign = ieee & 0x8000000000000000l;
+		if (Math.abs(value) < Double.MIN_NORMAL)
+			return 0;
 
-		return toDouble(out);
+		// value = 0.1m * 2^shift with the implicit bit restored
+		long mantissa = (ieee & 0x000fffffffffffffl) | 0x0010000000000000l;
+		int shift = (int) ((ieee >>> 52) & 0x7ff) - 1023 + 1;
+
+		// round the binary exponent up to a multiple of 4, moving the fraction
+		int exponent = Math.floorDiv(shift + 3, 4);
+		int k = 4 * exponent - shift;
+		long fraction = mantissa << (3 - k);
+
+		exponent += 64;
+		if (exponent > 127)
+			return sign | 0x7fffffffffffffffl;
+		if (exponent < 0)
+			return 0;
+		return sign | ((long) exponent << 56) | fraction;
+	}
+
+	/**
+	 * Stores the value as an IBM float of <code>len</code> big endian bytes,
+	 * truncating the fraction like SAS does for short numerics. A NaN is stored
+	 * as the {@link MissingValues missing value} it encodes.
+	 */
+	public static void ieee2xpt(double value, byte[] buffer, int off, int len) {
+		long ibm = value != value ? (long) MissingValues.missingTag(value) << 56 : ieee2ibm(value);
+		for (int i = 0; i < len; i++) {
+			buffer[off + i] = (byte) (ibm >>> (56 - 8 * i));
+		}
 	}
 
 }
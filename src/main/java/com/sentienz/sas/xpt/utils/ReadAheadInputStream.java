@@ -0,0 +1,131 @@
+package com.sentienz.sas.xpt.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the source stream on a background thread into a fixed number of
+ * buffers, so that for example decompression overlaps with decoding on the
+ * consumer thread. Errors of the source are rethrown by {@link #read}.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+	private static final Block EOF = new Block(new byte[0]);
+
+	private static class Block {
+		final byte[] data;
+		int length;
+		IOException error;
+
+		Block(byte[] data) {
+			this.data = data;
+		}
+	}
+
+	private final InputStream source;
+	private final BlockingQueue<Block> filled;
+	private final BlockingQueue<Block> free;
+	private final Thread reader;
+
+	private Block current = null;
+	private int position = 0;
+	private volatile boolean closed = false;
+
+	public ReadAheadInputStream(InputStream source) {
+		this(source, 1024 * 1024, 4);
+	}
+
+	public ReadAheadInputStream(InputStream source, int bufferSize, int buffers) {
+		this.source = source;
+		this.filled = new ArrayBlockingQueue<Block>(buffers + 1);
+		this.free = new ArrayBlockingQueue<Block>(buffers);
+		for (int i = 0; i < buffers; i++) {
+			free.add(new Block(new byte[bufferSize]));
+		}
+		reader = new Thread(this::fill, "xpt-read-ahead");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void fill() {
+		try {
+			while (!closed) {
+				Block block = free.take();
+				block.length = 0;
+				block.error = null;
+				int n = 0;
+				try {
+					while (block.length < block.data.length
+							&& (n = source.read(block.data, block.length, block.data.length - block.length)) >= 0) {
+						block.length += n;
+					}
+				} catch (IOException e) {
+					block.error = e;
+				}
+				if (block.length > 0 || block.error != null)
+					filled.put(block);
+				if (n < 0 || block.error != null) {
+					filled.put(EOF);
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	private boolean nextBlock() throws IOException {
+		if (current == EOF)
+			return false;
+		if (current != null)
+			free.add(current);
+		try {
+			current = filled.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		position = 0;
+		if (current.error != null)
+			throw current.error;
+		return current != EOF;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		if (len == 0)
+			return 0;
+		while (current == null || position == current.length) {
+			if (!nextBlock())
+				return -1;
+		}
+		int n = Math.min(len, current.length - position);
+		System.arraycopy(current.data, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current == null ? 0 : current.length - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		reader.interrupt();
+		source.close();
+	}
+}
@@ -0,0 +1,78 @@
+package com.sentienz.sas.xpt.utils;
+
+/**
+ * In place sort of fixed length records packed into one byte array, ordered by
+ * an unsigned comparison of their first bytes. Avoids an object per record, so
+ * that millions of index entries or rows sort in the memory they already take.
+ */
+public class RecordSorter {
+
+	private static final int INSERTION_THRESHOLD = 12;
+
+	private RecordSorter() {
+		// prevent instantiation
+	}
+
+	/**
+	 * Sorts <code>count</code> records.
+	 *
+	 * @param recordLength  bytes per record
+	 * @param compareLength leading bytes of each record that decide the order
+	 */
+	public static void sort(byte[] data, int recordLength, int compareLength, int count) {
+		byte[] tmp = new byte[recordLength];
+		byte[] pivot = new byte[compareLength];
+		sort(data, recordLength, compareLength, 0, count - 1, tmp, pivot);
+	}
+
+	private static void sort(byte[] data, int len, int cmp, int lo, int hi, byte[] tmp, byte[] pivot) {
+		while (hi - lo > INSERTION_THRESHOLD) {
+			// median of three as the pivot, copied out since records move
+			int mid = (lo + hi) >>> 1;
+			if (compare(data, mid, lo, len, cmp) < 0)
+				swap(data, mid, lo, len, tmp);
+			if (compare(data, hi, lo, len, cmp) < 0)
+				swap(data, hi, lo, len, tmp);
+			if (compare(data, hi, mid, len, cmp) < 0)
+				swap(data, hi, mid, len, tmp);
+			System.arraycopy(data, mid * len, pivot, 0, cmp);
+
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (KeyEncoder.compare(data, i * len, pivot, 0, cmp) < 0)
+					i++;
+				while (KeyEncoder.compare(data, j * len, pivot, 0, cmp) > 0)
+					j--;
+				if (i <= j) {
+					if (i != j)
+						swap(data, i, j, len, tmp);
+					i++;
+					j--;
+				}
+			}
+			// recurse into the smaller half to bound the stack
+			if (j - lo < hi - i) {
+				sort(data, len, cmp, lo, j, tmp, pivot);
+				lo = i;
+			} else {
+				sort(data, len, cmp, i, hi, tmp, pivot);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; i++) {
+			for (int j = i; j > lo && compare(data, j, j - 1, len, cmp) < 0; j--) {
+				swap(data, j, j - 1, len, tmp);
+			}
+		}
+	}
+
+	private static int compare(byte[] data, int a, int b, int len, int cmp) {
+		return KeyEncoder.compare(data, a * len, data, b * len, cmp);
+	}
+
+	private static void swap(byte[] data, int a, int b, int len, byte[] tmp) {
+		System.arraycopy(data, a * len, tmp, 0, len);
+		System.arraycopy(data, b * len, data, a * len, len);
+		System.arraycopy(tmp, 0, data, b * len, len);
+	}
+}
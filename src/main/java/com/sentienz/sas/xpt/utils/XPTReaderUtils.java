@@ -3,6 +3,8 @@ package com.sentienz.sas.xpt.utils;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+
 public class XPTReaderUtils {
 
 	public static SimpleDateFormat DATE5_FORMAT = new SimpleDateFormat("ddMMM ");
@@ -47,6 +49,19 @@ public class XPTReaderUtils {
 		return val;
 	}
 
+	/**
+	 * Looks a variable up by name, ignoring case like SAS does.
+	 * 
+	 * @return the index of the variable, or -1
+	 */
+	public static int getVariableIndex(XPTContext ctx, String name) {
+		for (int i = 0; i < ctx.var_count; i++) {
+			if (ctx.variables[i].name.equalsIgnoreCase(name))
+				return i;
+		}
+		return -1;
+	}
+
 	public static String convertSASDate9ToString(String dtformat, double date) {
 		int num = (int) date;
 		SimpleDateFormat format = DATE9_FORMAT;
@@ -67,7 +82,10 @@ public class XPTReaderUtils {
 		cal.set(1960, 0, 1);
 		cal.add(Calendar.DAY_OF_YEAR, num);
 
-		String formatted = format.format(cal.getTime());
-		return formatted;
+		// the shared formats are not thread safe
+		synchronized (format) {
+			String formatted = format.format(cal.getTime());
+			return formatted;
+		}
 	}
 }
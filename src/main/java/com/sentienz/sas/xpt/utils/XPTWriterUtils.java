@@ -0,0 +1,206 @@
+package com.sentienz.sas.xpt.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+import com.sentienz.sas.xpt.XPTTypes;
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatAlignment;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+
+/**
+ * Builds the header records of an XPT file, the counterpart of the parsing in
+ * {@link com.sentienz.sas.xpt.SASXportConverter}. Headers are returned as byte
+ * arrays padded to whole 80 byte records, so they can be written to a stream or
+ * a channel alike. Version 8 contexts get the V8 record names and long names.
+ */
+public class XPTWriterUtils {
+
+	public static final int LINE_LEN = 80;
+	public static final int NAMESTR_LEN = 140;
+
+	private static final String ZEROS = "000000000000000000000000000000";
+
+	private XPTWriterUtils() {
+		// prevent instantiation
+	}
+
+	public static ReadStatVariable numeric(String name, int width) {
+		if (width < XPTTypes.XPORT_MIN_DOUBLE_SIZE || width > XPTTypes.XPORT_MAX_DOUBLE_SIZE)
+			throw new IllegalArgumentException("Numeric width out of range: " + width);
+		ReadStatVariable variable = new ReadStatVariable();
+		variable.type = ReadstatType.READSTAT_TYPE_DOUBLE;
+		variable.name = name;
+		variable.storage_width = width;
+		variable.format = "";
+		variable.label = "";
+		return variable;
+	}
+
+	public static ReadStatVariable string(String name, int width) {
+		ReadStatVariable variable = new ReadStatVariable();
+		variable.type = ReadstatType.READSTAT_TYPE_STRING;
+		variable.name = name;
+		variable.storage_width = width;
+		variable.format = "";
+		variable.label = "";
+		return variable;
+	}
+
+	/**
+	 * Lays the variables out one after the other, as the reader expects.
+	 */
+	public static XPTContext newContext(String tableName, ReadStatVariable... variables) {
+		XPTContext ctx = new XPTContext();
+		ctx.version = 5;
+		ctx.table_name = tableName;
+		ctx.file_label = "";
+		ctx.timestamp = System.currentTimeMillis();
+		ctx.var_count = variables.length;
+		ctx.variables = variables;
+		for (int i = 0; i < variables.length; i++) {
+			variables[i].index = i;
+			variables[i].offset = ctx.row_length;
+			ctx.row_length += variables[i].storage_width;
+		}
+		return ctx;
+	}
+
+	/**
+	 * The three records that open every file.
+	 */
+	public static byte[] libraryHeader(XPTContext ctx) {
+		byte[] header = blank(3 * LINE_LEN);
+		boolean v8 = ctx.version == 8;
+		put(header, 0, headerRecord(v8 ? "LIBV8" : "LIBRARY", ZEROS), LINE_LEN);
+		String timestamp = timestamp(ctx.timestamp);
+		put(header, LINE_LEN, "SAS     SAS     SASLIB  9.4     X64_7PRO", 40);
+		put(header, LINE_LEN + 64, timestamp, 16);
+		put(header, 2 * LINE_LEN, timestamp, 16);
+		return header;
+	}
+
+	/**
+	 * Member, descriptor and NAMESTR records up to and including the OBS header,
+	 * after which the rows follow.
+	 */
+	public static byte[] memberHeader(XPTContext ctx) {
+		boolean v8 = ctx.version == 8;
+		int namestrBytes = padded((long) ctx.var_count * NAMESTR_LEN);
+		byte[] header = blank(5 * LINE_LEN + namestrBytes + LINE_LEN);
+		String timestamp = timestamp(ctx.timestamp);
+
+		put(header, 0, headerRecord(v8 ? "MEMBV8" : "MEMBER", "000000000000000001600000000140"), LINE_LEN);
+		put(header, LINE_LEN, headerRecord(v8 ? "DSCPTV8" : "DSCRPTR", ZEROS), LINE_LEN);
+
+		int line = 2 * LINE_LEN;
+		put(header, line, "SAS", 8);
+		put(header, line + 8, ctx.table_name, v8 ? 32 : 8);
+		put(header, line + (v8 ? 40 : 16), "SASDATA 9.4     X64_7PRO", 24);
+		put(header, line + 64, timestamp, 16);
+
+		line += LINE_LEN;
+		put(header, line, timestamp, 16);
+		put(header, line + 32, ctx.file_label, 40);
+
+		line += LINE_LEN;
+		String counts = String.format("%06d%04d%020d", 0, ctx.var_count, 0);
+		put(header, line, headerRecord(v8 ? "NAMSTV8" : "NAMESTR", counts), LINE_LEN);
+
+		int pos = line + LINE_LEN;
+		for (int i = 0; i < ctx.var_count; i++) {
+			namestr(ctx.variables[i], header, pos + i * NAMESTR_LEN);
+		}
+
+		put(header, pos + namestrBytes, headerRecord(v8 ? "OBSV8" : "OBS", ZEROS), LINE_LEN);
+		return header;
+	}
+
+	/**
+	 * Spaces that complete the last record after <code>rowBytes</code> bytes of
+	 * rows.
+	 */
+	public static byte[] padding(long rowBytes) {
+		return blank((int) ((LINE_LEN - rowBytes % LINE_LEN) % LINE_LEN));
+	}
+
+	private static void namestr(ReadStatVariable variable, byte[] dst, int off) {
+		ByteBuffer bb = ByteBuffer.wrap(dst, off, NAMESTR_LEN).order(ByteOrder.BIG_ENDIAN);
+		Arrays.fill(dst, off, off + NAMESTR_LEN, (byte) 0);
+
+		boolean string = variable.type == ReadstatType.READSTAT_TYPE_STRING;
+		bb.putShort((short) (string ? 2 : 1));
+		bb.putShort((short) 0);
+		bb.putShort((short) variable.storage_width);
+		bb.putShort((short) (variable.index + 1));
+		put(dst, off + 8, variable.name, 8);
+		put(dst, off + 16, variable.label, 40);
+		put(dst, off + 56, formatName(variable.format), 8);
+
+		bb.position(off + 64);
+		bb.putShort((short) variable.display_width);
+		bb.putShort((short) variable.decimals);
+		bb.putShort((short) (variable.alignment == ReadstatAlignment.READSTAT_ALIGNMENT_RIGHT ? 1 : 0));
+		put(dst, off + 72, "", 8);
+		bb.position(off + 84);
+		bb.putInt(variable.offset);
+		put(dst, off + 88, variable.name, 32);
+	}
+
+	/**
+	 * The reader stores formats with width and decimals appended, the NAMESTR
+	 * record only holds the name.
+	 */
+	private static String formatName(String format) {
+		if (format == null)
+			return "";
+		int end = format.length();
+		while (end > 0 && (Character.isDigit(format.charAt(end - 1)) || format.charAt(end - 1) == '.'))
+			end--;
+		return format.substring(0, end);
+	}
+
+	/**
+	 * @param numbers the 30 digits after the record name
+	 */
+	private static String headerRecord(String name, String numbers) {
+		StringBuilder sb = new StringBuilder("HEADER RECORD*******");
+		sb.append(name);
+		while (sb.length() < 28)
+			sb.append(' ');
+		sb.append("HEADER RECORD!!!!!!!");
+		sb.append(numbers);
+		return sb.toString();
+	}
+
+	private static String timestamp(long millis) {
+		return new SimpleDateFormat("ddMMMyy:HH:mm:ss", Locale.US).format(new Date(millis)).toUpperCase(Locale.US);
+	}
+
+	/**
+	 * Writes the text left aligned into a blank padded field, cutting it off at
+	 * the field width.
+	 */
+	private static void put(byte[] dst, int off, String text, int width) {
+		Arrays.fill(dst, off, off + width, (byte) ' ');
+		if (text == null)
+			return;
+		byte[] bytes = text.getBytes(IO.CHARSET);
+		System.arraycopy(bytes, 0, dst, off, Math.min(width, bytes.length));
+	}
+
+	private static byte[] blank(int len) {
+		byte[] bytes = new byte[len];
+		Arrays.fill(bytes, (byte) ' ');
+		return bytes;
+	}
+
+	private static int padded(long len) {
+		return (int) ((len + LINE_LEN - 1) / LINE_LEN * LINE_LEN);
+	}
+}
@@ -0,0 +1,159 @@
+package com.sentienz.sas.xpt.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The xxHash64 hash, compatible with the reference implementation, for
+ * fingerprinting large byte ranges at memory speed and for hashing keys of
+ * hash tables, partitions and sketches. Input can be hashed at once, without
+ * allocating, or fed in pieces through an instance, with the same result.
+ */
+public class XXHash64 {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87l;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4Fl;
+	private static final long PRIME3 = 0x165667B19E3779F9l;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63l;
+	private static final long PRIME5 = 0x27D4EB2F165667C5l;
+
+	private final long seed;
+	private long v1, v2, v3, v4;
+	private long total = 0;
+	private final byte[] pending = new byte[32];
+	private int pendingLength = 0;
+
+	public XXHash64() {
+		this(0);
+	}
+
+	public XXHash64(long seed) {
+		this.seed = seed;
+		reset();
+	}
+
+	public void reset() {
+		v1 = seed + PRIME1 + PRIME2;
+		v2 = seed + PRIME2;
+		v3 = seed;
+		v4 = seed - PRIME1;
+		total = 0;
+		pendingLength = 0;
+	}
+
+	public void update(byte[] buffer, int off, int len) {
+		total += len;
+		int end = off + len;
+		if (pendingLength > 0) {
+			int n = Math.min(32 - pendingLength, len);
+			System.arraycopy(buffer, off, pending, pendingLength, n);
+			pendingLength += n;
+			off += n;
+			if (pendingLength < 32)
+				return;
+			ByteBuffer bb = ByteBuffer.wrap(pending).order(ByteOrder.LITTLE_ENDIAN);
+			v1 = round(v1, bb.getLong(0));
+			v2 = round(v2, bb.getLong(8));
+			v3 = round(v3, bb.getLong(16));
+			v4 = round(v4, bb.getLong(24));
+			pendingLength = 0;
+		}
+		if (end - off >= 32) {
+			ByteBuffer bb = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+			long a = v1, b = v2, c = v3, d = v4;
+			for (; off + 32 <= end; off += 32) {
+				a = round(a, bb.getLong(off));
+				b = round(b, bb.getLong(off + 8));
+				c = round(c, bb.getLong(off + 16));
+				d = round(d, bb.getLong(off + 24));
+			}
+			v1 = a;
+			v2 = b;
+			v3 = c;
+			v4 = d;
+		}
+		System.arraycopy(buffer, off, pending, 0, end - off);
+		pendingLength = end - off;
+	}
+
+	/**
+	 * Hash of everything fed since the last reset. Does not change the state.
+	 */
+	public long digest() {
+		long h;
+		if (total >= 32) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		} else {
+			h = seed + PRIME5;
+		}
+		h += total;
+		return finish(h, pending, 0, pendingLength);
+	}
+
+	public static long hash(byte[] buffer, int off, int len) {
+		return hash(buffer, off, len, 0);
+	}
+
+	public static long hash(byte[] buffer, int off, int len, long seed) {
+		int end = off + len;
+		long h;
+		if (len >= 32) {
+			ByteBuffer bb = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+			long a = seed + PRIME1 + PRIME2, b = seed + PRIME2, c = seed, d = seed - PRIME1;
+			for (; off + 32 <= end; off += 32) {
+				a = round(a, bb.getLong(off));
+				b = round(b, bb.getLong(off + 8));
+				c = round(c, bb.getLong(off + 16));
+				d = round(d, bb.getLong(off + 24));
+			}
+			h = Long.rotateLeft(a, 1) + Long.rotateLeft(b, 7) + Long.rotateLeft(c, 12) + Long.rotateLeft(d, 18);
+			h = merge(h, a);
+			h = merge(h, b);
+			h = merge(h, c);
+			h = merge(h, d);
+		} else {
+			h = seed + PRIME5;
+		}
+		h += len;
+		return finish(h, buffer, off, end - off);
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * PRIME2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	private static long merge(long h, long v) {
+		h ^= round(0, v);
+		return h * PRIME1 + PRIME4;
+	}
+
+	private static long finish(long h, byte[] buffer, int off, int len) {
+		ByteBuffer bb = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+		int end = off + len;
+		for (; off + 8 <= end; off += 8) {
+			h ^= round(0, bb.getLong(off));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+		}
+		if (off + 4 <= end) {
+			h ^= (bb.getInt(off) & 0xFFFFFFFFl) * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			off += 4;
+		}
+		for (; off < end; off++) {
+			h ^= (buffer[off] & 0xff) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+		}
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+		return h;
+	}
+}
@@ -0,0 +1,233 @@
+package com.sentienz.sas.xpt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.SyntheticXportInputStream;
+import com.sentienz.sas.xpt.utils.XPTWriterUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Reads a small generated file through {@link SASXportHttpStorage} and
+ * {@link SASXportBlockCache} from an in-process server that logs every range
+ * request.
+ */
+public class SASXportHttpStorageTest {
+
+	private static final XPTContext LAYOUT = XPTWriterUtils.newContext("REMOTE", XPTWriterUtils.numeric("N", 8),
+			XPTWriterUtils.string("S", 12), XPTWriterUtils.numeric("M", 4));
+	private static final long ROWS = 5000;
+	private static final int BLOCK_SIZE = 4096;
+
+	private static byte[] file;
+	private static HttpServer server;
+	private static ExecutorService serverPool;
+	private static String url;
+
+	/** start and length of every range request, in arrival order */
+	private static final List<long[]> ranges = Collections.synchronizedList(new ArrayList<long[]>());
+
+	@BeforeAll
+	public static void start() throws IOException {
+		try (SyntheticXportInputStream in = new SyntheticXportInputStream(LAYOUT, ROWS)) {
+			file = in.readAllBytes();
+		}
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		serverPool = Executors.newFixedThreadPool(4);
+		server.setExecutor(serverPool);
+		server.createContext("/data.xpt", SASXportHttpStorageTest::serve);
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/data.xpt";
+	}
+
+	@AfterAll
+	public static void stop() {
+		server.stop(0);
+		serverPool.shutdown();
+	}
+
+	@BeforeEach
+	public void clearRanges() {
+		ranges.clear();
+	}
+
+	private static void serve(HttpExchange exchange) throws IOException {
+		try {
+			if (exchange.getRequestMethod().equals("HEAD")) {
+				exchange.getResponseHeaders().set("Content-Length", Long.toString(file.length));
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			if (range == null || !range.matches("bytes=\\d+-\\d+")) {
+				exchange.sendResponseHeaders(400, -1);
+				return;
+			}
+			String[] bounds = range.substring("bytes=".length()).split("-");
+			int from = Integer.parseInt(bounds[0]);
+			int to = Math.min(file.length - 1, Integer.parseInt(bounds[1]));
+			ranges.add(new long[] { from, to - from + 1 });
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + file.length);
+			exchange.sendResponseHeaders(206, to - from + 1);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(file, from, to - from + 1);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static long obsStart() {
+		return new SyntheticXportInputStream(LAYOUT, ROWS).getObsStart();
+	}
+
+	@Test
+	public void readsExactRanges() throws Exception {
+		SASXportHttpStorage http = new SASXportHttpStorage(url);
+		assertEquals(file.length, http.size());
+
+		ByteBuffer dst = ByteBuffer.allocate(100);
+		assertEquals(100, http.read(dst, 1000));
+		assertArrayEquals(Arrays.copyOfRange(file, 1000, 1100), dst.array());
+
+		// a read past the end is cut to the size of the file
+		dst.clear();
+		assertEquals(10, http.read(dst, file.length - 10));
+		assertEquals(-1, http.read(ByteBuffer.allocate(1), file.length));
+
+		assertEquals(2, ranges.size());
+		assertArrayEquals(new long[] { 1000, 100 }, ranges.get(0));
+		assertArrayEquals(new long[] { file.length - 10, 10 }, ranges.get(1));
+		assertEquals(2, http.getRequestCount());
+		assertEquals(110, http.getBytesFetched());
+	}
+
+	@Test
+	public void parsesHeaderAndSeeksToRowThroughCache() throws Exception {
+		SASXportHttpStorage http = new SASXportHttpStorage(url);
+		SASXportBlockCache cache = new SASXportBlockCache(http, BLOCK_SIZE, 64 * BLOCK_SIZE);
+		try (SASXportPositionalReader reader = new SASXportPositionalReader(cache)) {
+			XPTContext meta = reader.getMetaData();
+			assertEquals(3, meta.var_count);
+			assertEquals("S", meta.variables[1].name);
+			assertEquals(LAYOUT.row_length, reader.getRowLength());
+			assertEquals(obsStart(), meta.obs_start);
+			assertEquals(ROWS, reader.getRowCount());
+			// the header is read with one buffer, fetched as one range
+			assertEquals(1, ranges.size());
+			assertArrayEquals(new long[] { 0, SASXportConverter.HEADER_BUFFER_SIZE }, ranges.get(0));
+
+			long row = 3210;
+			long block = reader.rowOffset(row) / BLOCK_SIZE;
+			assertEquals(block, (reader.rowOffset(row + 1) - 1) / BLOCK_SIZE);
+			List<List<String>> records = reader.readRecords(row, 1, new byte[LAYOUT.row_length]);
+			assertEquals(Arrays.asList("3210.0", "3210", "3212.0"), records.get(0));
+			assertEquals(2, ranges.size());
+			assertArrayEquals(new long[] { block * BLOCK_SIZE, BLOCK_SIZE }, ranges.get(1));
+
+			// the same row again comes from memory
+			reader.readRecords(row, 1, new byte[LAYOUT.row_length]);
+			assertEquals(2, ranges.size());
+			assertEquals(2, http.getRequestCount());
+			assertEquals(SASXportConverter.HEADER_BUFFER_SIZE / BLOCK_SIZE + 1, cache.getMisses());
+		}
+	}
+
+	@Test
+	public void coalescesAdjacentMissesAndEvictsLeastRecentlyUsed() throws Exception {
+		SASXportHttpStorage http = new SASXportHttpStorage(url);
+		SASXportBlockCache cache = new SASXportBlockCache(http, BLOCK_SIZE, 4 * BLOCK_SIZE);
+
+		// four missing blocks read at once take one request
+		ByteBuffer dst = ByteBuffer.allocate(3 * BLOCK_SIZE + 1);
+		cache.readFully(dst, BLOCK_SIZE - 1);
+		assertArrayEquals(Arrays.copyOfRange(file, BLOCK_SIZE - 1, 4 * BLOCK_SIZE), dst.array());
+		assertEquals(1, ranges.size());
+		assertArrayEquals(new long[] { 0, 4 * BLOCK_SIZE }, ranges.get(0));
+		assertEquals(4, cache.getMisses());
+
+		// block 1 becomes the most recent, so block 5 evicts block 0
+		cache.readFully(ByteBuffer.allocate(1), BLOCK_SIZE);
+		cache.readFully(ByteBuffer.allocate(1), 5 * BLOCK_SIZE);
+		assertEquals(2, ranges.size());
+		assertArrayEquals(new long[] { 5 * BLOCK_SIZE, BLOCK_SIZE }, ranges.get(1));
+		cache.readFully(ByteBuffer.allocate(1), BLOCK_SIZE);
+		assertEquals(2, ranges.size());
+		cache.readFully(ByteBuffer.allocate(1), 0);
+		assertEquals(3, ranges.size());
+		assertArrayEquals(new long[] { 0, BLOCK_SIZE }, ranges.get(2));
+
+		// a partly cached range fetches only the blocks it misses
+		cache.readFully(ByteBuffer.allocate(3 * BLOCK_SIZE), 5 * BLOCK_SIZE);
+		assertEquals(4, ranges.size());
+		assertArrayEquals(new long[] { 6 * BLOCK_SIZE, 2 * BLOCK_SIZE }, ranges.get(3));
+		assertEquals(8, cache.getMisses());
+		assertEquals(3, cache.getHits());
+		assertEquals(8 * BLOCK_SIZE, http.getBytesFetched());
+	}
+
+	@Test
+	public void readsChunksInParallelThroughCache() throws Exception {
+		SASXportHttpStorage http = new SASXportHttpStorage(url);
+		SASXportBlockCache cache = new SASXportBlockCache(http, BLOCK_SIZE, file.length + BLOCK_SIZE);
+		final int rowLength = LAYOUT.row_length;
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try (SASXportPositionalReader reader = new SASXportPositionalReader(cache)) {
+			List<Long> counts = SASXportChunkRunner.run(reader, 97, pool, (firstRow, count) -> {
+				byte[] buffer = new byte[(int) count * rowLength];
+				byte[] expected = new byte[rowLength];
+				int n = reader.readRows(firstRow, ByteBuffer.wrap(buffer));
+				for (int r = 0; r < n; r++) {
+					SyntheticXportInputStream.generateRow(LAYOUT, firstRow + r, expected, 0);
+					assertArrayEquals(expected, Arrays.copyOfRange(buffer, r * rowLength, (r + 1) * rowLength));
+				}
+				return (long) n;
+			});
+			long rows = 0;
+			for (long count : counts) {
+				rows += count;
+			}
+			assertEquals(ROWS, rows);
+		} finally {
+			pool.shutdown();
+		}
+
+		// every request covers whole blocks, and all blocks were fetched
+		long blocks = (file.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		boolean[] fetched = new boolean[(int) blocks];
+		synchronized (ranges) {
+			assertTrue(ranges.size() <= blocks);
+			for (long[] range : ranges) {
+				assertEquals(0, range[0] % BLOCK_SIZE);
+				assertTrue(range[1] % BLOCK_SIZE == 0 || range[0] + range[1] == file.length);
+				for (long b = range[0] / BLOCK_SIZE; b * BLOCK_SIZE < range[0] + range[1]; b++) {
+					fetched[(int) b] = true;
+				}
+			}
+		}
+		for (boolean b : fetched) {
+			assertTrue(b);
+		}
+		assertEquals(ranges.size(), http.getRequestCount());
+		assertTrue(http.getBytesFetched() >= file.length);
+	}
+}
@@ -0,0 +1,115 @@
+package com.sentienz.sas.xpt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+import com.sentienz.sas.xpt.utils.PrimitiveUtils;
+import com.sentienz.sas.xpt.utils.SyntheticXportInputStream;
+import com.sentienz.sas.xpt.utils.XPTWriterUtils;
+
+/**
+ * Reads a generated file of just over 2^31 bytes, so that every offset past
+ * the middle of it overflows an int.
+ */
+public class SASXportLargeFileTest {
+
+	private static final XPTContext LAYOUT = XPTWriterUtils.newContext("BIG", XPTWriterUtils.numeric("N", 8),
+			XPTWriterUtils.string("S", 200));
+	private static final long ROWS = (1L << 31) / LAYOUT.row_length + 1000;
+
+	/**
+	 * Serves the generated file at any position, without keeping it anywhere.
+	 */
+	private static class SyntheticStorage implements SASXportStorage {
+
+		public long size() {
+			return new SyntheticXportInputStream(LAYOUT, ROWS).length();
+		}
+
+		public int read(ByteBuffer dst, long position) throws IOException {
+			SyntheticXportInputStream in = new SyntheticXportInputStream(LAYOUT, ROWS);
+			in.skip(position);
+			byte[] bytes = new byte[dst.remaining()];
+			int n = in.read(bytes, 0, bytes.length);
+			if (n > 0)
+				dst.put(bytes, 0, n);
+			return n;
+		}
+
+		public void close() {
+		}
+	}
+
+	@Test
+	public void streamsPastTwoGigabytes() throws Exception {
+		SyntheticXportInputStream in = new SyntheticXportInputStream(LAYOUT, ROWS);
+		assertTrue(in.length() > Integer.MAX_VALUE);
+
+		final long[] visited = new long[1];
+		final long[] lastRow = { -1 };
+		final double[] lastValue = new double[1];
+		try (SASXportFileIterator iterator = new SASXportFileIterator(in)) {
+			long count = iterator.visitRemaining(new int[] { 0 }, new SASXportRowVisitor() {
+				public void onRowStart(long row) {
+					visited[0]++;
+					lastRow[0] = row;
+				}
+
+				public void onDouble(int col, double value) {
+					lastValue[0] = value;
+				}
+
+				public void onMissing(int col, byte tag) {
+				}
+
+				public void onString(int col, byte[] bytes, int off, int len) {
+				}
+			});
+			assertEquals(ROWS, count);
+			assertEquals(ROWS, visited[0]);
+			assertEquals(ROWS - 1, lastRow[0]);
+			assertEquals(ROWS - 1, lastValue[0], 0.0d);
+			// the padding after the last row is read as well
+			assertEquals(in.length(), iterator.offset);
+		}
+	}
+
+	@Test
+	public void readsRowsPastTwoGigabytes() throws Exception {
+		try (SASXportPositionalReader reader = new SASXportPositionalReader(new SyntheticStorage())) {
+			int rowLength = reader.getRowLength();
+			assertEquals(LAYOUT.row_length, rowLength);
+			assertEquals(ROWS, reader.getRowCount());
+
+			long obsStart = new SyntheticXportInputStream(LAYOUT, ROWS).getObsStart();
+			long straddling = (Integer.MAX_VALUE - obsStart) / rowLength;
+			assertEquals(obsStart + straddling * rowLength, reader.rowOffset(straddling));
+			assertTrue(reader.rowOffset(straddling + 1) > Integer.MAX_VALUE);
+
+			byte[] buffer = new byte[4 * rowLength];
+			byte[] expected = new byte[rowLength];
+			for (long first : new long[] { straddling - 1, ROWS - 4 }) {
+				ByteBuffer bb = ByteBuffer.wrap(buffer);
+				assertEquals(4, reader.readRows(first, bb));
+				assertEquals(buffer.length, bb.position());
+				for (int r = 0; r < 4; r++) {
+					SyntheticXportInputStream.generateRow(LAYOUT, first + r, expected, 0);
+					for (int i = 0; i < rowLength; i++) {
+						assertEquals(expected[i], buffer[r * rowLength + i]);
+					}
+					assertEquals(first + r, PrimitiveUtils.xpt2ieee(buffer, r * rowLength, 8), 0.0d);
+				}
+			}
+
+			ByteBuffer bb = ByteBuffer.wrap(buffer);
+			assertEquals(1, reader.readRows(ROWS - 1, bb));
+			assertEquals(0, reader.readRows(ROWS, ByteBuffer.wrap(buffer)));
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.sentienz.sas.xpt.utils;
+
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.sentienz.sas.xpt.XPTTypes.ReadStatVariable;
+import com.sentienz.sas.xpt.XPTTypes.ReadstatType;
+import com.sentienz.sas.xpt.XPTTypes.XPTContext;
+
+/**
+ * Generates a complete XPT file of any size on the fly, for exercising readers
+ * with files too large to keep around. Cells are derived from the row number,
+ * so a reader can check any row without the generator: numeric column
+ * <code>c</code> of row <code>r</code> holds <code>r + c</code>, and string
+ * columns hold the row number in decimal, cut to the column width.
+ *
+ * <pre>
+ * XPTContext layout = XPTWriterUtils.newContext("BIG", XPTWriterUtils.numeric("N", 8));
+ * InputStream in = new SyntheticXportInputStream(layout, 400_000_000L);
+ * </pre>
+ */
+public class SyntheticXportInputStream extends InputStream {
+
+	private final XPTContext layout;
+	private final long rows;
+
+	private final byte[] header;
+	private final byte[] padding;
+	private final byte[] row;
+
+	private long position = 0;
+	private final long headerEnd;
+	private final long rowsEnd;
+	private final long length;
+
+	private long currentRow = -1;
+
+	public SyntheticXportInputStream(XPTContext layout, long rows) {
+		if (layout.row_length <= 0)
+			throw new IllegalArgumentException("Layout without columns");
+		this.layout = layout;
+		this.rows = rows;
+		byte[] library = XPTWriterUtils.libraryHeader(layout);
+		byte[] member = XPTWriterUtils.memberHeader(layout);
+		this.header = Arrays.copyOf(library, library.length + member.length);
+		System.arraycopy(member, 0, header, library.length, member.length);
+		this.padding = XPTWriterUtils.padding(rows * layout.row_length);
+		this.row = new byte[layout.row_length];
+
+		this.headerEnd = header.length;
+		this.rowsEnd = headerEnd + rows * layout.row_length;
+		this.length = rowsEnd + padding.length;
+	}
+
+	/**
+	 * Size of the whole generated file.
+	 */
+	public long length() {
+		return length;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * Offset of the first row, the <code>obs_start</code> a reader should find.
+	 */
+	public long getObsStart() {
+		return headerEnd;
+	}
+
+	/**
+	 * Fills <code>dst</code> with the bytes of the given row.
+	 */
+	public static void generateRow(XPTContext layout, long rowIndex, byte[] dst, int off) {
+		for (ReadStatVariable variable : layout.variables) {
+			int pos = off + variable.offset;
+			if (variable.type == ReadstatType.READSTAT_TYPE_STRING) {
+				Arrays.fill(dst, pos, pos + variable.storage_width, (byte) ' ');
+				String text = Long.toString(rowIndex);
+				for (int i = 0; i < Math.min(text.length(), variable.storage_width); i++) {
+					dst[pos + i] = (byte) text.charAt(i);
+				}
+			} else {
+				PrimitiveUtils.ieee2xpt((double) (rowIndex + variable.index), dst, pos, variable.storage_width);
+			}
+		}
+	}
+
+	@Override
+	public int read() {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0)
+			return 0;
+		if (position >= length)
+			return -1;
+
+		int n = 0;
+		while (n < len && position < length) {
+			int step;
+			if (position < headerEnd) {
+				step = (int) Math.min(len - n, headerEnd - position);
+				System.arraycopy(header, (int) position, b, off + n, step);
+			} else if (position < rowsEnd) {
+				long r = (position - headerEnd) / layout.row_length;
+				int inRow = (int) ((position - headerEnd) % layout.row_length);
+				if (r != currentRow) {
+					generateRow(layout, r, row, 0);
+					currentRow = r;
+				}
+				step = Math.min(len - n, layout.row_length - inRow);
+				System.arraycopy(row, inRow, b, off + n, step);
+			} else {
+				step = (int) Math.min(len - n, length - position);
+				System.arraycopy(padding, (int) (position - rowsEnd), b, off + n, step);
+			}
+			n += step;
+			position += step;
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		long skipped = Math.max(0, Math.min(n, length - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, length - position);
+	}
+}